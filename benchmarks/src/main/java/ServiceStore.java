@@ -0,0 +1,74 @@
+import bench.Store;
+
+import java.util.List;
+
+/**
+ * Store of benchmarks calling Service and Server directly. It's in the default package like them, so javac checks each call
+ * against their signatures, and bench.Store.open() is the only place that names it.
+ */
+public class ServiceStore implements Store {
+
+    private final Service service; // the Service called
+    private final Server server; // Server of service, never started, commands are given to process() directly
+
+    /**
+     * Constructor of a store living only in memory
+     *
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends, 0 to use max-tree instead
+     * @param offHeap: true to keep history off heap
+     */
+    public ServiceStore(int checkpointInterval, boolean offHeap) {
+        service = new Service(null, checkpointInterval, offHeap);
+        server = new Server(0, 1, service);
+    }
+
+    @Override
+    public void put(String userName, String friendName) {
+        service.put(userName, friendName);
+    }
+
+    @Override
+    public Object get(String userName) {
+        return service.get(userName);
+    }
+
+    @Override
+    public Object get(String userName, int time) {
+        return service.get(userName, time);
+    }
+
+    @Override
+    public int delete(String userName) {
+        return service.delete(userName);
+    }
+
+    @Override
+    public int delete(String userName, String friendName) {
+        return service.delete(userName, friendName);
+    }
+
+    @Override
+    public Object diff(String userName, int time1, int time2) {
+        return service.diff(userName, time1, time2);
+    }
+
+    @Override
+    public Object mget(List<String> userNames) {
+        return service.mget(userNames);
+    }
+
+    @Override
+    public Object mget(List<String> userNames, int time) {
+        return service.mget(userNames, time);
+    }
+
+    @Override
+    public Object process(String command) {
+        return server.process(command); // package-private, same package as Server and loaded by the same class loader
+    }
+
+    @Override
+    public int getTimestamp() {
+        return service.getTimestamp();
+    }
+}
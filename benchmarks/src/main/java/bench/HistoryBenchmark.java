@@ -0,0 +1,72 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of Service over histories of different depth: get(key), get(key, time) and diff at random times.
+ * Store is filled once for each combination of params, reads don't add events so history stays same during measurement.
+ *
+ * Run with allocation report: java -jar benchmarks/target/benchmarks.jar HistoryBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class HistoryBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    int depth; // events of each key
+
+    @Param({"4", "64"})
+    int friends; // distinct friends of each key, at most this many are alive
+
+    @Param({"8"})
+    int keys; // number of keys
+
+    @Param({"1024"})
+    int checkpointInterval; // 0 to use max-tree
+
+    @Param({"heap"})
+    String storage; // heap or off-heap
+
+    private Store store;
+    private String[] names; // names of keys
+    private int end; // timestamp after filling, reads ask times before it
+
+    /**
+     * Random choices of one thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        final SplittableRandom random = new SplittableRandom(42);
+    }
+
+    @Setup(Level.Trial)
+    public void fill() {
+        store = Store.open(checkpointInterval, storage);
+        names = store.fill(keys, depth, friends);
+        end = store.getTimestamp();
+    }
+
+    @Benchmark
+    public Object get(Cursor cursor) {
+        return store.get(names[cursor.random.nextInt(names.length)]);
+    }
+
+    @Benchmark
+    public Object getAt(Cursor cursor) {
+        return store.get(names[cursor.random.nextInt(names.length)], cursor.random.nextInt(end));
+    }
+
+    @Benchmark
+    public Object diff(Cursor cursor) {
+        int time1 = cursor.random.nextInt(end);
+        int time2 = cursor.random.nextInt(end);
+        return store.diff(names[cursor.random.nextInt(names.length)], Math.min(time1, time2), Math.max(time1, time2));
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * get(key, time) of a batch of keys at one time: mget-at versus the same gets one by one, measured per batch.
+ * Service level compares parallel reads of mget with a loop of single gets, process level also counts what server does
+ * for each command: parsing it and wrapping its result, which mget-at does once for the whole batch.
+ *
+ * Run with allocation report: java -jar benchmarks/target/benchmarks.jar MgetBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MgetBenchmark {
+
+    private static final int BATCHES = 64; // different batches asked in turn
+
+    @Param({"16", "256", "4096"})
+    int batch; // keys of each batch
+
+    @Param({"10000"})
+    int keys; // number of keys
+
+    @Param({"100"})
+    int depth; // events of each key
+
+    @Param({"16"})
+    int friends; // distinct friends of each key
+
+    @Param({"1024"})
+    int checkpointInterval; // 0 to use max-tree
+
+    @Param({"heap"})
+    String storage; // heap or off-heap
+
+    private Store store;
+    private List<String>[] users; // keys of each batch
+    private int[] times; // time of each batch
+    private String[][] gets; // <get key time> commands of each batch
+    private String[] mgets; // <mget-at time key1 key2 ...> command of each batch
+
+    /**
+     * Batch asked next by one thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void fill() {
+        store = Store.open(checkpointInterval, storage);
+        String[] names = store.fill(keys, depth, friends);
+        int end = store.getTimestamp();
+
+        SplittableRandom random = new SplittableRandom(42);
+        users = new List[BATCHES];
+        times = new int[BATCHES];
+        gets = new String[BATCHES][];
+        mgets = new String[BATCHES];
+        for (int i = 0; i < BATCHES; i++) {
+            String[] batchUsers = new String[batch];
+            for (int j = 0; j < batch; j++) {
+                batchUsers[j] = names[random.nextInt(names.length)];
+            }
+            users[i] = Arrays.asList(batchUsers);
+            times[i] = random.nextInt(end);
+            gets[i] = new String[batch];
+            for (int j = 0; j < batch; j++) {
+                gets[i][j] = "get " + batchUsers[j] + " " + times[i];
+            }
+            mgets[i] = "mget-at " + times[i] + " " + String.join(" ", batchUsers);
+        }
+    }
+
+    @Benchmark
+    public void getAtSequence(Cursor cursor, Blackhole blackhole) {
+        int i = cursor.next++ & (BATCHES - 1);
+        int time = times[i];
+        for (String user : users[i]) {
+            blackhole.consume(store.get(user, time));
+        }
+    }
+
+    @Benchmark
+    public Object mgetAt(Cursor cursor) {
+        int i = cursor.next++ & (BATCHES - 1);
+        return store.mget(users[i], times[i]);
+    }
+
+    @Benchmark
+    public void processGetAtSequence(Cursor cursor, Blackhole blackhole) {
+        for (String command : gets[cursor.next++ & (BATCHES - 1)]) {
+            blackhole.consume(store.process(command));
+        }
+    }
+
+    @Benchmark
+    public Object processMgetAt(Cursor cursor) {
+        return store.process(mgets[cursor.next++ & (BATCHES - 1)]);
+    }
+}
@@ -0,0 +1,77 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mixed workload over many keys: each operation picks a random key, a read is get(key) or get(key, time) at a random time,
+ * a write is put(key, value) or delete(key, value) of a random friend. Run with -t to see how striped locks scale with threads.
+ *
+ * Run with allocation report: java -jar benchmarks/target/benchmarks.jar MixBenchmark -t 4 -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MixBenchmark {
+
+    @Param({"1000", "100000"})
+    int keys; // number of keys
+
+    @Param({"10", "100"})
+    int depth; // events of each key before an iteration
+
+    @Param({"16"})
+    int friends; // distinct friends of each key
+
+    @Param({"50", "90", "99"})
+    int readPercent; // percent of reads, the rest are writes
+
+    @Param({"1024"})
+    int checkpointInterval; // 0 to use max-tree
+
+    @Param({"heap"})
+    String storage; // heap or off-heap
+
+    private Store store;
+    private String[] names; // names of keys
+    private String[] friendNames; // names of friends
+    private int end; // timestamp after filling, reads ask times before it
+
+    /**
+     * Random choices of one thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        final SplittableRandom random = new SplittableRandom(42);
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        store = null; // let last store go before filling the next one
+        store = Store.open(checkpointInterval, storage);
+        names = store.fill(keys, depth, friends);
+        friendNames = Store.names("f", friends);
+        end = store.getTimestamp();
+    }
+
+    @Benchmark
+    public Object operation(Cursor cursor) {
+        SplittableRandom random = cursor.random;
+        String name = names[random.nextInt(names.length)];
+        int dice = random.nextInt(200); // 2 choices for each percent
+        if (dice < 2 * readPercent) {
+            return dice % 2 == 0 ? store.get(name) : store.get(name, random.nextInt(end));
+        }
+        String friendName = friendNames[random.nextInt(friendNames.length)];
+        if (dice % 2 == 0) {
+            store.put(name, friendName);
+            return null;
+        }
+        return store.delete(name, friendName);
+    }
+}
@@ -0,0 +1,153 @@
+package bench;
+
+import java.util.List;
+
+/**
+ * Calls of Service for benchmarks. Service lives in the default package, which can't be imported by a class in a package,
+ * and JMH refuses benchmarks in the default package, so ServiceStore in the default package of this module implements it
+ * by calling Service directly, and javac checks every call there. It has only one implementation, so JIT inlines its calls.
+ * Commands can also go through Server.process(), which parses them and wraps results like for a client, without a socket.
+ */
+public interface Store {
+
+    /**
+     * method to open a store living only in memory
+     *
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends, 0 to use max-tree instead
+     * @param storage: "heap" or "off-heap"
+     * @return a new ServiceStore
+     */
+    static Store open(int checkpointInterval, String storage) {
+        try {
+            // the only class named here, a missing one fails setup of the first benchmark
+            return (Store) Class.forName("ServiceStore").getConstructor(int.class, boolean.class)
+                    .newInstance(checkpointInterval, storage.equals("off-heap"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * method to call put(key, value)
+     *
+     * @param userName: the user
+     * @param friendName: a new friend of the user
+     */
+    void put(String userName, String friendName);
+
+    /**
+     * method to call get(key)
+     *
+     * @param userName: the user searched
+     * @return ResultType of friends
+     */
+    Object get(String userName);
+
+    /**
+     * method to call get(key, time)
+     *
+     * @param userName: the user searched
+     * @param time: a timestamp before current one
+     * @return ResultType of friends at time
+     */
+    Object get(String userName, int time);
+
+    /**
+     * method to call delete(key)
+     *
+     * @param userName: the user deleted
+     * @return status code
+     */
+    int delete(String userName);
+
+    /**
+     * method to call delete(key, value)
+     *
+     * @param userName: the user
+     * @param friendName: the friend deleted
+     * @return status code
+     */
+    int delete(String userName, String friendName);
+
+    /**
+     * method to call diff(key, time1, time2)
+     *
+     * @param userName: the user searched
+     * @param time1: the earlier timestamp
+     * @param time2: the later timestamp
+     * @return ResultType of friends changed
+     */
+    Object diff(String userName, int time1, int time2);
+
+    /**
+     * method to call mget(keys)
+     *
+     * @param userNames: the users searched
+     * @return list of ResultType
+     */
+    Object mget(List<String> userNames);
+
+    /**
+     * method to call mget(keys, time)
+     *
+     * @param userNames: the users searched
+     * @param time: a timestamp before current one
+     * @return list of ResultType
+     */
+    Object mget(List<String> userNames, int time);
+
+    /**
+     * method to do a command like server does for a client: parse it, call service and wrap result
+     *
+     * @param command: a command of client, e.g. get A 5
+     * @return SerialList sent back to client
+     */
+    Object process(String command);
+
+    /**
+     * method to get current timestamp
+     *
+     * @return the timestamp of the next operation
+     */
+    int getTimestamp();
+
+    /**
+     * method to fill a store with history, events of keys are interleaved so history of every key spans all timestamps.
+     * Each key puts friends f0..f(friends-1) one by one, then deletes them in same order, and again, so at most friends are alive
+     *
+     * @param keys: number of keys
+     * @param depth: events of each key
+     * @param friends: number of distinct friends of each key
+     * @return names of keys
+     */
+    default String[] fill(int keys, int depth, int friends) {
+        String[] names = names("u", keys);
+        String[] friendNames = names("f", friends);
+        for (int i = 0; i < depth; i++) {
+            int slot = i % (2 * friends);
+            for (String name : names) {
+                if (slot < friends) {
+                    put(name, friendNames[slot]);
+                } else {
+                    delete(name, friendNames[slot - friends]);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * method to make names with a prefix
+     *
+     * @param prefix: prefix of names
+     * @param n: number of names
+     * @return prefix0, prefix1, ...
+     */
+    static String[] names(String prefix, int n) {
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = prefix + i;
+        }
+        return names;
+    }
+}
@@ -0,0 +1,77 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes of Service on keys with history of different depth: put(key, value), delete(key, value) and delete(key).
+ * A deletion can only be measured together with a put giving it something to delete, so subtract put from them.
+ * Writes add events, store is filled again before every iteration so history doesn't grow across iterations.
+ *
+ * Run with allocation report: java -jar benchmarks/target/benchmarks.jar WriteBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class WriteBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    int depth; // events of each key before an iteration
+
+    @Param({"4", "64"})
+    int friends; // distinct friends of each key
+
+    @Param({"8"})
+    int keys; // number of keys
+
+    @Param({"1024"})
+    int checkpointInterval; // 0 to use max-tree
+
+    @Param({"heap"})
+    String storage; // heap or off-heap
+
+    private Store store;
+    private String[] names; // names of keys
+    private String[] friendNames; // names of friends
+
+    /**
+     * Random choices of one thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        final SplittableRandom random = new SplittableRandom(42);
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        store = null; // let last store go before filling the next one
+        store = Store.open(checkpointInterval, storage);
+        names = store.fill(keys, depth, friends);
+        friendNames = Store.names("f", friends);
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) {
+        store.put(names[cursor.random.nextInt(names.length)], friendNames[cursor.random.nextInt(friendNames.length)]);
+    }
+
+    @Benchmark
+    public int putAndDeleteFriend(Cursor cursor) {
+        String name = names[cursor.random.nextInt(names.length)];
+        String friendName = friendNames[cursor.random.nextInt(friendNames.length)];
+        store.put(name, friendName);
+        return store.delete(name, friendName);
+    }
+
+    @Benchmark
+    public int putAndDeleteUser(Cursor cursor) {
+        String name = names[cursor.random.nextInt(names.length)];
+        store.put(name, friendNames[cursor.random.nextInt(friendNames.length)]);
+        return store.delete(name);
+    }
+}
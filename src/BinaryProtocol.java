@@ -0,0 +1,273 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary protocol between Server and Client, used instead of Java serialization of SerialList.
+ *
+ * Server always starts with 4 bytes of header of Java serialization stream for legacy clients, a binary client skips them.
+ * A client starts with 4 bytes of MAGIC, then every frame is length-prefixed:
+ * request: <length, UTF-8 command>
+ * response: <length, status, number of values or -1 if there's no list, {length, UTF-8 value}>
+ * Frames are encoded into and decoded from direct buffers, which are read from and written to the socket channel directly.
+ * A frame longer than MAX_FRAME is refused on both sides, so a broken or hostile peer can't make the other one allocate gigabytes.
+ */
+public class BinaryProtocol implements Closeable {
+
+    // "KVB1", its first 2 bytes "KV" are also the length prefix of a writeUTF() of exactly 19286 bytes. A legacy client starts with
+    // writeUTF() of its short greeting, so it's never taken for a binary one. A first string of that length would be, and fails
+    static final int MAGIC = 0x4B564231;
+    private static final int BUFFER_SIZE = 1 << 16; // initial size of buffers, they grow for larger frames
+    static final int MAX_FRAME = 1 << 26; // max bytes of a frame body, the largest ones are chunks of users moved between nodes
+
+    private final SocketChannel channel; // channel of this connection
+    private ByteBuffer in; // bytes read but not decoded yet, in read mode
+    private ByteBuffer out; // encoded frames not written yet, in write mode
+    private final Metrics metrics; // counts bytes in and out, null if they are not counted
+
+    /**
+     * Constructor
+     *
+     * @param channel: a connected channel in blocking mode
+     */
+    public BinaryProtocol(SocketChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Constructor of server side, it counts bytes in and out
+     *
+     * @param channel: a connected channel in blocking mode
+     * @param metrics: metrics of server, null if bytes are not counted
+     */
+    public BinaryProtocol(SocketChannel channel, Metrics metrics) {
+        this.channel = channel;
+        this.metrics = metrics;
+        this.in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.in.flip(); // nothing to read yet
+        this.out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * method for client to tell server it speaks binary protocol, it must be the first thing sent
+     *
+     * @throws IOException if it can not be sent
+     */
+    public void writeMagic() throws IOException {
+        ensureOut(4);
+        out.putInt(MAGIC);
+    }
+
+    /**
+     * method for client to skip header of serialization stream, server sends it to every client
+     *
+     * @throws IOException if it's not received
+     */
+    public void readGreeting() throws IOException {
+        if (!fill(4) || in.getShort() != ObjectStreamConstants.STREAM_MAGIC || in.getShort() != ObjectStreamConstants.STREAM_VERSION) {
+            throw new IOException("Unknown server");
+        }
+    }
+
+    /**
+     * method to encode a command, it's sent by flush() or when buffer is full
+     *
+     * @param command: command to be sent
+     * @throws IOException if it can not be sent
+     */
+    public void writeCommand(String command) throws IOException {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        ensureOut(4 + bytes.length);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * method to read next command
+     *
+     * @return command, or null if client closed connection
+     * @throws IOException if it can not be read, or it's longer than MAX_FRAME, then connection should be closed
+     */
+    public String readCommand() throws IOException {
+        if (!fill(4)) {
+            return null; // connection closed between frames
+        }
+        int length = in.getInt();
+        require(length);
+        return readBytes(length);
+    }
+
+    /**
+     * method to encode a result, it's sent by flush() or when buffer is full
+     *
+     * @param result: result to be sent
+     * @throws IOException if it can not be sent
+     */
+    public void writeResult(Server.SerialList result) throws IOException {
+        // encode values first to know frame length
+        List<String> list = result.hasList ? result.getList() : null;
+        int count = list == null ? -1 : list.size();
+        byte[][] values = new byte[Math.max(count, 0)][];
+        int length = 1 + 4;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = list.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + values[i].length;
+        }
+
+        if (length > MAX_FRAME) {
+            throw new IOException("Result of " + length + " bytes is longer than max frame " + MAX_FRAME);
+        }
+        ensureOut(4 + length);
+        out.putInt(length);
+        out.put(result.status);
+        out.putInt(count);
+        for (byte[] value : values) {
+            out.putInt(value.length);
+            out.put(value);
+        }
+    }
+
+    /**
+     * method to read next result
+     *
+     * @return result
+     * @throws IOException if it can not be read or server closed connection
+     */
+    public Server.SerialList readResult() throws IOException {
+        if (!fill(4)) {
+            throw new EOFException("Server closed connection");
+        }
+        int length = in.getInt();
+        require(length);
+        byte status = in.get();
+        int count = in.getInt();
+        Server.SerialList result = new Server.SerialList(status, count >= 0);
+        if (count >= 0) {
+            List<String> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                list.add(readBytes(in.getInt()));
+            }
+            result.setList(list);
+        }
+        return result;
+    }
+
+    /**
+     * method to check if more bytes are already received, so a reply can wait for the following ones
+     *
+     * @return true if some bytes are not decoded yet
+     */
+    public boolean hasBufferedInput() {
+        return in.hasRemaining();
+    }
+
+    /**
+     * method to send all encoded frames
+     *
+     * @throws IOException if they can not be sent
+     */
+    public void flush() throws IOException {
+        out.flip();
+        if (metrics != null) {
+            metrics.written(out.remaining());
+        }
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * method to make sure there's room for size bytes in output buffer, sending or growing it if necessary
+     *
+     * @param size: bytes to be encoded
+     * @throws IOException if buffered frames can not be sent
+     */
+    private void ensureOut(int size) throws IOException {
+        if (out.remaining() >= size) {
+            return;
+        }
+        if (size > 4 + MAX_FRAME) {
+            throw new IOException("Frame of " + (size - 4) + " bytes is longer than max frame " + MAX_FRAME);
+        }
+        flush();
+        if (out.capacity() < size) {
+            out = ByteBuffer.allocateDirect(size); // a really large frame
+        }
+    }
+
+    /**
+     * method to make sure a whole frame body of length bytes is in input buffer
+     *
+     * @param length: length of frame body
+     * @throws IOException if length is negative or longer than MAX_FRAME, or connection is closed in the middle of a frame
+     */
+    private void require(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Broken frame length: " + length); // nothing is allocated for it, caller closes connection
+        }
+        if (!fill(length)) {
+            throw new EOFException("Connection closed in the middle of a frame");
+        }
+    }
+
+    /**
+     * method to read from channel until at least size bytes are in input buffer
+     *
+     * @param size: bytes needed
+     * @return false if channel is closed before any of these bytes arrives
+     * @throws IOException if channel is closed in the middle, or it can not be read
+     */
+    private boolean fill(int size) throws IOException {
+        if (in.remaining() >= size) {
+            return true;
+        }
+        // move undecoded bytes to the front, grow buffer for a large frame
+        if (in.capacity() < size) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(size);
+            larger.put(in);
+            in = larger;
+        } else {
+            in.compact();
+        }
+        boolean empty = in.position() == 0;
+        while (in.position() < size) {
+            int n = channel.read(in);
+            if (n < 0) {
+                in.flip();
+                if (empty && in.remaining() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            if (metrics != null) {
+                metrics.read(n);
+            }
+        }
+        in.flip();
+        return true;
+    }
+
+    /**
+     * method to decode a UTF-8 string from input buffer
+     *
+     * @param length: bytes of string
+     * @return decoded string
+     */
+    private String readBytes(int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
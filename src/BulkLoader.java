@@ -0,0 +1,509 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk load of a command file into an empty store, e.g. input.txt, without a client, a server, or any result.
+ * The store ends up with the same history and the same timestamps as if Client had sent the file to Server line by line.
+ *
+ * File is memory-mapped window by window, each window is loaded in 3 steps:
+ * 1. parts of the window are parsed in parallel, each line becomes a record, users of a part are named once and friends get their ids
+ * 2. records are walked in file order by one thread to give out timestamps, a read takes one exactly when it would on Server,
+ *    e.g. get(key, time) only when time is passed and the user is put before, which is a lookup in a set of users
+ * 3. changes are grouped by stripe of their user, stripes are applied in parallel, each one in timestamp order
+ * Nothing is logged, a snapshot taken after the load keeps it.
+ */
+public class BulkLoader {
+
+    private static final long WINDOW_SIZE = 64L << 20; // bytes of file mapped and loaded at a time
+    private static final int PARTS = Runtime.getRuntime().availableProcessors() * 4; // parts of a window parsed in parallel
+
+    // kinds of records besides changes, changes are WriteAheadLog.PUT, DELETE_USER and DELETE_FRIEND
+    private static final byte TICKS = 4; // reads that always take a timestamp, e.g. get(key), argument is how many
+    private static final byte READ_AT = 5; // get(key, time), diff or history: takes a timestamp if time is passed and the user is put before
+    private static final byte KIND = 0x0f; // bits of kind of a record
+    private static final byte KNOWN = 0x10; // user of record is put earlier in the same part
+
+    private static final byte[] PUT = "put".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GET = "get".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEL = "del".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DIFF = "diff".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HISTORY = "history".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MGET = "mget".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MGET_AT = "mget-at".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WATCH = "watch".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUIT = "quit".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Records parsed from a part of a window, in file order
+     */
+    private static class Part {
+        int size; // number of records
+        byte[] kinds = new byte[1024]; // kind of each record, with KNOWN bit
+        int[] users = new int[1024]; // user of each record, index in names
+        int[] arguments = new int[1024]; // id of friend of a put, index in deleted of a deletion of friend, time of a read, or number of ticks
+        int[] times; // timestamp of each change, given out once all parts are parsed
+        final List<String> names = new ArrayList<>(); // users of this part, each one once
+        final List<String> deleted = new ArrayList<>(); // friends of deletions, their ids are found when they are applied
+        int[] stripes; // stripes[s] to stripes[s + 1] in order are changes of users of stripe s
+        int[] changes; // index of each change, ordered by stripe
+        boolean quit; // true if quit is read in this part, nothing after it is loaded
+        long error = -1; // position in file of a line which can not be loaded, -1 if there's none
+        long lines; // number of lines read
+
+        /**
+         * method to add a record
+         *
+         * @param kind: kind of record, with KNOWN bit
+         * @param user: index of user in names
+         * @param argument: argument of record
+         */
+        void add(byte kind, int user, int argument) {
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                users = Arrays.copyOf(users, size * 2);
+                arguments = Arrays.copyOf(arguments, size * 2);
+            }
+            kinds[size] = kind;
+            users[size] = user;
+            arguments[size] = argument;
+            size++;
+        }
+
+        /**
+         * method to add reads always taking a timestamp, merged into the last record if it's also such reads
+         *
+         * @param count: number of reads
+         */
+        void tick(int count) {
+            if (size > 0 && kinds[size - 1] == TICKS) {
+                arguments[size - 1] += count;
+            } else {
+                add(TICKS, -1, count);
+            }
+        }
+
+        /**
+         * method to order changes by stripe of their user, records of a user stay in file order
+         */
+        void group() {
+            int[] stripeOfName = new int[names.size()];
+            for (int i = 0; i < stripeOfName.length; i++) {
+                stripeOfName[i] = Service.stripeOf(names.get(i));
+            }
+            stripes = new int[Service.STRIPES + 1];
+            for (int i = 0; i < size; i++) {
+                if ((kinds[i] & KIND) < TICKS) {
+                    stripes[stripeOfName[users[i]] + 1]++;
+                }
+            }
+            for (int s = 0; s < Service.STRIPES; s++) {
+                stripes[s + 1] += stripes[s];
+            }
+            int[] next = Arrays.copyOf(stripes, Service.STRIPES);
+            changes = new int[stripes[Service.STRIPES]];
+            for (int i = 0; i < size; i++) {
+                if ((kinds[i] & KIND) < TICKS) {
+                    changes[next[stripeOfName[users[i]]]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Names seen in a part and a value of each one, an open addressing table keyed by bytes of names in the part,
+     * so a name seen before is found without making a string of it
+     */
+    private static class NameTable {
+        private final byte[] bytes; // bytes of part
+        private int[] slots = new int[1024]; // index + 1 of name in each slot, 0 if it's empty, size is power of 2
+        private int shift = 32 - 10; // slot of a hash is its highest bits
+        private int[] hashes = new int[512]; // hash of each name
+        private int[] starts = new int[512]; // where each name is in bytes
+        private int[] ends = new int[512]; // after each name in bytes
+        private int[] values = new int[512]; // value of each name
+        private int size; // number of names
+
+        NameTable(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * method to find value of a name
+         *
+         * @param from: the first byte of name
+         * @param to: after the last byte of name
+         * @return its value, -1 if it's not in table
+         */
+        int find(int from, int to) {
+            int hash = hash(from, to);
+            for (int slot = hash >>> shift; slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+                int i = slots[slot] - 1;
+                if (hashes[i] == hash && Arrays.equals(bytes, starts[i], ends[i], bytes, from, to)) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * method to add a name not in table
+         *
+         * @param from: the first byte of name
+         * @param to: after the last byte of name
+         * @param value: its value
+         */
+        void add(int from, int to, int value) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                slots = new int[slots.length * 2]; // at most half full
+                shift--;
+                for (int i = 0; i < size; i++) {
+                    insert(i);
+                }
+            }
+            hashes[size] = hash(from, to);
+            starts[size] = from;
+            ends[size] = to;
+            values[size] = value;
+            insert(size++);
+        }
+
+        private void insert(int i) {
+            int slot = hashes[i] >>> shift;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = i + 1;
+        }
+
+        private int hash(int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = hash * 31 + bytes[i];
+            }
+            return hash * 0x9e3779b9; // Fibonacci hashing, names differing in their last characters land far apart
+        }
+    }
+
+    /**
+     * method to load a command file into an empty store, commands are read until the end of file or quit
+     *
+     * @param service: the empty store, not open to clients yet
+     * @param file: command file, one command each line, like input of Client
+     * @return number of lines read, quit included
+     * @throws IOException if file can not be read, or it has a line which can not be loaded, e.g. watch
+     * @throws IllegalStateException if store is not empty
+     */
+    static long load(Service service, Path file) throws IOException {
+        if (!service.isEmpty()) {
+            throw new IllegalStateException("Bulk load only seeds an empty store");
+        }
+        int timestamp = 0; // the next timestamp
+        Set<String> known = new HashSet<>(); // users put before the record being walked in step 2
+        long lines = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            boolean quit = false;
+            while (start < size && !quit) {
+                // 1. map a window ending after a whole line, and split it into parts of whole lines
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+                int length = window.limit();
+                if (start + length < size) {
+                    while (length > 0 && window.get(length - 1) != '\n') {
+                        length--;
+                    }
+                    if (length == 0) {
+                        throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at " + start);
+                    }
+                }
+                int[] bounds = new int[PARTS + 1];
+                for (int p = 1; p < PARTS; p++) {
+                    int bound = Math.max(bounds[p - 1], (int) ((long) length * p / PARTS));
+                    while (bound > bounds[p - 1] && window.get(bound - 1) != '\n') {
+                        bound--;
+                    }
+                    bounds[p] = bound;
+                }
+                bounds[PARTS] = length;
+
+                // 2. parse parts in parallel
+                final long offset = start;
+                Part[] parts = new Part[PARTS];
+                IntStream.range(0, PARTS).parallel().forEach(p -> parts[p] = parse(service, window, bounds[p], bounds[p + 1], offset));
+
+                // 3. give out timestamps in file order, only the first put of a user in a part has to be remembered
+                int loaded = 0; // parts loaded, the ones after quit are not
+                for (Part part : parts) {
+                    loaded++;
+                    part.times = new int[part.size];
+                    for (int i = 0; i < part.size; i++) {
+                        int argument = part.arguments[i];
+                        switch (part.kinds[i] & KIND) {
+                            case WriteAheadLog.PUT:
+                                if ((part.kinds[i] & KNOWN) == 0) {
+                                    known.add(part.names.get(part.users[i]));
+                                }
+                                part.times[i] = timestamp++;
+                                break;
+                            case WriteAheadLog.DELETE_USER:
+                            case WriteAheadLog.DELETE_FRIEND:
+                                part.times[i] = timestamp++;
+                                break;
+                            case TICKS:
+                                timestamp += argument;
+                                break;
+                            case READ_AT:
+                                if (argument < timestamp && ((part.kinds[i] & KNOWN) != 0 || known.contains(part.names.get(part.users[i])))) {
+                                    timestamp++;
+                                }
+                                break;
+                        }
+                    }
+                    lines += part.lines;
+                    if (part.error >= 0) {
+                        throw new IOException("Line can not be loaded at " + part.error + ", " + lines + " lines are parsed");
+                    }
+                    if (part.quit) {
+                        quit = true;
+                        break;
+                    }
+                }
+
+                // 4. apply changes of each stripe in parallel, parts in file order
+                final int count = loaded;
+                IntStream.range(0, Service.STRIPES).parallel().forEach(s -> {
+                    StringDictionary friendIds = service.getFriendIds();
+                    for (int p = 0; p < count; p++) {
+                        Part part = parts[p];
+                        for (int j = part.stripes[s]; j < part.stripes[s + 1]; j++) {
+                            int i = part.changes[j];
+                            byte operation = (byte) (part.kinds[i] & KIND);
+                            int friend = part.arguments[i];
+                            if (operation == WriteAheadLog.DELETE_FRIEND) {
+                                friend = friendIds.find(part.deleted.get(friend)); // every friend put before is in friendIds now
+                            }
+                            service.load(operation, part.times[i], part.names.get(part.users[i]), friend);
+                        }
+                    }
+                });
+                service.advanceTimestamp(timestamp);
+                start += length;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * method to parse a part of a window, lines are split by single spaces like Server does, a line which changes nothing
+     * and takes no timestamp on Server, e.g. invalid input, stats or clock outside a cluster, leaves no record
+     *
+     * @param service: the store being loaded, friends of puts are added into its friendIds
+     * @param window: mapped window of file
+     * @param from: the first byte of part, a line starts at it
+     * @param to: after the last byte of part, a line ends before it
+     * @param offset: position of window in file
+     * @return records of this part, grouped by stripe
+     */
+    private static Part parse(Service service, MappedByteBuffer window, int from, int to, long offset) {
+        Part part = new Part();
+        byte[] bytes = new byte[to - from];
+        window.get(from, bytes);
+        StringDictionary friendIds = service.getFriendIds();
+        NameTable userIndex = new NameTable(bytes); // index of each user in names
+        NameTable friends = new NameTable(bytes); // id of each friend of puts
+        BitSet put = new BitSet(); // users put earlier in this part, by index in names
+        int[] words = new int[16]; // start and end of each word of a line
+
+        int begin = 0;
+        while (begin < bytes.length) {
+            // 1. find the line, without its line break
+            int end = begin;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            int next = end + 1;
+            if (end > begin && bytes[end - 1] == '\r') {
+                end--;
+            }
+            part.lines++;
+
+            // 2. split it by single spaces, empty words at the end are dropped like String.split() does
+            int count = 0;
+            int wordStart = begin;
+            for (int i = begin; i <= end; i++) {
+                if (i == end || bytes[i] == ' ') {
+                    if (count * 2 == words.length) {
+                        words = Arrays.copyOf(words, words.length * 2);
+                    }
+                    words[count * 2] = wordStart;
+                    words[count * 2 + 1] = i;
+                    count++;
+                    wordStart = i + 1;
+                }
+            }
+            while (count > 0 && words[count * 2 - 1] == words[count * 2 - 2]) {
+                count--;
+            }
+            if (count == 0) {
+                begin = next; // an empty line is invalid input
+                continue;
+            }
+
+            // 3. turn it into records, the same checks as Server and Service decide if it takes a timestamp
+            if (end - begin == QUIT.length && is(bytes, words, 0, QUIT)) {
+                part.quit = true;
+                break;
+            } else if (is(bytes, words, 0, PUT)) {
+                if (count == 3) {
+                    int user = user(bytes, words, 1, userIndex, part);
+                    int friend = friends.find(words[4], words[5]);
+                    if (friend < 0) {
+                        friend = friendIds.id(word(bytes, words, 2));
+                        friends.add(words[4], words[5], friend);
+                    }
+                    part.add((byte) (WriteAheadLog.PUT | (put.get(user) ? KNOWN : 0)), user, friend);
+                    put.set(user);
+                }
+            } else if (is(bytes, words, 0, GET)) {
+                if (count == 2) {
+                    part.tick(1);
+                } else if (count == 3 && time(bytes, words, 2) >= 0) {
+                    readAt(part, time(bytes, words, 2), user(bytes, words, 1, userIndex, part), put);
+                }
+            } else if (is(bytes, words, 0, DEL)) {
+                if (count == 2) {
+                    part.add(WriteAheadLog.DELETE_USER, user(bytes, words, 1, userIndex, part), -1);
+                } else if (count == 3) {
+                    part.deleted.add(word(bytes, words, 2));
+                    part.add(WriteAheadLog.DELETE_FRIEND, user(bytes, words, 1, userIndex, part), part.deleted.size() - 1);
+                }
+            } else if (is(bytes, words, 0, DIFF) || is(bytes, words, 0, HISTORY)) {
+                if (count == 4) {
+                    long time1 = time(bytes, words, 2);
+                    long time2 = time(bytes, words, 3);
+                    if (time1 >= 0 && time2 >= 0 && time1 <= time2) {
+                        readAt(part, time1, user(bytes, words, 1, userIndex, part), put); // time2 is only checked after timestamp is taken
+                    }
+                }
+            } else if (is(bytes, words, 0, MGET)) {
+                if (count >= 2) {
+                    part.tick(count - 1);
+                }
+            } else if (is(bytes, words, 0, MGET_AT)) {
+                // each user is read like get(key, time), once time is not passed for one of them, it's not passed for any of them
+                long time = time(bytes, words, 1);
+                if (count >= 3 && time >= 0) {
+                    for (int w = 2; w < count; w++) {
+                        readAt(part, time, user(bytes, words, w, userIndex, part), put);
+                    }
+                }
+            } else if (is(bytes, words, 0, WATCH) && end - begin > WATCH.length) {
+                part.error = offset + from + begin; // a watch never ends
+                break;
+            }
+            begin = next;
+        }
+        part.group();
+        return part;
+    }
+
+    /**
+     * method to add a read at a time, a read of a user never put can't take a timestamp
+     *
+     * @param part: the part
+     * @param time: time of read
+     * @param user: index of user in names
+     * @param put: users put earlier in this part
+     */
+    private static void readAt(Part part, long time, int user, BitSet put) {
+        part.add((byte) (READ_AT | (put.get(user) ? KNOWN : 0)), user, (int) time);
+    }
+
+    /**
+     * method to find index of a user in names of a part, adding it if it's new in this part
+     *
+     * @param bytes: bytes of part
+     * @param words: start and end of each word of line
+     * @param w: index of word of user
+     * @param userIndex: index of each user in names
+     * @param part: the part
+     * @return index of user
+     */
+    private static int user(byte[] bytes, int[] words, int w, NameTable userIndex, Part part) {
+        int index = userIndex.find(words[w * 2], words[w * 2 + 1]);
+        if (index < 0) {
+            index = part.names.size();
+            userIndex.add(words[w * 2], words[w * 2 + 1], index);
+            part.names.add(word(bytes, words, w));
+        }
+        return index;
+    }
+
+    /**
+     * method to read a word of line
+     *
+     * @param bytes: bytes of part
+     * @param words: start and end of each word of line
+     * @param w: index of word
+     * @return the word
+     */
+    private static String word(byte[] bytes, int[] words, int w) {
+        return new String(bytes, words[w * 2], words[w * 2 + 1] - words[w * 2], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * method to check if a word of line is a command
+     *
+     * @param bytes: bytes of part
+     * @param words: start and end of each word of line
+     * @param w: index of word
+     * @param command: name of command
+     * @return true if they are the same
+     */
+    private static boolean is(byte[] bytes, int[] words, int w, byte[] command) {
+        return Arrays.equals(bytes, words[w * 2], words[w * 2 + 1], command, 0, command.length);
+    }
+
+    /**
+     * method to read a time the same way as Server checks it: only digits, within int range
+     *
+     * @param bytes: bytes of part
+     * @param words: start and end of each word of line
+     * @param w: index of word
+     * @return the time, -1 if it's not a valid time
+     */
+    private static long time(byte[] bytes, int[] words, int w) {
+        int from = words[w * 2];
+        int to = words[w * 2 + 1];
+        if (from == to) {
+            return -1;
+        }
+        long time = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                return -1;
+            }
+            time = time * 10 + (bytes[i] - '0');
+            if (time > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return time;
+    }
+}
@@ -0,0 +1,352 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Feed of changes on Service in timestamp order, read by followers replicating the store, and by watchers of single users.
+ *
+ * A writer takes its timestamp and publishes its change while holding the monitor of this feed, so changes are published in
+ * timestamp order, and once a timestamp is read under the monitor, every change before it is already published.
+ * Without subscribers, writers take timestamps without the monitor: a new subscriber first makes writers publish by join(),
+ * then waits for the locks of users it reads, so every writer which took a timestamp without the monitor is done before it subscribes.
+ * Each subscriber has its own bounded queue, a subscriber falling too far behind is closed instead of slowing down writers.
+ * Watchers are kept by user, so a change is only offered to followers and watchers of its own user.
+ */
+public class ChangeFeed {
+
+    // runs overflow actions of subscriptions, e.g. closing a watcher's client, so they never run under locks held by writers
+    private static final ExecutorService OVERFLOWS = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "feed-overflow");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Subscription[] subscribers = new Subscription[0]; // open subscriptions of whole store, replaced as a whole, guarded by this
+    private volatile Map<String, Subscription[]> watchers = Collections.emptyMap(); // open subscriptions of each user, replaced as a whole, guarded by this
+    private volatile boolean publishing; // true while there's a subscriber or one is joining, writers only take the monitor then, guarded by this
+    private int joining; // subscribers between join() and subscribing, guarded by this
+    private long dropped; // subscriptions of whole store closed because their queue was full, guarded by this
+    private long watchersDropped; // subscriptions of users closed because their queue was full, guarded by this
+
+    /**
+     * A change of store, or a heartbeat telling the current timestamp
+     */
+    static class Change {
+        final byte operation; // WriteAheadLog.PUT, DELETE_USER, DELETE_FRIEND, or MARK of a heartbeat
+        final int time; // timestamp of change, or current timestamp of a heartbeat
+        final String userName; // user of change, empty for a heartbeat
+        final String friendName; // friend of change, empty if there isn't
+        final long millis; // wall clock when a heartbeat is made, 0 for a change
+
+        Change(byte operation, int time, String userName, String friendName, long millis) {
+            this.operation = operation;
+            this.time = time;
+            this.userName = userName;
+            this.friendName = friendName;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * Bounded queue of changes of one subscriber
+     */
+    static class Subscription {
+
+        private final ArrayDeque<Change> queue = new ArrayDeque<>(); // changes not taken yet, guarded by this
+        private final int capacity; // max number of changes in queue
+        private final String userName; // the user watched, null for a subscription of whole store
+        private final int from; // the first timestamp published to it
+        private final Runnable overflow; // run once on another thread when queue overflows, e.g. to disconnect a watcher blocked on its client, null if there isn't
+        private boolean closed; // true once it's closed, guarded by this
+        private boolean overflowed; // true if it's closed because queue was full, guarded by this
+        private boolean waiting; // true while reader waits for an empty queue, only then writers wake it up, guarded by this
+
+        Subscription(int capacity, String userName, int from, Runnable overflow) {
+            this.capacity = capacity;
+            this.userName = userName;
+            this.from = from;
+            this.overflow = overflow;
+        }
+
+        /**
+         * method to add a change, the subscription is closed if its queue is full
+         *
+         * @param change: the change
+         * @return false if subscription is closed
+         */
+        synchronized boolean offer(Change change) {
+            if (closed) {
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                closed = overflowed = true;
+                queue.clear(); // it will never be read
+                notifyAll();
+                if (overflow != null) {
+                    OVERFLOWS.execute(overflow); // writer holds its user's lock and monitor of feed, closing a client may block
+                }
+                return false;
+            }
+            queue.add(change);
+            if (waiting) {
+                waiting = false;
+                notifyAll(); // waking reader is a system call, don't do it for every change
+            }
+            return true;
+        }
+
+        /**
+         * method to take changes in order, waiting for the first one
+         *
+         * @param max: max number of changes taken
+         * @param timeoutMillis: max milliseconds to wait
+         * @return changes taken, empty if none comes in time
+         * @throws InterruptedException if thread is interrupted while waiting
+         * @throws IllegalStateException if subscription is closed
+         */
+        synchronized List<Change> poll(int max, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (queue.isEmpty() && !closed) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return new ArrayList<>();
+                }
+                waiting = true;
+                wait(left);
+            }
+            waiting = false;
+            if (closed) {
+                throw new IllegalStateException(overflowed ? "subscriber fell behind by " + capacity + " changes" : "subscription closed");
+            }
+            List<Change> changes = new ArrayList<>(Math.min(max, queue.size()));
+            while (changes.size() < max && !queue.isEmpty()) {
+                changes.add(queue.poll());
+            }
+            return changes;
+        }
+
+        /**
+         * method to get the first timestamp published to this subscription, changes before it are not in its queue
+         *
+         * @return timestamp
+         */
+        int getFrom() {
+            return from;
+        }
+
+        /**
+         * method to get number of changes waiting
+         *
+         * @return size of queue
+         */
+        synchronized int backlog() {
+            return queue.size();
+        }
+
+        /**
+         * method to check if it's closed because its queue was full
+         *
+         * @return true if subscriber fell behind
+         */
+        synchronized boolean overflowed() {
+            return overflowed;
+        }
+
+        /**
+         * method to close this subscription, a waiting reader gets an exception
+         */
+        synchronized void close() {
+            closed = true;
+            queue.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * method to check if writers should take timestamps under the monitor and publish, read without the monitor
+     *
+     * @return true if there's a subscriber, or one is joining
+     */
+    boolean isPublishing() {
+        return publishing;
+    }
+
+    /**
+     * method to make writers publish before subscribing, caller should then wait for writers of users it reads by their locks,
+     * since a writer may have read isPublishing() just before, and subscribe by subscribe() or watch() after
+     */
+    synchronized void join() {
+        joining++;
+        publishing = true;
+    }
+
+    /**
+     * method to check if anyone reads this feed, a change is only made when someone does
+     *
+     * @return true if there's an open subscription
+     */
+    boolean hasSubscribers() {
+        return subscribers.length > 0 || !watchers.isEmpty();
+    }
+
+    /**
+     * method to publish a change to all subscribers, caller should hold the monitor of this feed since it took the timestamp
+     *
+     * @param change: the change
+     */
+    void publish(Change change) {
+        for (Subscription subscription : subscribers) {
+            if (!subscription.offer(change)) {
+                remove(subscription);
+            }
+        }
+        Subscription[] watching = watchers.isEmpty() ? null : watchers.get(change.userName);
+        if (watching != null) {
+            for (Subscription subscription : watching) {
+                if (!subscription.offer(change)) {
+                    remove(subscription);
+                }
+            }
+        }
+    }
+
+    /**
+     * method to add a subscriber after join(), caller should hold the monitor of this feed, every change published after it goes into its queue
+     *
+     * @param capacity: max number of changes waiting in its queue
+     * @param from: current timestamp, the first one published to it
+     * @return the subscription
+     */
+    Subscription subscribe(int capacity, int from) {
+        joining--;
+        Subscription subscription = new Subscription(capacity, null, from, null);
+        Subscription[] next = Arrays.copyOf(subscribers, subscribers.length + 1);
+        next[subscribers.length] = subscription;
+        subscribers = next;
+        return subscription;
+    }
+
+    /**
+     * method to add a watcher of a user after join(), caller should hold the monitor of this feed, every change of the user published after it
+     * goes into its queue
+     *
+     * @param userName: the user watched
+     * @param capacity: max number of changes waiting in its queue
+     * @param from: current timestamp, the first one published to it
+     * @param overflow: run once on another thread if its queue overflows, null if there isn't
+     * @return the subscription
+     */
+    Subscription watch(String userName, int capacity, int from, Runnable overflow) {
+        joining--;
+        Subscription subscription = new Subscription(capacity, userName, from, overflow);
+        Subscription[] watching = watchers.getOrDefault(userName, new Subscription[0]);
+        Subscription[] next = Arrays.copyOf(watching, watching.length + 1);
+        next[watching.length] = subscription;
+        Map<String, Subscription[]> nextWatchers = new HashMap<>(watchers);
+        nextWatchers.put(userName, next);
+        watchers = nextWatchers;
+        return subscription;
+    }
+
+    /**
+     * method to close a subscription and stop publishing to it
+     *
+     * @param subscription: an open subscription
+     */
+    synchronized void unsubscribe(Subscription subscription) {
+        subscription.close();
+        remove(subscription);
+    }
+
+    /**
+     * method to close all subscriptions of whole store, e.g. when store is changed without changes of this feed, so followers start over.
+     * Watchers are left open, users moved away are told by their own readers
+     */
+    synchronized void closeAll() {
+        for (Subscription subscription : subscribers) {
+            subscription.close();
+        }
+        subscribers = new Subscription[0];
+        publishing = joining > 0 || hasSubscribers();
+    }
+
+    /**
+     * method to remove a closed subscription, caller should hold the monitor of this feed
+     *
+     * @param subscription: the subscription
+     */
+    private void remove(Subscription subscription) {
+        if (subscription.userName != null) {
+            removeWatcher(subscription);
+        } else {
+            List<Subscription> next = new ArrayList<>(Arrays.asList(subscribers));
+            if (next.remove(subscription)) {
+                subscribers = next.toArray(new Subscription[0]);
+                if (subscription.overflowed()) {
+                    dropped++;
+                }
+            }
+        }
+        publishing = joining > 0 || hasSubscribers(); // the last one is gone, writers stop taking the monitor
+    }
+
+    /**
+     * method to remove a closed watcher, caller should hold the monitor of this feed
+     *
+     * @param subscription: the watcher
+     */
+    private void removeWatcher(Subscription subscription) {
+        Subscription[] watching = watchers.get(subscription.userName);
+        if (watching == null) {
+            return;
+        }
+        List<Subscription> next = new ArrayList<>(Arrays.asList(watching));
+        if (next.remove(subscription)) {
+            Map<String, Subscription[]> nextWatchers = new HashMap<>(watchers);
+            if (next.isEmpty()) {
+                nextWatchers.remove(subscription.userName);
+            } else {
+                nextWatchers.put(subscription.userName, next.toArray(new Subscription[0]));
+            }
+            watchers = nextWatchers.isEmpty() ? Collections.emptyMap() : nextWatchers;
+            if (subscription.overflowed()) {
+                watchersDropped++;
+            }
+        }
+    }
+
+    /**
+     * method to read sizes of this feed
+     *
+     * @return <name, value> of subscribers, the longest queue, and subscribers dropped for falling behind, then the same of watchers
+     */
+    synchronized Map<String, Long> stats() {
+        long backlog = 0;
+        for (Subscription subscription : subscribers) {
+            backlog = Math.max(backlog, subscription.backlog());
+        }
+        long watching = 0;
+        long watchBacklog = 0;
+        for (Subscription[] subscriptions : watchers.values()) {
+            watching += subscriptions.length;
+            for (Subscription subscription : subscriptions) {
+                watchBacklog = Math.max(watchBacklog, subscription.backlog());
+            }
+        }
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("feed.subscribers", (long) subscribers.length);
+        values.put("feed.maxBacklog", backlog);
+        values.put("feed.dropped", dropped);
+        values.put("feed.watchers", watching);
+        values.put("feed.watchersMaxBacklog", watchBacklog);
+        values.put("feed.watchersDropped", watchersDropped);
+        return values;
+    }
+}
@@ -1,21 +1,55 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 public class Client {
 
     private int serverPort; // server port number to connect
+    private boolean legacy; // marks if we speak legacy protocol (writeUTF and Java serialization) instead of binary protocol
+
+    private DataOutputStream dos; // legacy: output command to server
+    private ObjectInputStream ois; // legacy: receive results from server
+    private BinaryProtocol protocol; // binary: encode commands and decode results
+    private HashRing nodes; // cluster: all nodes, null to talk to one server
+    private Router router; // cluster: sends each command to nodes of its users
+    private final BlockingQueue<Server.SerialList> routed = new LinkedBlockingQueue<>(); // cluster: results not received yet
 
     /**
      * Constructor
      *
      * @param serverPort: the server port number to connect with server
+     * @param legacy: true to speak legacy protocol, false to speak binary protocol
      */
-    private Client(int serverPort) {
+    private Client(int serverPort, boolean legacy) {
         this.serverPort = serverPort;
+        this.legacy = legacy;
+    }
+
+    /**
+     * Constructor of a client of a cluster
+     *
+     * @param nodes: all nodes of cluster
+     */
+    private Client(HashRing nodes) {
+        this.nodes = nodes;
     }
 
     /**
@@ -23,15 +57,10 @@ public class Client {
      */
     private void start() {
         try {
-            // set up socket to connect to server
-            Socket socket = new Socket("127.0.0.1", serverPort); // initialize a socket
+            // set up connection to server
+            connect();
             System.out.println("Connected server!");
 
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream()); // initialize a dataOutputStream to output command to server
-            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream()); //initialize a objectInputStream to receive results from srever
-
-            dos.writeUTF("Client connected now"); // send a message to server to present a successful connection
-
             // print instructions on terminal
             System.out.println("Please enter an order as format: <operation key value/time> with 1 space between each argument, e.g. put A b, get B 2, del A b, diff A 1 5.");
             System.out.println("If you want to quit, just enter quit.");
@@ -46,16 +75,18 @@ public class Client {
 
                 // quit command, ready to terminate
                 if (order.equals("quit")) {
-                    dos.writeUTF("quit");
+                    send("quit");
+                    flush();
                     System.out.println("Client quitting..."); // output quit info
-                    result = (Server.SerialList) ois.readObject(); // still receive an object from server
+                    result = receive(); // still receive an object from server
                     System.out.println(result.signal); // make user server receive quit command, and quit together
                     break;
                 }
 
                 // pre-decide if it's an invalid order
                 String command = order.split(" ")[0];
-                if (!command.equals("get") && !command.equals("put") && !command.equals("del") && !command.equals("diff")) {
+                if (!command.equals("get") && !command.equals("put") && !command.equals("del") && !command.equals("diff") && !command.equals("stats")
+                        && !command.equals("history") && !command.equals("mget") && !command.equals("mget-at") && !command.equals("watch")) {
                     System.out.println("Invalid input!");
                     System.out.println("Please enter an order as format: <operation key value/time> with 1 space between each argument, e.g. put A b, get B 2, del A b, diff A 1 5.");
                     System.out.println("If you want to quit, just enter quit.");
@@ -64,13 +95,30 @@ public class Client {
 
                 // System.out.println("Command is: " + order + ", and results are: "); // too many info printed
 
-                dos.writeUTF(order); // send order to server
+                send(order); // send order to server
+                flush();
 
                 // receive result from server
-                result =  (Server.SerialList) ois.readObject(); // receive result from server
+                result = receive(); // receive result from server
                 List<String> friendList = result.getList(); // get friends list, attention it may be empty
                 System.out.print(result.signal); // print result of operation, success or not
-                if (result.hasList) {
+                while (result.status == Server.SerialList.MORE) {
+                    // a chunk of history or watch, print its events and wait for the next one, a watch goes on until client is stopped
+                    for (String line : friendList) {
+                        System.out.print(System.lineSeparator() + line);
+                    }
+                    result = receive();
+                    friendList = result.getList();
+                    if (result.status != Server.SerialList.MORE && result.status != Server.SerialList.SUCCESS) {
+                        System.out.print(System.lineSeparator() + result.signal); // history stops in the middle
+                    }
+                }
+                if (result.hasList && (command.equals("stats") || command.equals("history") || command.startsWith("mget") || command.equals("watch"))) {
+                    // one metric, event or user each line
+                    for (String line : friendList) {
+                        System.out.print(System.lineSeparator() + line);
+                    }
+                } else if (result.hasList) {
                     // if this operation requires output friends list
                     printFriendList(friendList);
                 }
@@ -79,34 +127,230 @@ public class Client {
 
             // close stream and socket
             sc.close();
-            dos.close();
-            socket.close();
+            close();
 
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * method to connect server with chosen protocol
+     *
+     * @throws IOException if server can not be connected
+     */
+    private void connect() throws IOException {
+        if (nodes != null) {
+            router = new Router(nodes); // nodes are connected when they are first used
+        } else if (legacy) {
+            Socket socket = new Socket("127.0.0.1", serverPort); // initialize a socket
+            dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())); // initialize a dataOutputStream to output command to server
+            ois = new ObjectInputStream(socket.getInputStream()); //initialize a objectInputStream to receive results from srever
+            dos.writeUTF("Client connected now"); // send a message to server to present a successful connection
+            dos.flush();
+        } else {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", serverPort)); // initialize a channel
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // commands are buffered and sent as a whole
+            protocol = new BinaryProtocol(channel);
+            protocol.writeMagic(); // tell server we speak binary protocol
+            protocol.readGreeting();
+        }
+    }
+
+    /**
+     * method to run this client in batch mode: stream all commands of a file to server without waiting for results,
+     * and write results into another file in the same order, one line for each command
+     *
+     * @param inputFile: file of commands, one command each line, it stops at quit
+     * @param outputFile: file of results
+     * @param window: max number of commands sent but not answered yet
+     */
+    private void batch(String inputFile, String outputFile, int window) {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(inputFile), StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+            connect();
+            Semaphore inFlight = new Semaphore(window); // permits of commands to be sent
+            long start = System.nanoTime();
+
+            // a sender thread streams commands, server answers them in order
+            Thread sender = new Thread(() -> {
+                try {
+                    String order;
+                    while ((order = reader.readLine()) != null && !order.equals("quit")) {
+                        if (order.isEmpty()) {
+                            continue;
+                        }
+                        if (!inFlight.tryAcquire()) {
+                            flush(); // window is full, send what we have and wait for results
+                            inFlight.acquire();
+                        }
+                        send(order); // invalid commands are sent as well, server answers them in order
+                    }
+                    // quit at last, its result tells receiver that everything is answered
+                    send("quit");
+                    flush();
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }, "sender");
+            sender.start();
+
+            // receive results in order of commands
+            long count = 0;
+            while (true) {
+                Server.SerialList result = receive();
+                if (result.status == Server.SerialList.QUIT) {
+                    break;
+                }
+                if (result.status == Server.SerialList.MORE) {
+                    // a chunk of history, its values are written at once, and the rest of them follow in the same line
+                    writer.write(result.signal + "{" + String.join(", ", result.getList()));
+                    Server.SerialList chunk;
+                    String separator = result.getList().isEmpty() ? "" : ", ";
+                    while ((chunk = receive()).status == Server.SerialList.MORE) {
+                        writer.write(chunk.getList().isEmpty() ? "" : separator + String.join(", ", chunk.getList()));
+                        separator = ", ";
+                    }
+                    if (chunk.hasList) {
+                        writer.write((chunk.getList().isEmpty() ? "" : separator + String.join(", ", chunk.getList())) + "}");
+                    } else {
+                        writer.write("} " + chunk.signal); // history stops in the middle
+                    }
+                    result = chunk;
+                } else {
+                    writer.write(result.signal); // result of operation, success or not
+                    if (result.hasList) {
+                        writer.write(formatFriendList(result.getList()));
+                    }
+                }
+                inFlight.release();
+                writer.newLine();
+                count++;
+            }
+            sender.join();
+            close();
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d commands done in %.3f seconds, %.0f commands per second%n", count, seconds, count / seconds);
+
+        } catch (IOException | ClassNotFoundException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * method to send a command to server, it may stay in buffer until flush()
+     *
+     * @param order: the command
+     * @throws IOException if it can not be sent
+     */
+    private void send(String order) throws IOException {
+        if (router != null) {
+            routed.addAll(router.execute(order)); // router waits for results of nodes, they are received from queue
+        } else if (legacy) {
+            dos.writeUTF(order);
+        } else {
+            protocol.writeCommand(order);
+        }
+    }
+
+    /**
+     * method to send all buffered commands to server
+     *
+     * @throws IOException if they can not be sent
+     */
+    private void flush() throws IOException {
+        if (router != null) {
+            return; // router sends commands at once
+        }
+        if (legacy) {
+            dos.flush();
+        } else {
+            protocol.flush();
+        }
+    }
+
+    /**
+     * method to receive a result from server
+     *
+     * @return the result
+     * @throws IOException if it can not be received
+     * @throws ClassNotFoundException if legacy result can not be deserialized
+     */
+    private Server.SerialList receive() throws IOException, ClassNotFoundException {
+        if (router != null) {
+            try {
+                return routed.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a result");
+            }
+        }
+        if (legacy) {
+            return (Server.SerialList) ois.readObject();
+        }
+        return protocol.readResult();
+    }
+
+    /**
+     * method to close connection
+     *
+     * @throws IOException if it can not be closed
+     */
+    private void close() throws IOException {
+        if (router != null) {
+            router.close();
+        } else if (legacy) {
+            dos.close();
+            ois.close();
+        } else {
+            protocol.close();
+        }
+    }
+
     /**
      * method to print friends lit
      *
      * @param list: friends list to be printed
      */
     private static void printFriendList(List<String> list) {
-        System.out.print("{");
+        System.out.print(formatFriendList(list));
+    }
+
+    /**
+     * method to format friends list as {a, b, c}
+     *
+     * @param list: friends list to be formatted
+     * @return formatted list
+     */
+    private static String formatFriendList(List<String> list) {
+        StringBuilder sb = new StringBuilder("{");
         // if list is an empty, we should print an empty list
         if (list != null && !list.isEmpty()) {
-            System.out.print(list.get(0));
+            sb.append(list.get(0));
             for (int i = 1; i < list.size(); i++) {
-                System.out.print(", " + list.get(i));
+                sb.append(", ").append(list.get(i));
             }
         }
-        System.out.print("}");
+        return sb.append("}").toString();
     }
 
     public static void main(String[] args) {
-        int serverPort = 5000; // set server port
-        Client client = new Client(serverPort); //define a new client
-        client.start(); // start client
+        // read options as <--name value> pairs
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        int serverPort = Integer.parseInt(options.getOrDefault("--port", "5000")); // set server port, 5000 by default
+        boolean legacy = options.getOrDefault("--protocol", "binary").equals("legacy"); // binary protocol by default
+        // with --nodes <host:port,...>, commands go to nodes of a cluster through a router
+        Client client = options.containsKey("--nodes") ? new Client(HashRing.parse(options.get("--nodes"))) : new Client(serverPort, legacy); //define a new client
+        if (options.containsKey("--batch")) {
+            // batch mode: stream commands of a file and write results into another file
+            String outputFile = options.getOrDefault("--output", options.get("--batch") + ".out");
+            int window = Integer.parseInt(options.getOrDefault("--window", "1024"));
+            client.batch(options.get("--batch"), outputFile, window);
+        } else {
+            client.start(); // start client
+        }
     }
 }
@@ -0,0 +1,619 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A cluster of Servers, users are spread over nodes by HashRing and clients reach them through Router.
+ *
+ * A node is started with the list of all nodes and its own index: java Server --port 6001 --nodes host:6000,host:6001 --node-index 1
+ * It only serves users it owns, others get MOVED. Nodes sync their clocks with each other every CLOCK_INTERVAL, routers keep
+ * their own commands in order across nodes, see Router.
+ *
+ * Adding a node: start it with the new list and --joining true, then java Cluster add host:port --nodes <old list>. Each old node
+ * switches to the new list, so users moving stop being served there, and hands them over with their whole history and timestamps,
+ * then the new node starts serving and old nodes drop them. Only users moving are unavailable meanwhile, routers retry them.
+ * Commands moving users are only taken from a caller showing the --cluster-token of nodes, or from hosts of nodes if they have none.
+ *
+ * java Cluster local runs a local cluster of Server processes on loopback ports: writes through a router, checks that times of
+ * all nodes tell one order, adds a node, and checks that every answer stays the same after users are moved. It exits with 1 on
+ * any problem, e.g. a wrong answer, a node exiting, or a port already taken.
+ */
+public class Cluster {
+
+    static final long CLOCK_INTERVAL = 100; // milliseconds between clock syncs of nodes
+    static final int MAX_CLOCK_SKEW = 1 << 24; // default max timestamps a node's clock is moved forward at once
+    private static final int HANDOFF_CHUNK = 256; // max users in one chunk of handoff
+    private static final int HANDOFF_BYTES = BinaryProtocol.MAX_FRAME / 2; // max encoded bytes of a chunk, import of it fits in a frame
+
+    /**
+     * Membership of a Server in a cluster: which users it owns, commands on users hold a read lock, switching ring holds the write lock
+     */
+    static class Node {
+
+        private final String self; // <host:port> of this node
+        private volatile HashRing ring; // all nodes
+        private volatile int index; // index of this node in ring
+        private volatile boolean joining; // true until users moved in are all here, nothing is served before
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // commands on users vs. switching ring
+
+        /**
+         * Constructor
+         *
+         * @param ring: all nodes
+         * @param index: index of this node in ring
+         * @param joining: true if users are moved in before it serves anything
+         */
+        Node(HashRing ring, int index, boolean joining) {
+            this.ring = ring;
+            this.index = index;
+            this.self = ring.getNodes().get(index);
+            this.joining = joining;
+        }
+
+        /**
+         * method to check if a command works on users
+         *
+         * @param input: words of command
+         * @return true if it has users to check
+         */
+        static boolean isKeyed(String[] input) {
+            switch (input[0]) {
+                case "put":
+                case "get":
+                case "del":
+                case "diff":
+                case "history":
+                case "mget":
+                    return input.length >= 2;
+                case "mget-at":
+                    return input.length >= 3;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * method to check if a command moves users between nodes, only peers may send it
+         *
+         * @param operation: the first word of command
+         * @return true for handoff, import, joined and drop-moved
+         */
+        static boolean movesUsers(String operation) {
+            switch (operation) {
+                case "handoff":
+                case "import":
+                case "joined":
+                case "drop-moved":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * method to check if an address is a host of some node, used to trust callers when nodes have no cluster token
+         *
+         * @param address: address of caller
+         * @return true if a node of ring lives there
+         */
+        boolean isPeerHost(InetAddress address) {
+            for (String node : ring.getNodes()) {
+                try {
+                    for (InetAddress host : InetAddress.getAllByName(node.substring(0, node.lastIndexOf(':')))) {
+                        if (host.equals(address)) {
+                            return true;
+                        }
+                    }
+                } catch (UnknownHostException e) {
+                    // a node can't be resolved now, it's not the caller
+                }
+            }
+            return false;
+        }
+
+        /**
+         * method to let a command on users in, ring isn't switched until it's done
+         *
+         * @param input: words of a keyed command
+         * @return read lock held by caller, null if some user isn't owned by this node, then no lock is held
+         */
+        Lock admit(String[] input) {
+            Lock read = lock.readLock();
+            read.lock();
+            if (joining) {
+                read.unlock();
+                return null;
+            }
+            int first = input[0].equals("mget-at") ? 2 : 1;
+            int last = input[0].startsWith("mget") ? input.length : 2;
+            for (int i = first; i < last; i++) {
+                if (!owns(input[i])) {
+                    read.unlock();
+                    return null;
+                }
+            }
+            return read;
+        }
+
+        /**
+         * method to check if a user lives on this node
+         *
+         * @param userName: the user
+         * @return true if this node owns it
+         */
+        boolean owns(String userName) {
+            return ring.owner(userName) == index;
+        }
+
+        /**
+         * method to switch to a new ring, after commands running on users are done
+         *
+         * @param next: new ring having this node
+         * @throws IllegalArgumentException if this node isn't in it
+         */
+        void switchRing(HashRing next) {
+            int nextIndex = next.getNodes().indexOf(self);
+            if (nextIndex < 0) {
+                throw new IllegalArgumentException(self + " is not in " + next);
+            }
+            lock.writeLock().lock();
+            try {
+                ring = next;
+                index = nextIndex;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * method to start serving users once all of them are moved in
+         */
+        void joined() {
+            joining = false;
+        }
+
+        /**
+         * method to get all nodes
+         *
+         * @return ring used now
+         */
+        HashRing getRing() {
+            return ring;
+        }
+    }
+
+    /**
+     * method to add a node to a cluster and move users it owns to it, the node is started with the new list and joining
+     *
+     * @param old: nodes before
+     * @param added: <host:port> of new node
+     * @param token: cluster token of nodes, null if they trust their hosts instead
+     * @return number of users moved
+     * @throws IOException if a node can not be reached, or fails
+     */
+    static long add(HashRing old, String added, String token) throws IOException {
+        List<String> nodes = new ArrayList<>(old.getNodes());
+        nodes.add(added); // old nodes keep their indexes
+        HashRing next = new HashRing(nodes);
+        long[] moved = new long[1];
+        try (Router router = new Router(next, token)) {
+            router.sync(0); // every node is reachable, and the new node's clock is not behind
+
+            // 1. each old node stops serving users moving, and hands them over in chunks, each chunk goes to new node at once
+            for (String node : old.getNodes()) {
+                router.stream(node, "handoff " + next, chunk -> {
+                    if (chunk.status != Server.SerialList.MORE && chunk.status != Server.SerialList.SUCCESS) {
+                        throw new IOException("Handoff of " + node + " failed: " + chunk.signal);
+                    }
+                    if (!chunk.getList().isEmpty()) {
+                        Server.SerialList imported = router.call(added, "import " + String.join(" ", chunk.getList())).get(0);
+                        if (imported.status != Server.SerialList.SUCCESS) {
+                            throw new IOException("Import into " + added + " failed: " + imported.signal);
+                        }
+                        moved[0] += chunk.getList().size();
+                    }
+                });
+            }
+
+            // 2. new node starts serving, old nodes forget users moved
+            check(added, router.call(added, "joined").get(0));
+            for (String node : old.getNodes()) {
+                check(node, router.call(node, "drop-moved").get(0));
+            }
+        }
+        return moved[0];
+    }
+
+    /**
+     * method to check the result of a command moving users
+     *
+     * @param node: <host:port> of node
+     * @param result: result of command
+     * @throws IOException if it failed
+     */
+    private static void check(String node, Server.SerialList result) throws IOException {
+        if (result.status != Server.SerialList.SUCCESS) {
+            throw new IOException(node + " failed: " + result.signal);
+        }
+    }
+
+    /**
+     * method to hand over users this node doesn't own under a new ring, the node switches to it first
+     *
+     * @param node: membership of this node
+     * @param service: store of this node
+     * @param next: new ring
+     * @param writer: gets chunks of encoded users, chunks before the last one have status MORE
+     * @throws IOException if a chunk can not be sent
+     */
+    static void handoff(Node node, Service service, HashRing next, Server.ChunkWriter writer) throws IOException {
+        node.switchRing(next); // users moving are not changed from now on
+        List<String> chunk = new ArrayList<>();
+        long bytes = 0; // encoded bytes of chunk
+        for (String userName : service.userNames()) {
+            if (node.owns(userName)) {
+                continue;
+            }
+            String user = Base64.getEncoder().encodeToString(service.encodeMovedUser(userName));
+            // a chunk is sent before it's too long for a frame, a user longer than that alone fails the handoff
+            if (chunk.size() == HANDOFF_CHUNK || !chunk.isEmpty() && bytes + user.length() > HANDOFF_BYTES) {
+                Server.SerialList result = new Server.SerialList(Server.SerialList.MORE, true);
+                result.setList(chunk);
+                writer.write(result);
+                chunk = new ArrayList<>();
+                bytes = 0;
+            }
+            chunk.add(user);
+            bytes += user.length() + 1;
+        }
+        Server.SerialList result = new Server.SerialList(Server.SerialList.SUCCESS, true);
+        result.setList(chunk);
+        writer.write(result);
+    }
+
+    /**
+     * method to start a node of a local cluster as a new process
+     *
+     * @param ring: all nodes
+     * @param index: index of the node
+     * @param joining: true if it's added later
+     * @param dir: data directory, null to keep store in memory
+     * @param hotHistory: latest timestamps kept in memory with a data directory
+     * @param token: cluster token of nodes
+     * @return the process, its output goes to node-<index>.log in working directory
+     * @throws IOException if it can not be started
+     */
+    private static Process start(HashRing ring, int index, boolean joining, Path dir, int hotHistory, String token) throws IOException {
+        String node = ring.getNodes().get(index);
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", System.getProperty("java.class.path"), "Server",
+                "--port", node.substring(node.lastIndexOf(':') + 1), "--nodes", ring.toString(), "--node-index", String.valueOf(index),
+                "--joining", String.valueOf(joining), "--cluster-token", token));
+        if (dir != null) {
+            command.addAll(Arrays.asList("--data-dir", dir.resolve("node-" + index).toString(),
+                    "--hot-history", String.valueOf(hotHistory), "--spill-interval", "1"));
+        }
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(Paths.get("node-" + index + ".log").toFile()).start();
+    }
+
+    /**
+     * method to check that nothing listens on ports of a local cluster yet, otherwise a node failing to start there would be
+     * replaced by whatever listens, e.g. a node left by an earlier run
+     *
+     * @param nodes: <host:port> of all nodes
+     * @throws IllegalStateException if a port is taken
+     */
+    private static void checkFree(List<String> nodes) {
+        for (String node : nodes) {
+            int colon = node.lastIndexOf(':');
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))), 200);
+            } catch (IOException e) {
+                continue; // nobody there
+            }
+            throw new IllegalStateException("Port of " + node + " is taken, stop what listens there or choose another --port");
+        }
+    }
+
+    /**
+     * method to wait until every node of a router is up
+     *
+     * @param router: router of the nodes
+     * @param processes: processes of all nodes started so far, node i is started by processes[i]
+     * @throws InterruptedException if it's interrupted
+     * @throws IllegalStateException if a node exits, or nodes are not up in 10 seconds
+     */
+    private static void await(Router router, List<Process> processes) throws InterruptedException {
+        for (int tries = 0; ; tries++) {
+            for (int i = 0; i < processes.size(); i++) {
+                if (!processes.get(i).isAlive()) {
+                    throw new IllegalStateException("Node " + i + " exited with " + processes.get(i).exitValue() + ", see node-" + i + ".log");
+                }
+            }
+            try {
+                router.sync(0);
+                return;
+            } catch (IOException e) {
+                if (tries == 100) {
+                    throw new IllegalStateException("Nodes are not up: " + e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * method to check that times of all nodes tell one order: changes done one by one through a router are found by history
+     * commands on their owners in the same order of timestamps, and no 2 users share a timestamp
+     *
+     * @param router: router of cluster
+     * @param users: number of users
+     * @param changes: user of each change having events, in order
+     * @return number of problems found
+     * @throws IOException if a node can not be reached
+     */
+    private static int checkOrder(Router router, int users, List<String> changes) throws IOException {
+        int end = router.sync(0) - 1;
+        Map<Integer, String> owners = new HashMap<>(); // user of each timestamp having a change
+        int problems = 0;
+        for (int u = 0; u < users; u++) {
+            String userName = "user" + u;
+            for (Server.SerialList chunk : router.execute("history " + userName + " 0 " + end)) {
+                if (!chunk.hasList) {
+                    continue; // user has never been changed
+                }
+                for (String event : chunk.getList()) {
+                    int time = Integer.parseInt(event.substring(event.lastIndexOf(' ') + 1));
+                    String other = owners.put(time, userName);
+                    if (other != null && !other.equals(userName)) {
+                        problems++; // 2 nodes gave out the same timestamp
+                    }
+                }
+            }
+        }
+        List<Integer> times = new ArrayList<>(owners.keySet());
+        times.sort(null);
+        List<String> order = new ArrayList<>();
+        for (int time : times) {
+            order.add(owners.get(time));
+        }
+        if (!order.equals(changes)) {
+            problems++;
+            System.out.println("Changes in order of timestamps differ from changes in order of being done");
+        }
+        return problems;
+    }
+
+    /**
+     * method to read answers of read commands through a router
+     *
+     * @param router: router of cluster
+     * @param commands: read commands
+     * @return one line for each command, chunks of history are joined
+     * @throws IOException if a node can not be reached
+     */
+    private static List<String> answers(Router router, List<String> commands) throws IOException {
+        List<String> answers = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            StringBuilder answer = new StringBuilder();
+            for (Server.SerialList result : router.execute(command)) {
+                answer.append(result.line());
+            }
+            answers.add(answer.toString());
+        }
+        return answers;
+    }
+
+    /**
+     * method to run a local cluster, write through a router, add a node, and check everything stays the same
+     *
+     * @param options: --nodes, --port, --users, --ops, --data-dir, --hot-history
+     * @return number of problems found
+     * @throws Exception if the cluster fails
+     */
+    private static int local(Map<String, String> options) throws Exception {
+        int size = Integer.parseInt(options.getOrDefault("--nodes", "3"));
+        int port = Integer.parseInt(options.getOrDefault("--port", "6000"));
+        int users = Integer.parseInt(options.getOrDefault("--users", "1000"));
+        int ops = Integer.parseInt(options.getOrDefault("--ops", "50000"));
+        int hotHistory = Integer.parseInt(options.getOrDefault("--hot-history", "10000"));
+        Path dir = options.containsKey("--data-dir") ? Paths.get(options.get("--data-dir")) : null;
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i <= size; i++) {
+            nodes.add("127.0.0.1:" + (port + i));
+        }
+        HashRing ring = new HashRing(nodes.subList(0, size));
+        HashRing grown = new HashRing(nodes);
+        String token = Long.toHexString(new SecureRandom().nextLong()); // only this run moves users of its nodes
+        checkFree(nodes);
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+        for (int i = 0; i < size; i++) {
+            processes.add(start(ring, i, false, dir, hotHistory, token));
+        }
+
+        int problems = 0;
+        SplittableRandom random = new SplittableRandom(42);
+        List<String> changes = new ArrayList<>(); // user of each change having events
+        Map<String, Set<String>> friends = new HashMap<>(); // friends of each user now
+        try (Router router = new Router(ring)) {
+            await(router, processes);
+
+            // 1. random changes one by one through router
+            long start = System.nanoTime();
+            write(router, random, users, ops, changes, friends);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d changes on %d nodes in %.3f seconds, %.0f per second%n", ops, size, seconds, ops / seconds);
+
+            // 2. times of nodes tell one order
+            int disorder = checkOrder(router, users, changes);
+            System.out.println("Order of changes across nodes: " + (disorder == 0 ? "same as done" : disorder + " problems"));
+            problems += disorder;
+
+            // 3. answers before a node is added
+            int end = router.sync(0) - 1;
+            List<String> reads = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                String userName = "user" + random.nextInt(users);
+                int time1 = random.nextInt(end + 1);
+                int time2 = time1 + random.nextInt(end - time1 + 1);
+                reads.add(i % 3 == 0 ? "get " + userName + " " + time1 : i % 3 == 1 ? "diff " + userName + " " + time1 + " " + time2
+                        : "history " + userName + " " + time1 + " " + time2);
+            }
+            reads.add("mget-at " + end / 2 + " user0 user1 user2 user3 user4 user5 user6 user7 user8 user9");
+            List<String> before = answers(router, reads);
+
+            // 4. add a node, users it owns move to it
+            processes.add(start(grown, size, true, dir, hotHistory, token));
+            try (Router waiting = new Router(new HashRing(nodes.subList(size, size + 1)))) {
+                await(waiting, processes);
+            }
+            start = System.nanoTime();
+            long moved = add(ring, nodes.get(size), token);
+            System.out.printf("Node added, %d of %d users moved in %.3f seconds%n", moved, users, (System.nanoTime() - start) / 1e9);
+
+            // 5. same answers through a router still using old nodes, it follows users moved
+            List<String> after = answers(router, reads);
+            int changed = 0;
+            for (int i = 0; i < reads.size(); i++) {
+                if (!before.get(i).equals(after.get(i))) {
+                    if (changed++ < 3) {
+                        System.out.println("Changed: " + reads.get(i) + "\n  before: " + before.get(i) + "\n  after:  " + after.get(i));
+                    }
+                }
+            }
+            System.out.println("Answers after adding a node: " + (changed == 0 ? "all the same" : changed + " changed") + ", router uses " + router.getRing());
+            problems += changed;
+
+            // 6. users of each node
+            StringBuilder spread = new StringBuilder("Users of each node:");
+            for (String line : router.execute("stats").get(0).getList()) {
+                if (line.contains(" store.users=")) {
+                    spread.append(' ').append(line.substring(line.indexOf('=') + 1));
+                }
+            }
+            System.out.println(spread);
+
+            // 7. more changes, order still holds with the new node
+            write(router, random, users, ops / 4, changes, friends);
+            disorder = checkOrder(router, users, changes);
+            System.out.println("Order of changes after adding a node: " + (disorder == 0 ? "same as done" : disorder + " problems"));
+            problems += disorder;
+
+            // 8. a caller without cluster token can't move users, even from a host of the cluster
+            try (Router stranger = new Router(grown)) {
+                for (String node : nodes) {
+                    Server.SerialList result = stranger.call(node, "drop-moved").get(0);
+                    if (result.status != Server.SerialList.FORBIDDEN) {
+                        problems++;
+                        System.out.println("Node " + node + " answered " + result.line() + " to drop-moved without cluster token");
+                    }
+                }
+            }
+
+            // 9. no node died on the way
+            for (int i = 0; i < processes.size(); i++) {
+                if (!processes.get(i).isAlive()) {
+                    problems++;
+                    System.out.println("Node " + i + " exited with " + processes.get(i).exitValue() + ", see node-" + i + ".log");
+                }
+            }
+        } finally {
+            processes.forEach(Process::destroy);
+        }
+        return problems;
+    }
+
+    /**
+     * method to make random changes one by one, remembering users of successful ones
+     *
+     * @param router: router of cluster
+     * @param random: source of changes
+     * @param users: number of users
+     * @param ops: number of changes
+     * @param changes: user of each change having events is added here
+     * @param friends: friends of each user now, kept here to know which changes have events
+     * @throws IOException if a node can not be reached
+     */
+    private static void write(Router router, SplittableRandom random, int users, int ops, List<String> changes, Map<String, Set<String>> friends) throws IOException {
+        Set<String> failed = new HashSet<>();
+        for (int i = 0; i < ops; i++) {
+            String userName = "user" + random.nextInt(users);
+            String friendName = "friend" + random.nextInt(20);
+            int kind = random.nextInt(10);
+            String command = kind < 7 ? "put " + userName + " " + friendName : kind < 9 ? "del " + userName + " " + friendName : "del " + userName;
+            Server.SerialList result = router.execute(command).get(0);
+            if (result.status == Server.SerialList.SUCCESS) {
+                Set<String> current = friends.computeIfAbsent(userName, name -> new HashSet<>());
+                if (kind < 7 || kind == 9 && !current.isEmpty() || kind < 9 && current.contains(friendName)) {
+                    changes.add(userName); // deleting a user without friends succeeds, but has no event
+                }
+                if (kind < 7) {
+                    current.add(friendName);
+                } else if (kind < 9) {
+                    current.remove(friendName);
+                } else {
+                    current.clear();
+                }
+            } else if (result.status != Server.SerialList.NOT_FRIEND && result.status != Server.SerialList.INVALID_USER
+                    && result.status != Server.SerialList.NO_FRIEND) {
+                failed.add(result.signal);
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new IOException("Changes failed: " + failed);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // read options as <--name value> pairs after the action and its argument
+        String action = args.length > 0 ? args[0] : "";
+        int first = action.equals("add") ? 2 : 1;
+        Map<String, String> options = new HashMap<>();
+        for (int i = first; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        if (action.equals("add") && args.length >= 2 && options.containsKey("--nodes")) {
+            // java Cluster add host:port --nodes <old list>
+            long start = System.nanoTime();
+            long moved = add(HashRing.parse(options.get("--nodes")), args[1], options.get("--cluster-token"));
+            System.out.printf("%d users moved to %s in %.3f seconds%n", moved, args[1], (System.nanoTime() - start) / 1e9);
+        } else if (action.equals("local")) {
+            int problems;
+            try {
+                problems = local(options);
+            } catch (Exception e) {
+                System.out.println("Local cluster: failed, " + e); // nodes are stopped by then
+                System.exit(1);
+                return;
+            }
+            System.out.println(problems == 0 ? "Local cluster: OK" : "Local cluster: " + problems + " problems");
+            System.exit(problems == 0 ? 0 : 1);
+        } else {
+            System.out.println("Usage: java Cluster add <host:port> --nodes <host:port,...> [--cluster-token token]");
+            System.out.println("       java Cluster local [--nodes 3] [--port 6000] [--users 1000] [--ops 50000] [--data-dir dir] [--hot-history 10000]");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Current friends of one user in order of being added.
+ *
+ * Friends' ids are kept in arrays, and a hash map from id to slot finds a friend in O(1) for put and deletion.
+ * A deleted friend leaves an empty slot, slots are compacted once there are more empty slots than friends,
+ * so listing friends is a scan of contiguous arrays.
+ *
+ * It's not thread-safe, caller should hold the user's lock.
+ */
+public class CurrentFriends {
+
+    private static final int EMPTY = -1; // friend of an empty slot
+
+    private int[] friends; // id of friend of each slot, EMPTY if the slot is empty
+    private int[] times; // timestamp of put of each slot
+    private int end; // number of used slots, including empty ones
+    private IntIntMap slots; // slot of each friend: <friend, slot>
+
+    /**
+     * Constructor
+     */
+    public CurrentFriends() {
+        friends = new int[4];
+        times = new int[4];
+        slots = new IntIntMap();
+    }
+
+    /**
+     * method to add a friend after all others, nothing happens if it's already a friend, so it keeps its place
+     *
+     * @param friend: id of the added friend
+     * @param time: timestamp of put
+     * @return true if it was not a friend
+     */
+    public boolean add(int friend, int time) {
+        if (slots.containsKey(friend)) {
+            return false;
+        }
+        if (end == friends.length) {
+            if (end - slots.size() > slots.size()) {
+                compact(); // more than half slots are empty
+            } else {
+                friends = Arrays.copyOf(friends, end * 2);
+                times = Arrays.copyOf(times, end * 2);
+            }
+        }
+        friends[end] = friend;
+        times[end] = time;
+        slots.put(friend, end++);
+        return true;
+    }
+
+    /**
+     * method to remove a friend
+     *
+     * @param friend: id of the deleted friend, -1 for a name never seen is never a friend
+     * @return true if it was a friend
+     */
+    public boolean remove(int friend) {
+        if (friend < 0) {
+            return false;
+        }
+        int slot = slots.remove(friend);
+        if (slot < 0) {
+            return false;
+        }
+        friends[slot] = EMPTY;
+        return true;
+    }
+
+    /**
+     * method to get number of friends
+     *
+     * @return number of friends
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * method to check if there's no friend
+     *
+     * @return true if there's no friend
+     */
+    public boolean isEmpty() {
+        return slots.isEmpty();
+    }
+
+    /**
+     * method to list friends' names in order of being added
+     *
+     * @param dictionary: dictionary of friends' ids
+     * @return names of friends
+     */
+    public List<String> names(StringDictionary dictionary) {
+        List<String> result = new ArrayList<>(slots.size());
+        for (int i = 0; i < end; i++) {
+            if (friends[i] != EMPTY) {
+                result.add(dictionary.name(friends[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * method to list friends' ids in order of being added
+     *
+     * @return ids of friends
+     */
+    public int[] ids() {
+        int[] result = new int[slots.size()];
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (friends[i] != EMPTY) {
+                result[count++] = friends[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * method to list timestamps of friends' puts in order of being added
+     *
+     * @return timestamps of puts
+     */
+    public int[] times() {
+        int[] result = new int[slots.size()];
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (friends[i] != EMPTY) {
+                result[count++] = times[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * method to move friends to the front, filling empty slots
+     */
+    private void compact() {
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (friends[i] != EMPTY) {
+                friends[count] = friends[i];
+                times[count] = times[i];
+                slots.put(friends[count], count);
+                count++;
+            }
+        }
+        end = count;
+    }
+}
@@ -29,6 +29,15 @@ public class Friend {
         return this.name;
     }
 
+    /**
+     * method to get the timestamp of operating this friend
+     *
+     * @return timestamp of this operation
+     */
+    public int getCreatedTime() {
+        return this.createdTime;
+    }
+
     /**
      * method to get the operation on this friend
      *
@@ -0,0 +1,104 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hashing of users onto nodes of a cluster, shared by Router and Server so they always agree on owners.
+ *
+ * Each node is hashed onto a ring at VIRTUAL_NODES points, a user belongs to the node of the first point at or after its own hash.
+ * Adding a node only moves users from the ring's arcs it takes over, about 1 / (n + 1) of all users, each old node gives away a
+ * similar share. Points are kept in a sorted array, so finding an owner is a binary search without any allocation.
+ */
+public class HashRing {
+
+    private static final int VIRTUAL_NODES = 128; // points of each node, more points spread users more evenly
+
+    private final List<String> nodes; // <host:port> of each node, a node's index is its position here
+    private final long[] points; // hashes of points in ascending order
+    private final int[] owners; // index of node of each point
+
+    /**
+     * Constructor
+     *
+     * @param nodes: <host:port> of each node, order matters, every member of the cluster should use the same list
+     */
+    public HashRing(List<String> nodes) {
+        this.nodes = nodes;
+        long[][] all = new long[nodes.size() * VIRTUAL_NODES][];
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                all[i * VIRTUAL_NODES + j] = new long[]{hash(nodes.get(i) + "#" + j), i};
+            }
+        }
+        Arrays.sort(all, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[all.length];
+        owners = new int[all.length];
+        for (int i = 0; i < all.length; i++) {
+            points[i] = all[i][0];
+            owners[i] = (int) all[i][1];
+        }
+    }
+
+    /**
+     * method to parse a ring from a list of nodes
+     *
+     * @param spec: nodes as <host:port,host:port,...>
+     * @return ring of these nodes
+     */
+    public static HashRing parse(String spec) {
+        return new HashRing(Arrays.asList(spec.split(",")));
+    }
+
+    /**
+     * method to find owner of a user
+     *
+     * @param userName: the user
+     * @return index of its node
+     */
+    public int owner(String userName) {
+        int i = Arrays.binarySearch(points, hash(userName));
+        if (i < 0) {
+            i = -i - 1; // the first point after hash
+        }
+        return owners[i == points.length ? 0 : i]; // the ring wraps around
+    }
+
+    /**
+     * method to get nodes of this ring
+     *
+     * @return <host:port> of each node in order of index
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * method to format this ring the same way as parse() reads it
+     *
+     * @return nodes as <host:port,host:port,...>
+     */
+    @Override
+    public String toString() {
+        return String.join(",", nodes);
+    }
+
+    /**
+     * method to hash a string: 64 bits FNV-1a of its UTF-8 bytes, then mixed so close names land far apart on the ring
+     *
+     * @param s: the string
+     * @return its hash
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        // finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e53a6f1cbL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Cursor of history(key, time1, time2): position of the next event of a user in a window of timestamps,
+ * so a long history is read page by page, and the user's lock is only held while reading one page.
+ *
+ * Deleting all friends of a user makes several events on one timestamp, so a position is <timestamp, events of that timestamp already read>.
+ * A cold segment being read is decoded once and kept here for following pages, it's dropped once the segment is replaced by compaction.
+ */
+public class HistoryCursor {
+
+    private final String userName; // the user whose history is read
+    private final int time2; // the last timestamp of window
+    int time; // timestamp of position
+    int seq; // events on time already read
+    boolean started; // true once the first page is read, only the first page takes a timestamp
+    boolean done; // true once all events of window are read
+    HistorySegment segment; // the cold segment being read, null if there isn't
+    HistorySegment.Section section; // section of the user in segment, null if the user has no event in it
+
+    /**
+     * Constructor
+     *
+     * @param userName: the user whose history is read
+     * @param time1: the first timestamp of window
+     * @param time2: the last timestamp of window
+     */
+    public HistoryCursor(String userName, int time1, int time2) {
+        this.userName = userName;
+        this.time = time1;
+        this.time2 = time2;
+    }
+
+    /**
+     * method to get the user whose history is read
+     *
+     * @return name of user
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * method to get the last timestamp of window
+     *
+     * @return timestamp
+     */
+    public int getTime2() {
+        return time2;
+    }
+
+    /**
+     * method to check if all events of window are read
+     *
+     * @return true if there's nothing left
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * method to move position after an event just read
+     *
+     * @param eventTime: timestamp of the event, not smaller than position
+     */
+    void passed(int eventTime) {
+        if (eventTime == time) {
+            seq++;
+        } else {
+            time = eventTime;
+            seq = 1;
+        }
+    }
+
+    /**
+     * method to move position to a later timestamp, all events before it are read
+     *
+     * @param next: a timestamp, nothing happens if it's not after position
+     */
+    void skipTo(int next) {
+        if (next > time) {
+            time = next;
+            seq = 0;
+        }
+    }
+}
@@ -0,0 +1,687 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable on-disk segment of history between 2 timestamps, written when HistoryTier moves cold history out of memory.
+ *
+ * File history-<from>-<to>.seg looks like:
+ * <magic, version, from, to> <one section for each user, in order of name> <block index> <bloom filter> <number of users, position of block index, position of bloom filter, magic>
+ * A section is <length> <name> <base time, number of friends alive at it, {timestamp of put, friend}> <number of events in [from, to), {timestamp, operation, friend}>,
+ * only users with events in [from, to) have a section. Base time is from - 1, or later if retention policy collected events after from,
+ * friends before base time are not known.
+ * Sections are grouped into blocks of about BLOCK_SIZE bytes, block index keeps the first name of each block, so a lookup is
+ * a binary search of block index and a scan of one block. Bloom filter over names skips most segments not having a user.
+ *
+ * File is memory-mapped once opened, it's safe to be read by many threads.
+ */
+public class HistorySegment {
+
+    private static final int MAGIC = 0x4B565347; // "KVSG"
+    private static final int VERSION = 2; // version 1 has no base time, it's from - 1, it's still read
+    private static final int HEADER = 4 + 4 + 4 + 4; // magic, version, from and to
+    private static final int TRAILER = 4 + 8 + 8 + 4; // number of users, position of block index, position of bloom filter and magic
+    private static final int BLOCK_SIZE = 4096; // bytes of sections in a block
+    private static final int BLOOM_BITS = 10; // bits of bloom filter for each user, about 1% false positives
+    private static final int BLOOM_HASHES = 7; // bits set for each user
+    private static final long MAX_SIZE = Integer.MAX_VALUE; // a segment is mapped as one buffer
+    static final long MAX_SECTIONS = 1L << 30; // bytes of sections of a segment, leaving plenty of room for index and bloom filter
+
+    private final Path file; // file of this segment
+    private final int from; // first timestamp of events in it
+    private final int to; // end of timestamps of events in it, exclusive
+    private final ByteBuffer data; // mapped file, only read through duplicates
+    private final int version; // version of file
+    private final int users; // number of sections
+    private final String[] blockNames; // name of the first section of each block
+    private final int[] blockStarts; // position of each block, the last one is position of block index
+    private final long[] bloom; // bits of bloom filter
+
+    /**
+     * Constructor, it maps a segment file and reads its block index and bloom filter
+     *
+     * @param file: segment file
+     * @throws IOException if file can not be read or it's broken
+     */
+    HistorySegment(Path file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER + TRAILER || size > MAX_SIZE) {
+                throw new IOException("Broken history segment: " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // mapping stays valid after channel is closed
+        }
+
+        // 1. check header and trailer
+        ByteBuffer buffer = data.duplicate();
+        int magic = buffer.getInt();
+        version = buffer.getInt();
+        if (magic != MAGIC || version < 1 || version > VERSION) {
+            throw new IOException("Broken history segment header: " + file);
+        }
+        from = buffer.getInt();
+        to = buffer.getInt();
+        buffer.position(data.capacity() - TRAILER);
+        users = buffer.getInt();
+        int indexPosition = (int) buffer.getLong();
+        int bloomPosition = (int) buffer.getLong();
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Broken history segment trailer: " + file);
+        }
+
+        // 2. read block index and bloom filter
+        buffer.position(indexPosition);
+        int blocks = buffer.getInt();
+        blockNames = new String[blocks];
+        blockStarts = new int[blocks + 1];
+        for (int i = 0; i < blocks; i++) {
+            blockNames[i] = readString(buffer);
+            blockStarts[i] = buffer.getInt();
+        }
+        blockStarts[blocks] = indexPosition;
+        buffer.position(bloomPosition);
+        bloom = new long[buffer.getInt()];
+        for (int i = 0; i < bloom.length; i++) {
+            bloom[i] = buffer.getLong();
+        }
+    }
+
+    /**
+     * method to get file of this segment
+     *
+     * @return segment file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * method to get the first timestamp of events in this segment
+     *
+     * @return from
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    /**
+     * method to get end of timestamps of events in this segment
+     *
+     * @return to, exclusive
+     */
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * method to get size of this segment
+     *
+     * @return bytes of file
+     */
+    public long size() {
+        return data.capacity();
+    }
+
+    /**
+     * method to read the whole file, e.g. to copy it to a follower
+     *
+     * @return a read-only view of mapped file
+     */
+    ByteBuffer bytes() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * method to get number of users in this segment
+     *
+     * @return number of sections
+     */
+    public int userCount() {
+        return users;
+    }
+
+    /**
+     * method to find section of a user
+     *
+     * @param userName: the user to find
+     * @return section of this user, null if it has no event in this segment
+     */
+    public Section find(String userName) {
+        // 1. bloom filter says no for most users not in this segment
+        if (!mightContain(bloom, userName)) {
+            return null;
+        }
+
+        // 2. find the last block starting no later than this name
+        int lo = 0;
+        int hi = blockNames.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockNames[mid].compareTo(userName) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int block = lo - 1;
+        if (block < 0) {
+            return null;
+        }
+
+        // 3. scan sections of this block, they are in order of name
+        ByteBuffer buffer = data.duplicate();
+        for (int position = blockStarts[block]; position < blockStarts[block + 1]; ) {
+            buffer.position(position);
+            int length = buffer.getInt();
+            String name = readString(buffer);
+            int compare = name.compareTo(userName);
+            if (compare == 0) {
+                return Section.decode(name, buffer, version, from);
+            } else if (compare > 0) {
+                return null;
+            }
+            position += 4 + length;
+        }
+        return null;
+    }
+
+    /**
+     * method to read sections one by one in order of name, each is decoded only when it's reached
+     *
+     * @return iterator of sections of all users
+     */
+    Iterator<Section> sections() {
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(HEADER);
+        int end = blockStarts[blockStarts.length - 1];
+        return new Iterator<Section>() {
+            @Override
+            public boolean hasNext() {
+                return buffer.position() < end;
+            }
+
+            @Override
+            public Section next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                buffer.getInt(); // length
+                return Section.decode(readString(buffer), buffer, version, from);
+            }
+        };
+    }
+
+    /**
+     * method to merge 2 adjacent segments into one covering both time ranges
+     * A user only in newer segment has no event in older one, so friends alive at newer.from - 1 are also alive at older.from - 1.
+     * A user whose base in newer segment is after older.to has events collected between them, only its newer section is kept.
+     * Events before from are collapsed into base, so the merged segment starts from it, a user left with nothing is dropped.
+     *
+     * @param older: the segment with smaller timestamps
+     * @param newer: the segment starting at older.to, or null to only collapse older
+     * @param from: the first timestamp of events kept, older.from to keep all
+     * @param dir: directory to write the merged segment in
+     * @return the merged segment
+     * @throws IOException if it can not be written
+     */
+    static HistorySegment merge(HistorySegment older, HistorySegment newer, int from, Path dir) throws IOException {
+        Iterator<Section> first = older.sections();
+        Iterator<Section> second = newer == null ? Collections.emptyIterator() : newer.sections();
+        try (Writer writer = new Writer(dir, from, newer == null ? older.to : newer.to)) {
+            Section a = first.hasNext() ? first.next() : null;
+            Section b = second.hasNext() ? second.next() : null;
+            while (a != null || b != null) {
+                int compare = a == null ? 1 : b == null ? -1 : a.user.compareTo(b.user);
+                Section merged;
+                if (compare < 0) {
+                    merged = a;
+                } else if (b.baseTime >= older.to) {
+                    merged = b; // events before its base are collected
+                } else if (compare > 0) {
+                    merged = b.rebase(older.from - 1); // no event in older, so its base is friends since older.from - 1
+                } else {
+                    merged = Section.concat(a, b);
+                }
+                merged = merged.collapse(from);
+                if (merged != null) {
+                    writer.add(merged);
+                }
+                if (compare <= 0) {
+                    a = first.hasNext() ? first.next() : null;
+                }
+                if (compare >= 0) {
+                    b = second.hasNext() ? second.next() : null;
+                }
+            }
+            return writer.finish();
+        }
+    }
+
+    /**
+     * method to get file of a segment
+     *
+     * @param dir: data directory
+     * @param from: the first timestamp of events in it
+     * @param to: end of timestamps of events in it
+     * @return segment file
+     */
+    static Path segmentFile(Path dir, int from, int to) {
+        return dir.resolve(String.format("history-%010d-%010d.seg", from, to));
+    }
+
+    /**
+     * method to check if a name may be added into a bloom filter
+     *
+     * @param bloom: bits of bloom filter
+     * @param name: name to check
+     * @return false if it's surely not added
+     */
+    private static boolean mightContain(long[] bloom, String name) {
+        long hash = hash(name);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = bloomBit(hash, i, (long) bloom.length << 6);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * method to find the i-th bit of a name in bloom filter by double hashing
+     *
+     * @param hash: 64-bit hash of name
+     * @param i: index of hash function
+     * @param bits: number of bits of bloom filter
+     * @return index of bit
+     */
+    private static long bloomBit(long hash, int i, long bits) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+    }
+
+    /**
+     * method to hash a name into 64 bits by FNV-1a, 2 halves of it are used as 2 hash functions
+     *
+     * @param name: name to hash
+     * @return 64-bit hash
+     */
+    private static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29); // low bits of FNV are weak
+    }
+
+    /**
+     * method to write a string as <length, UTF-8 bytes>
+     *
+     * @param out: output to write to
+     * @param s: string to be written
+     * @throws IOException if it can not be written
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * method to read a string encoded as <length, UTF-8 bytes>
+     *
+     * @param buffer: buffer to read from
+     * @return decoded string
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * History of one user in a segment: friends alive when the segment starts, and events in it
+     */
+    static class Section {
+
+        final String user; // name of user
+        final int baseTime; // timestamp of base, from - 1 unless events after from are collected
+        final String[] baseFriends; // friends alive at base time, in order of their puts
+        final int[] baseTimes; // timestamp of put of each friend of base
+        final int[] times; // timestamp of each event, not decreasing
+        final byte[] operations; // KeyHistory.PUT or KeyHistory.DELETE of each event
+        final String[] friends; // friend of each event
+
+        /**
+         * Constructor
+         *
+         * @param user: name of user
+         * @param baseTime: timestamp of base, friends before it are not known
+         * @param baseFriends: friends alive at base time, in order of their puts
+         * @param baseTimes: timestamp of put of each friend of base
+         * @param times: timestamp of each event
+         * @param operations: operation of each event
+         * @param friends: friend of each event
+         */
+        Section(String user, int baseTime, String[] baseFriends, int[] baseTimes, int[] times, byte[] operations, String[] friends) {
+            this.user = user;
+            this.baseTime = baseTime;
+            this.baseFriends = baseFriends;
+            this.baseTimes = baseTimes;
+            this.times = times;
+            this.operations = operations;
+            this.friends = friends;
+        }
+
+        /**
+         * method to find friends at a time by replaying events on base
+         *
+         * @param time: a timestamp not smaller than base time
+         * @return names of friends at time, in order of their puts
+         */
+        List<String> get(int time) {
+            Map<String, Boolean> state = new LinkedHashMap<>(); // keys in order of puts, values are unused
+            for (String friend : baseFriends) {
+                state.put(friend, Boolean.TRUE);
+            }
+            for (int i = 0; i < times.length && times[i] <= time; i++) {
+                if (operations[i] == KeyHistory.PUT) {
+                    state.putIfAbsent(friends[i], Boolean.TRUE); // a friend put again keeps its place
+                } else {
+                    state.remove(friends[i]);
+                }
+            }
+            return new ArrayList<>(state.keySet());
+        }
+
+        /**
+         * method to find the first event on or after a time
+         *
+         * @param time: a specific timestamp
+         * @return index of the first event with timestamp >= time, number of events if there isn't
+         */
+        int find(int time) {
+            int lo = 0;
+            int hi = times.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * method to apply events before a time on base
+         *
+         * @param time: the first timestamp of events kept
+         * @return section with friends at time - 1 and events from time, null if it has neither
+         */
+        Section collapse(int time) {
+            int start = 0;
+            while (start < times.length && times[start] < time) {
+                start++;
+            }
+            if (start == 0) {
+                return this;
+            }
+            Map<String, Integer> state = new LinkedHashMap<>(); // <friend, timestamp of put> in order of puts
+            for (int i = 0; i < baseFriends.length; i++) {
+                state.put(baseFriends[i], baseTimes[i]);
+            }
+            for (int i = 0; i < start; i++) {
+                if (operations[i] == KeyHistory.PUT) {
+                    state.putIfAbsent(friends[i], times[i]);
+                } else {
+                    state.remove(friends[i]);
+                }
+            }
+            if (state.isEmpty() && start == times.length) {
+                return null;
+            }
+            String[] newBase = state.keySet().toArray(new String[0]);
+            int[] newTimes = new int[newBase.length];
+            int i = 0;
+            for (int t : state.values()) {
+                newTimes[i++] = t;
+            }
+            return new Section(user, time - 1, newBase, newTimes, Arrays.copyOfRange(times, start, times.length),
+                    Arrays.copyOfRange(operations, start, times.length), Arrays.copyOfRange(friends, start, times.length));
+        }
+
+        /**
+         * method to move base time earlier, only if there's no event between
+         *
+         * @param time: the new base time
+         * @return section with same friends and events
+         */
+        Section rebase(int time) {
+            return new Section(user, time, baseFriends, baseTimes, times, operations, friends);
+        }
+
+        /**
+         * method to join sections of a user in 2 adjacent segments
+         *
+         * @param older: section in the older segment
+         * @param newer: section in the newer segment
+         * @return section with base of older one and events of both
+         */
+        static Section concat(Section older, Section newer) {
+            int n = older.times.length;
+            int m = newer.times.length;
+            int[] times = Arrays.copyOf(older.times, n + m);
+            System.arraycopy(newer.times, 0, times, n, m);
+            byte[] operations = Arrays.copyOf(older.operations, n + m);
+            System.arraycopy(newer.operations, 0, operations, n, m);
+            String[] friends = Arrays.copyOf(older.friends, n + m);
+            System.arraycopy(newer.friends, 0, friends, n, m);
+            return new Section(older.user, older.baseTime, older.baseFriends, older.baseTimes, times, operations, friends);
+        }
+
+        /**
+         * method to encode this section without its length and name
+         *
+         * @return encoded base and events
+         */
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(baseTime);
+                out.writeInt(baseFriends.length);
+                for (int i = 0; i < baseFriends.length; i++) {
+                    out.writeInt(baseTimes[i]);
+                    writeString(out, baseFriends[i]);
+                }
+                out.writeInt(times.length);
+                for (int i = 0; i < times.length; i++) {
+                    out.writeInt(times[i]);
+                    out.writeByte(operations[i]);
+                    writeString(out, friends[i]);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // never happens on a byte array
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * method to decode base and events of a section
+         *
+         * @param user: name of user, already read
+         * @param buffer: buffer positioned after name
+         * @param version: version of segment
+         * @param from: the first timestamp of events in segment
+         * @return decoded section
+         */
+        static Section decode(String user, ByteBuffer buffer, int version, int from) {
+            int baseTime = version >= 2 ? buffer.getInt() : from - 1;
+            int baseCount = buffer.getInt();
+            String[] baseFriends = new String[baseCount];
+            int[] baseTimes = new int[baseCount];
+            for (int i = 0; i < baseCount; i++) {
+                baseTimes[i] = buffer.getInt();
+                baseFriends[i] = readString(buffer);
+            }
+            int count = buffer.getInt();
+            int[] times = new int[count];
+            byte[] operations = new byte[count];
+            String[] friends = new String[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = buffer.getInt();
+                operations[i] = buffer.get();
+                friends[i] = readString(buffer);
+            }
+            return new Section(user, baseTime, baseFriends, baseTimes, times, operations, friends);
+        }
+    }
+
+    /**
+     * Writer of a new segment, sections are added in order of name, and the file is published by finish()
+     */
+    static class Writer implements AutoCloseable {
+
+        private final Path dir; // data directory
+        private final Path tmp; // file being written
+        private final int from; // first timestamp of events
+        private final int to; // end of timestamps of events
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private long position = HEADER; // bytes written
+        private final List<String> blockNames = new ArrayList<>(); // name of the first section of each block
+        private final List<Long> blockStarts = new ArrayList<>(); // position of each block
+        private long[] hashes = new long[16]; // hash of each name, bloom filter is sized once all names are known
+        private int users; // sections written
+        private String last; // name of the last section
+        private boolean finished;
+
+        /**
+         * Constructor
+         *
+         * @param dir: data directory
+         * @param from: the first timestamp of events
+         * @param to: end of timestamps of events
+         * @throws IOException if file can not be created
+         */
+        Writer(Path dir, int from, int to) throws IOException {
+            this.dir = dir;
+            this.tmp = dir.resolve("history.tmp");
+            this.from = from;
+            this.to = to;
+            channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(from);
+            out.writeInt(to);
+        }
+
+        /**
+         * method to append section of a user
+         *
+         * @param section: section of a user whose name is larger than all names before
+         * @throws IOException if it can not be written or segment is too large
+         */
+        void add(Section section) throws IOException {
+            if (last != null && last.compareTo(section.user) >= 0) {
+                throw new IllegalArgumentException("Sections out of order: " + last + ", " + section.user);
+            }
+            if (blockStarts.isEmpty() || position - blockStarts.get(blockStarts.size() - 1) >= BLOCK_SIZE) {
+                blockNames.add(section.user); // start a new block
+                blockStarts.add(position);
+            }
+            byte[] name = section.user.getBytes(StandardCharsets.UTF_8);
+            byte[] body = section.encode();
+            out.writeInt(4 + name.length + body.length);
+            out.writeInt(name.length);
+            out.write(name);
+            out.write(body);
+            position += 4 + 4 + name.length + body.length;
+            if (position > MAX_SECTIONS) {
+                throw new IOException("History segment is too large, spill cold history more often");
+            }
+            if (users == hashes.length) {
+                hashes = Arrays.copyOf(hashes, users * 2);
+            }
+            hashes[users++] = hash(section.user);
+            last = section.user;
+        }
+
+        /**
+         * method to write block index, bloom filter and trailer, then publish the segment
+         *
+         * @return the written segment
+         * @throws IOException if it can not be written
+         */
+        HistorySegment finish() throws IOException {
+            // 1. block index
+            long indexPosition = position;
+            out.writeInt(blockNames.size());
+            for (int i = 0; i < blockNames.size(); i++) {
+                writeString(out, blockNames.get(i));
+                out.writeInt((int) (long) blockStarts.get(i));
+                position += 4 + blockNames.get(i).getBytes(StandardCharsets.UTF_8).length + 4;
+            }
+            position += 4;
+
+            // 2. bloom filter
+            long[] bloom = new long[Math.max(1, (int) (((long) users * BLOOM_BITS + 63) >>> 6))];
+            long bits = (long) bloom.length << 6;
+            for (int u = 0; u < users; u++) {
+                for (int i = 0; i < BLOOM_HASHES; i++) {
+                    long bit = bloomBit(hashes[u], i, bits);
+                    bloom[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            long bloomPosition = position;
+            out.writeInt(bloom.length);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+
+            // 3. trailer, then publish it
+            out.writeInt(users);
+            out.writeLong(indexPosition);
+            out.writeLong(bloomPosition);
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+            channel.close();
+            finished = true;
+            Path file = segmentFile(dir, from, to);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            return new HistorySegment(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                channel.close();
+                Files.deleteIfExists(tmp); // abandoned
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cold tier of history: HistorySegments on disk, each holding events of all users in a range of timestamps, ranges are adjacent and
+ * don't overlap, the newest one ends at watermark. History before a user's floor lives here, memory only keeps history after it.
+ *
+ * Friends of a user at a cold time are found in the newest segment starting no later than that time + 1 and having this user,
+ * a segment without the user means the user has no event in it, so an older segment tells the same.
+ * Compaction merges adjacent segments in background once there are more than MAX_SEGMENTS, so a query checks a few bloom filters.
+ * Retention collapses the oldest segments below horizon into friends at horizon, so history before it is gone.
+ *
+ * Segments are replaced as a whole list, readers never lock. A replaced segment stays mapped until no reader uses it.
+ */
+public class HistoryTier {
+
+    private static final int MAX_SEGMENTS = 8; // compaction starts when there are more segments
+
+    private final Path dir; // data directory
+    private volatile List<HistorySegment> segments; // segments in order of time range, never changed, only replaced
+
+    /**
+     * Constructor, it opens all segments in a directory
+     * A crash during compaction or retention may leave a merged segment together with the ones it's merged from, the merged one is
+     * deleted if it's covered by them, and they are deleted if they are covered by it.
+     *
+     * @param dir: data directory
+     * @throws IOException if a segment can not be read
+     */
+    public HistoryTier(Path dir) throws IOException {
+        this.dir = dir;
+        Files.deleteIfExists(dir.resolve("history.tmp")); // a segment never finished
+        List<HistorySegment> all = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "history-*.seg")) {
+            for (Path file : files) {
+                all.add(new HistorySegment(file));
+            }
+        }
+        all.sort((a, b) -> {
+            if (a.getFrom() != b.getFrom()) {
+                return Integer.compare(a.getFrom(), b.getFrom());
+            }
+            if ((a.getFrom() == a.getTo()) != (b.getFrom() == b.getTo())) {
+                return a.getFrom() == a.getTo() ? -1 : 1; // a collapsed segment with friends only comes before segments after it
+            }
+            return Integer.compare(b.getTo(), a.getTo()); // wider one first
+        });
+
+        List<HistorySegment> kept = new ArrayList<>();
+        for (HistorySegment segment : all) {
+            if (!kept.isEmpty() && segment.getTo() <= kept.get(kept.size() - 1).getTo()) {
+                Files.deleteIfExists(segment.getFile()); // covered by a merged segment
+            } else {
+                kept.add(segment);
+            }
+        }
+        segments = Collections.unmodifiableList(kept);
+    }
+
+    /**
+     * method to get end of timestamps in this tier, the next segment starts from it
+     *
+     * @return end of the newest segment, 0 if there's no segment
+     */
+    public int watermark() {
+        List<HistorySegment> current = segments;
+        return current.isEmpty() ? 0 : current.get(current.size() - 1).getTo();
+    }
+
+    /**
+     * method to get horizon of this tier, friends before it are collected by retention policy
+     *
+     * @return the oldest timestamp whose friends are still known
+     */
+    public int horizon() {
+        List<HistorySegment> current = segments;
+        return current.isEmpty() ? 0 : Math.max(0, current.get(0).getFrom() - 1);
+    }
+
+    /**
+     * method to get number of segments
+     *
+     * @return number of segments
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * method to get current segments, they stay readable even if they are replaced meanwhile
+     *
+     * @return segments in order of time range
+     */
+    List<HistorySegment> segments() {
+        return segments;
+    }
+
+    /**
+     * method to find friends of a user at a cold time
+     *
+     * @param userName: the user who does get operation
+     * @param time: a timestamp before the user's floor
+     * @return names of friends at time in order of their puts, empty if the user has no event until time, null if it's collected by retention policy
+     */
+    public List<String> get(String userName, int time) {
+        List<HistorySegment> current = segments;
+        for (int i = current.size() - 1; i >= 0; i--) {
+            HistorySegment segment = current.get(i);
+            if (segment.getFrom() - 1 > time) {
+                continue; // starts after time, its base is friends at from - 1
+            }
+            HistorySegment.Section section = segment.find(userName);
+            if (section != null) {
+                return time >= section.baseTime ? section.get(time) : null;
+            }
+        }
+        return time >= horizon() ? new ArrayList<>() : null;
+    }
+
+    /**
+     * method to read a page of events of a user from cursor, in order of timestamp
+     *
+     * @param cursor: position of the next event, it's moved after events read, and to the end of tier if nothing is left
+     * @param to: the last timestamp of events read, before the user's floor
+     * @param limit: max number of events in out
+     * @param out: events read as "put/del friend timestamp"
+     * @return false if events from cursor are collected by retention policy
+     */
+    boolean events(HistoryCursor cursor, int to, int limit, List<String> out) {
+        List<HistorySegment> current = segments;
+        if (current.isEmpty() || cursor.time < current.get(0).getFrom()) {
+            return current.isEmpty() || current.get(0).getFrom() == 0; // the first segment starts later once older ones are collapsed
+        }
+        for (HistorySegment segment : current) {
+            if (segment.getTo() <= cursor.time) {
+                continue; // all read
+            }
+            if (segment.getFrom() > to || out.size() >= limit) {
+                return true;
+            }
+            // 1. decode section once for all pages of this segment
+            if (cursor.segment != segment) {
+                cursor.segment = segment;
+                cursor.section = segment.find(cursor.getUserName());
+            }
+
+            // 2. events from position until page is full
+            HistorySegment.Section section = cursor.section;
+            if (section != null && section.baseTime >= segment.getFrom() && cursor.time <= section.baseTime) {
+                return false; // events of the user after from are collected, before it's spilled
+            }
+            if (section != null) {
+                for (int i = section.find(cursor.time) + cursor.seq; i < section.times.length && section.times[i] <= to; i++) {
+                    if (out.size() >= limit) {
+                        return true;
+                    }
+                    out.add(new Friend(section.times[i], section.operations[i], section.friends[i]).toString());
+                    cursor.passed(section.times[i]);
+                }
+            }
+            cursor.skipTo(segment.getTo()); // events before its end are all in it
+        }
+        return true;
+    }
+
+    /**
+     * method to start writing the next segment, from watermark to a new one
+     *
+     * @param to: end of timestamps of the segment
+     * @return writer of the segment, sections are added in order of name
+     * @throws IOException if it can not be created
+     */
+    HistorySegment.Writer newSegment(int to) throws IOException {
+        return new HistorySegment.Writer(dir, watermark(), to);
+    }
+
+    /**
+     * method to publish a written segment, queries see it from now on
+     *
+     * @param segment: segment starting at watermark
+     */
+    synchronized void add(HistorySegment segment) {
+        List<HistorySegment> next = new ArrayList<>(segments);
+        next.add(segment);
+        segments = Collections.unmodifiableList(next);
+    }
+
+    /**
+     * method to merge adjacent segments until there are at most MAX_SEGMENTS, the pair of least bytes is merged first,
+     * so small recent segments are merged more often than large old ones
+     *
+     * @throws IOException if a merged segment can not be written
+     */
+    synchronized void compact() throws IOException {
+        while (segments.size() > MAX_SEGMENTS) {
+            // 1. find adjacent pair of least bytes
+            List<HistorySegment> current = segments;
+            int pair = -1;
+            long least = HistorySegment.MAX_SECTIONS;
+            for (int i = 0; i + 1 < current.size(); i++) {
+                long size = current.get(i).size() + current.get(i + 1).size();
+                if (size <= least) {
+                    least = size;
+                    pair = i;
+                }
+            }
+            if (pair < 0) {
+                return; // every merged segment would be too large
+            }
+
+            // 2. merge them, publish merged one, then delete old files, readers already holding them keep their mappings
+            HistorySegment older = current.get(pair);
+            HistorySegment newer = current.get(pair + 1);
+            replace(older, newer, HistorySegment.merge(older, newer, older.getFrom(), dir));
+        }
+    }
+
+    /**
+     * method to collapse history before a time, one merge of the oldest segments at a time, readers keep running during it.
+     * A segment crossing that time is left as it is, queries before horizon are refused anyway.
+     *
+     * @param from: the first timestamp of events kept, friends at from - 1 are kept
+     * @throws IOException if a merged segment can not be written
+     */
+    synchronized void collapse(int from) throws IOException {
+        while (!segments.isEmpty()) {
+            HistorySegment first = segments.get(0);
+            if (first.getTo() > from) {
+                return; // not all of it is old enough
+            }
+            if (segments.size() > 1) {
+                HistorySegment second = segments.get(1);
+                replace(first, second, HistorySegment.merge(first, second, Math.min(from, second.getTo()), dir));
+            } else if (first.getFrom() < first.getTo()) {
+                replace(first, null, HistorySegment.merge(first, null, first.getTo(), dir)); // only friends at its end are kept
+            } else {
+                return; // already collapsed
+            }
+        }
+    }
+
+    /**
+     * method to replace 2 adjacent segments by the one merged from them, then delete old files, readers already holding them keep their mappings
+     *
+     * @param older: the older segment
+     * @param newer: the newer segment, or null if only older is replaced
+     * @param merged: the merged segment, it may have same file as newer
+     * @throws IOException if directory can not be forced or old files can not be deleted
+     */
+    private void replace(HistorySegment older, HistorySegment newer, HistorySegment merged) throws IOException {
+        List<HistorySegment> next = new ArrayList<>(segments);
+        int i = next.indexOf(older);
+        next.set(i, merged);
+        if (newer != null) {
+            next.remove(i + 1);
+        }
+        segments = Collections.unmodifiableList(next);
+        WriteAheadLog.forceDirectory(dir); // merged file must survive a crash before files it covers are deleted
+        for (HistorySegment old : new HistorySegment[]{older, newer}) {
+            if (old != null && !old.getFile().equals(merged.getFile())) {
+                Files.deleteIfExists(old.getFile());
+            }
+        }
+        System.out.println("History segments before " + merged.getTo() + " merged into " + merged.getFile().getFileName());
+    }
+}
@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable column of ints, the storage of histories and interval indexes.
+ *
+ * A column either lives on heap in an int array, or off heap in chunks taken from an OffHeapArena, so a long history
+ * doesn't make the heap, and GC pauses, larger.
+ *
+ * It's not thread-safe, caller should hold the user's lock.
+ */
+public abstract class IntColumn {
+
+    protected int size; // number of values
+
+    /**
+     * method to create an empty column
+     *
+     * @param arena: arena to take chunks from, null to keep values on heap
+     * @return the column
+     */
+    static IntColumn create(OffHeapArena arena) {
+        return arena == null ? new Heap() : new OffHeap(arena);
+    }
+
+    /**
+     * method to get number of values
+     *
+     * @return number of values
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * method to get a value
+     *
+     * @param i: index of value, smaller than size()
+     * @return the value
+     */
+    public abstract int get(int i);
+
+    /**
+     * method to change a value
+     *
+     * @param i: index of value, smaller than size()
+     * @param value: new value
+     */
+    public abstract void set(int i, int value);
+
+    /**
+     * method to append a value
+     *
+     * @param value: the value
+     */
+    public abstract void add(int value);
+
+    /**
+     * method to find the number of values not larger than a value, values must be in increasing order
+     *
+     * @param value: a specific value
+     * @return index of the first value larger than it
+     */
+    public int upperBound(int value) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid) <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Column in an int array
+     */
+    static class Heap extends IntColumn {
+
+        private int[] values = new int[4];
+
+        @Override
+        public int get(int i) {
+            return values[i];
+        }
+
+        @Override
+        public void set(int i, int value) {
+            values[i] = value;
+        }
+
+        @Override
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1)); // grow by half, a long column doesn't waste too much
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Column in off-heap chunks, chunk k holds FIRST << k values, so a column of n values has O(log n) chunks,
+     * and chunks are never moved or copied when it grows.
+     */
+    static class OffHeap extends IntColumn {
+
+        private static final int FIRST_SHIFT = 3;
+        private static final int FIRST = 1 << FIRST_SHIFT; // values of the first chunk
+
+        private final OffHeapArena arena; // where chunks come from
+        private ByteBuffer[] chunks = new ByteBuffer[4]; // chunks in order
+        private int chunkCount; // number of chunks
+        private int capacity; // values of all chunks
+
+        /**
+         * Constructor
+         *
+         * @param arena: arena to take chunks from
+         */
+        OffHeap(OffHeapArena arena) {
+            this.arena = arena;
+        }
+
+        @Override
+        public int get(int i) {
+            int k = chunkOf(i);
+            return chunks[k].getInt((i - ((FIRST << k) - FIRST)) << 2);
+        }
+
+        @Override
+        public void set(int i, int value) {
+            int k = chunkOf(i);
+            chunks[k].putInt((i - ((FIRST << k) - FIRST)) << 2, value);
+        }
+
+        @Override
+        public void add(int value) {
+            if (size == capacity) {
+                if (chunkCount == chunks.length) {
+                    chunks = Arrays.copyOf(chunks, chunkCount * 2);
+                }
+                int values = FIRST << chunkCount;
+                chunks[chunkCount++] = arena.allocate(values << 2);
+                capacity += values;
+            }
+            set(size++, value);
+        }
+
+        /**
+         * method to find chunk of a value: chunks before k hold FIRST * (2^k - 1) values
+         *
+         * @param i: index of value
+         * @return index of its chunk
+         */
+        private static int chunkOf(int i) {
+            return 31 - Integer.numberOfLeadingZeros((i >>> FIRST_SHIFT) + 1);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+
+/**
+ * Hash map from non-negative int keys to non-negative int values, without boxing.
+ *
+ * Open addressing with linear probing, a removed key shifts later keys of its probe sequence back, so there are no tombstones.
+ *
+ * It's not thread-safe.
+ */
+public class IntIntMap {
+
+    private static final int FREE = -1; // key of an empty slot, also returned for a missing key
+
+    private int[] keys; // key of each slot, FREE if slot is empty
+    private int[] values; // value of each slot
+    private int size; // number of keys
+    private int mask; // capacity - 1, capacity is power of 2
+
+    /**
+     * Constructor
+     */
+    public IntIntMap() {
+        keys = new int[8];
+        Arrays.fill(keys, FREE);
+        values = new int[8];
+        mask = 7;
+    }
+
+    /**
+     * method to get value of a key
+     *
+     * @param key: the key
+     * @return its value, -1 if key is missing
+     */
+    public int get(int key) {
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            if (keys[slot] == FREE) {
+                return FREE;
+            }
+        }
+    }
+
+    /**
+     * method to check if a key is in map
+     *
+     * @param key: the key
+     * @return true if it's in map
+     */
+    public boolean containsKey(int key) {
+        return get(key) != FREE;
+    }
+
+    /**
+     * method to set value of a key
+     *
+     * @param key: the key, not negative
+     * @param value: its value, not negative
+     */
+    public void put(int key, int value) {
+        int slot = slot(key);
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == FREE) {
+            if ((size + 1) * 2 > keys.length) {
+                grow(); // keep at most half slots used, probe sequences stay short
+                put(key, value);
+                return;
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * method to remove a key
+     *
+     * @param key: the key
+     * @return its value, -1 if key is missing
+     */
+    public int remove(int key) {
+        int slot = slot(key);
+        while (keys[slot] != key) {
+            if (keys[slot] == FREE) {
+                return FREE;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int value = values[slot];
+        // shift back later keys which can't be found after this slot is empty
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = FREE;
+        size--;
+        return value;
+    }
+
+    /**
+     * method to get number of keys
+     *
+     * @return number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * method to check if map is empty
+     *
+     * @return true if there's no key
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * method to copy all values, in no particular order
+     *
+     * @return values
+     */
+    public int[] values() {
+        int[] result = new int[size];
+        int count = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != FREE) {
+                result[count++] = values[slot];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * method to remove all keys
+     */
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    /**
+     * method to find home slot of a key
+     *
+     * @param key: the key
+     * @return slot where its probe sequence starts
+     */
+    private int slot(int key) {
+        int hash = key * 0x9E3779B9; // spread dense ids over the table
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * method to double capacity and rehash all keys
+     */
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != FREE) {
+                put(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+}
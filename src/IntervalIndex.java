@@ -0,0 +1,329 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Interval index of one user's friends, so get(key, time) doesn't replay the whole history.
+ *
+ * Friends are ids in StringDictionary, names are only looked up for results.
+ * Every time a friend is added, an occurrence with interval [addTime, deleteTime) is appended, deleteTime is open until the friend is deleted.
+ * Occurrences are in order of addTime, and a max-tree over deleteTime finds occurrences alive at a time:
+ * those with addTime <= time are a prefix found by binary search, and subtrees whose max deleteTime <= time are skipped,
+ * so a query costs O(log n) plus O(log n) for each friend in result.
+ * Occurrences are also kept in order of deleteTime once they are closed, so changes between two times are 2 ranges found by binary search.
+ *
+ * Optionally, every N events (a friend added or deleted, or k events if there are more current friends) a checkpoint keeps occurrences alive at that time instead of max-tree.
+ * A query starts from the nearest checkpoint not after time, drops occurrences deleted since, and adds occurrences added since,
+ * so it costs O(log n + k + N) without walking a tree, for extra memory of k ints per checkpoint.
+ *
+ * Occurrences and checkpoints are kept in IntColumns, on heap or off heap. Max-tree and current friends are always on heap.
+ *
+ * It's not thread-safe, caller should hold the user's lock.
+ */
+public class IntervalIndex {
+
+    static final int OPEN = Integer.MAX_VALUE; // deleteTime of a friend not deleted yet
+    private static final int EMPTY = Integer.MIN_VALUE; // tree value of unused slots
+
+    private final IntColumn friends; // id of friend of each occurrence
+    private final IntColumn addTimes; // addTime of each occurrence, increasing
+    private final IntColumn deleteTimes; // deleteTime of each occurrence
+    private int[] tree; // max-tree over deleteTimes, leaves start at capacity, null if checkpoints are used instead
+    private int capacity; // occurrences covered by max-tree, power of 2
+    private final IntColumn closed; // closed occurrences in order of deleteTime
+    private IntIntMap alive; // occurrence of each current friend: <friend, occurrence>
+    private final int checkpointInterval; // events between 2 checkpoints, 0 if max-tree is used instead
+    private int events; // events since the last checkpoint
+    private IntColumn checkpointTimes; // timestamp of each checkpoint, increasing
+    private IntColumn checkpointStarts; // where occurrences of each checkpoint start in checkpoints
+    private IntColumn checkpoints; // occurrences alive at each checkpoint one after another, each in order of addTime
+
+    /**
+     * Constructor of an index using max-tree on heap
+     */
+    public IntervalIndex() {
+        this(0, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param checkpointInterval: take a checkpoint every checkpointInterval events, 0 to use max-tree instead
+     * @param arena: arena for off-heap columns, null to keep them on heap
+     */
+    public IntervalIndex(int checkpointInterval, OffHeapArena arena) {
+        friends = IntColumn.create(arena);
+        addTimes = IntColumn.create(arena);
+        deleteTimes = IntColumn.create(arena);
+        if (checkpointInterval == 0) {
+            capacity = 4;
+            tree = new int[capacity * 2];
+            Arrays.fill(tree, EMPTY);
+        } else {
+            checkpointTimes = IntColumn.create(arena);
+            checkpointStarts = IntColumn.create(arena);
+            checkpoints = IntColumn.create(arena);
+        }
+        closed = IntColumn.create(arena);
+        alive = new IntIntMap();
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * method to record a friend added at time, nothing happens if this friend is already a current friend
+     *
+     * @param friend: id of the added friend
+     * @param time: timestamp of put, not smaller than any timestamp recorded before
+     */
+    public void add(int friend, int time) {
+        if (alive.containsKey(friend)) {
+            return;
+        }
+        int occurrence = friends.size();
+        if (tree != null && occurrence == capacity) {
+            grow();
+        }
+        friends.add(friend);
+        addTimes.add(time);
+        deleteTimes.add(OPEN);
+        update(occurrence, OPEN);
+        alive.put(friend, occurrence);
+        checkpoint(time, 1);
+    }
+
+    /**
+     * method to record a friend deleted at time
+     *
+     * @param friend: id of the deleted friend
+     * @param time: timestamp of deletion
+     * @return true if it was a current friend
+     */
+    public boolean delete(int friend, int time) {
+        int occurrence = friend < 0 ? -1 : alive.remove(friend);
+        if (occurrence < 0) {
+            return false;
+        }
+        close(occurrence, time);
+        checkpoint(time, 1);
+        return true;
+    }
+
+    /**
+     * method to record all current friends deleted at time
+     *
+     * @param time: timestamp of deletion
+     */
+    public void deleteAll(int time) {
+        int count = alive.size();
+        for (int occurrence : alive.values()) {
+            close(occurrence, time);
+        }
+        alive.clear();
+        checkpoint(time, count);
+    }
+
+    /**
+     * method to find friends at a time, in order of their addTime
+     *
+     * @param time: a specific timestamp
+     * @param dictionary: dictionary of friends' ids
+     * @return names of friends with addTime <= time < deleteTime
+     */
+    public List<String> get(int time, StringDictionary dictionary) {
+        int end = addTimes.upperBound(time); // occurrences before end are added no later than time
+        if (tree != null) {
+            List<String> result = new ArrayList<>();
+            if (end > 0) {
+                collect(1, 0, capacity, end, time, dictionary, result);
+            }
+            return result;
+        }
+
+        // 1. start from the nearest checkpoint, keep its occurrences not deleted by time
+        int c = checkpointTimes.upperBound(time) - 1; // -1 if there's no checkpoint before time
+        int first = c >= 0 ? checkpointStarts.get(c) : 0; // occurrences of checkpoint in checkpoints
+        int last = c >= 0 ? (c + 1 < checkpointStarts.size() ? checkpointStarts.get(c + 1) : checkpoints.size()) : 0;
+        int from = c >= 0 ? addTimes.upperBound(checkpointTimes.get(c)) : 0; // first occurrence added after checkpoint
+        List<String> result = new ArrayList<>(last - first + end - from); // at most all of them, no copy while growing
+        for (int i = first; i < last; i++) {
+            int occurrence = checkpoints.get(i);
+            if (deleteTimes.get(occurrence) > time) {
+                result.add(dictionary.name(friends.get(occurrence)));
+            }
+        }
+
+        // 2. apply occurrences added after checkpoint, they all come after occurrences of checkpoint in order of addTime
+        for (int occurrence = from; occurrence < end; occurrence++) {
+            if (deleteTimes.get(occurrence) > time) {
+                result.add(dictionary.name(friends.get(occurrence)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * method to find difference of friends between 2 times, only walking friends added or deleted between them
+     *
+     * @param time1: the first timestamp
+     * @param time2: the second timestamp, not smaller than time1
+     * @param dictionary: dictionary of friends' ids
+     * @return friends at time1 but not at time2 in order of their addTime, then friends at time2 but not at time1 in order of their addTime
+     */
+    public List<String> diff(int time1, int time2, StringDictionary dictionary) {
+        // 1. friends at time2 but not at time1: added in (time1, time2] and not deleted by time2
+        int start = addTimes.upperBound(time1);
+        int[] added = new int[addTimes.upperBound(time2) - start];
+        int addedCount = 0;
+        for (int i = 0; i < added.length; i++) {
+            if (deleteTimes.get(start + i) > time2) {
+                added[addedCount++] = start + i;
+            }
+        }
+
+        // 2. friends at time1 but not at time2: added by time1 and deleted in (time1, time2]
+        int from = closedBound(time1);
+        int[] removed = new int[closedBound(time2) - from];
+        int count = 0;
+        for (int i = 0; i < removed.length; i++) {
+            int occurrence = closed.get(from + i);
+            if (addTimes.get(occurrence) <= time1) {
+                removed[count++] = occurrence;
+            }
+        }
+        Arrays.sort(removed, 0, count); // occurrences are numbered in order of addTime
+
+        // 3. a friend deleted and added again is in both, it's not a difference
+        IntIntMap addedSet = new IntIntMap(); // friends added, values are unused
+        for (int i = 0; i < addedCount; i++) {
+            addedSet.put(friends.get(added[i]), 0);
+        }
+        IntIntMap removedSet = new IntIntMap();
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int friend = friends.get(removed[i]);
+            removedSet.put(friend, 0);
+            if (!addedSet.containsKey(friend)) {
+                result.add(dictionary.name(friend));
+            }
+        }
+        for (int i = 0; i < addedCount; i++) {
+            int friend = friends.get(added[i]);
+            if (!removedSet.containsKey(friend)) {
+                result.add(dictionary.name(friend));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * method to walk max-tree and collect occurrences alive at time
+     *
+     * @param node: current tree node
+     * @param from: first occurrence covered by node
+     * @param to: end of occurrences covered by node, exclusive
+     * @param end: only occurrences before end are considered
+     * @param time: a specific timestamp
+     * @param dictionary: dictionary of friends' ids
+     * @param result: list to collect names
+     */
+    private void collect(int node, int from, int to, int end, int time, StringDictionary dictionary, List<String> result) {
+        if (from >= end || tree[node] <= time) {
+            return; // no occurrence in this subtree is alive at time
+        }
+        if (to - from == 1) {
+            result.add(dictionary.name(friends.get(from)));
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        collect(node * 2, from, mid, end, time, dictionary, result);
+        collect(node * 2 + 1, mid, to, end, time, dictionary, result);
+    }
+
+    /**
+     * method to find the number of occurrences deleted no later than time
+     *
+     * @param time: a specific timestamp
+     * @return index of the first closed occurrence with deleteTime > time
+     */
+    private int closedBound(int time) {
+        int lo = 0;
+        int hi = closed.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (deleteTimes.get(closed.get(mid)) <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * method to count events of a change, and take a checkpoint of current friends once there are enough events since the last one
+     *
+     * @param time: timestamp of the change, the whole change must be applied
+     * @param count: number of events in this change
+     */
+    private void checkpoint(int time, int count) {
+        if (tree != null) {
+            return;
+        }
+        events += count;
+        if (events < Math.max(checkpointInterval, alive.size())) {
+            return; // copying k friends is paid by at least k events, a query still reads O(k + N) occurrences
+        }
+        events = 0;
+        int[] current = alive.values();
+        Arrays.sort(current); // in order of addTime
+        checkpointTimes.add(time);
+        checkpointStarts.add(checkpoints.size());
+        for (int occurrence : current) {
+            checkpoints.add(occurrence);
+        }
+    }
+
+    /**
+     * method to close an occurrence at time
+     *
+     * @param occurrence: index of occurrence
+     * @param time: timestamp of deletion, not smaller than any deleteTime before
+     */
+    private void close(int occurrence, int time) {
+        deleteTimes.set(occurrence, time);
+        update(occurrence, time);
+        closed.add(occurrence);
+    }
+
+    /**
+     * method to set deleteTime of an occurrence in max-tree
+     *
+     * @param occurrence: index of occurrence
+     * @param value: its deleteTime
+     */
+    private void update(int occurrence, int value) {
+        if (tree == null) {
+            return;
+        }
+        int node = occurrence + capacity;
+        tree[node] = value;
+        for (node >>>= 1; node > 0; node >>>= 1) {
+            tree[node] = Math.max(tree[node * 2], tree[node * 2 + 1]);
+        }
+    }
+
+    /**
+     * method to double capacity of max-tree and rebuild it
+     */
+    private void grow() {
+        capacity *= 2;
+        tree = new int[capacity * 2];
+        Arrays.fill(tree, EMPTY);
+        for (int occurrence = 0; occurrence < deleteTimes.size(); occurrence++) {
+            tree[capacity + occurrence] = deleteTimes.get(occurrence);
+        }
+        for (int node = capacity - 1; node > 0; node--) {
+            tree[node] = Math.max(tree[node * 2], tree[node * 2 + 1]);
+        }
+    }
+}
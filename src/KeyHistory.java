@@ -0,0 +1,252 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * History of one user's changes in timestamp order, kept in columns instead of a TreeMap entry and a Friend object for each change.
+ *
+ * Each event is a fixed-width record <timestamp, operation and id of friend in StringDictionary>, a deletion keeps ~id so both fit in one int.
+ * Deleting all friends of a user is one deletion event for each friend on the same timestamp.
+ * Events are appended in timestamp order, so they are binary-searched by time.
+ *
+ * Events before floor may be moved to HistoryTier on disk, then the friends alive just before floor (base) are kept instead of them,
+ * with timestamps of their puts, so state at any time from floor - 1 is still known in memory.
+ * Events before horizon may also be collected by retention policy, then history before horizon is not known anywhere.
+ *
+ * It's not thread-safe, caller should hold the user's lock.
+ */
+public class KeyHistory {
+
+    static final byte PUT = 1; // a friend is added, same as ope of Friend
+    static final byte DELETE = -1; // a friend is deleted, same as ope of Friend
+
+    private final IntColumn times; // timestamp of each event, not decreasing
+    private final IntColumn friends; // id of friend of each event, ~id for a deletion
+    private int floor; // events before it are not in memory
+    private int lastSpilled = -1; // timestamp of the last event not in memory, -1 if there isn't
+    private int[] baseFriends = new int[0]; // friends alive at floor - 1, in order of their puts
+    private int[] baseTimes = new int[0]; // timestamp of put of each friend of base
+    private int horizon; // the oldest timestamp whose friends are still known
+
+    /**
+     * Constructor
+     *
+     * @param arena: arena for off-heap columns, null to keep them on heap
+     */
+    public KeyHistory(OffHeapArena arena) {
+        times = IntColumn.create(arena);
+        friends = IntColumn.create(arena);
+    }
+
+    /**
+     * method to append an event
+     *
+     * @param operation: PUT or DELETE
+     * @param time: timestamp of event, not smaller than any timestamp before
+     * @param friend: id of friend of event
+     */
+    public void append(byte operation, int time, int friend) {
+        times.add(time);
+        friends.add(operation == PUT ? friend : ~friend);
+    }
+
+    /**
+     * method to get number of events
+     *
+     * @return number of events
+     */
+    public int size() {
+        return times.size();
+    }
+
+    /**
+     * method to get timestamp of an event
+     *
+     * @param i: index of event
+     * @return timestamp
+     */
+    public int getTime(int i) {
+        return times.get(i);
+    }
+
+    /**
+     * method to get operation of an event
+     *
+     * @param i: index of event
+     * @return PUT or DELETE
+     */
+    public byte getOperation(int i) {
+        return friends.get(i) >= 0 ? PUT : DELETE;
+    }
+
+    /**
+     * method to get friend of an event
+     *
+     * @param i: index of event
+     * @return id of friend
+     */
+    public int getFriend(int i) {
+        int friend = friends.get(i);
+        return friend >= 0 ? friend : ~friend;
+    }
+
+    /**
+     * method to get timestamp of the last event
+     *
+     * @return timestamp, -1 if there's no event
+     */
+    public int lastTime() {
+        return times.size() == 0 ? lastSpilled : times.get(times.size() - 1);
+    }
+
+    /**
+     * method to get floor, events before it are not in memory
+     *
+     * @return floor, 0 if all events are in memory
+     */
+    public int getFloor() {
+        return floor;
+    }
+
+    /**
+     * method to get horizon, friends before it are collected by retention policy
+     *
+     * @return the oldest timestamp whose friends are still known, 0 if nothing is collected
+     */
+    public int getHorizon() {
+        return horizon;
+    }
+
+    /**
+     * method to move horizon forward
+     *
+     * @param horizon: the oldest timestamp whose friends are still known, nothing happens if it's smaller than current one
+     */
+    public void setHorizon(int horizon) {
+        this.horizon = Math.max(this.horizon, horizon);
+    }
+
+    /**
+     * method to get timestamp of the last event not in memory
+     *
+     * @return timestamp, -1 if all events are in memory
+     */
+    public int getLastSpilled() {
+        return lastSpilled;
+    }
+
+    /**
+     * method to find the friend put at a time, the put is in memory or a friend alive at floor - 1
+     *
+     * @param time: timestamp of a put of a friend alive at floor - 1 or later
+     * @return id of friend
+     */
+    public int friendPutAt(int time) {
+        if (time >= floor) {
+            return getFriend(find(time));
+        }
+        int i = Arrays.binarySearch(baseTimes, time); // base is in order of puts
+        return baseFriends[i];
+    }
+
+    /**
+     * method to get number of friends alive at floor - 1
+     *
+     * @return size of base
+     */
+    public int baseSize() {
+        return baseFriends.length;
+    }
+
+    /**
+     * method to get a friend alive at floor - 1
+     *
+     * @param i: index in base, in order of puts
+     * @return id of friend
+     */
+    public int getBaseFriend(int i) {
+        return baseFriends[i];
+    }
+
+    /**
+     * method to get timestamp of put of a friend alive at floor - 1
+     *
+     * @param i: index in base, in order of puts
+     * @return timestamp of put
+     */
+    public int getBaseTime(int i) {
+        return baseTimes[i];
+    }
+
+    /**
+     * method to set what is not in memory, only called on an empty history before appending events
+     *
+     * @param floor: events before it are not in memory
+     * @param lastSpilled: timestamp of the last event not in memory
+     * @param friends: friends alive at floor - 1, in order of their puts
+     * @param times: timestamp of put of each friend
+     */
+    public void setBase(int floor, int lastSpilled, int[] friends, int[] times) {
+        this.floor = floor;
+        this.lastSpilled = lastSpilled;
+        this.baseFriends = friends;
+        this.baseTimes = times;
+    }
+
+    /**
+     * method to replay base and events before a time
+     *
+     * @param time: a timestamp not smaller than floor
+     * @return friends alive at time - 1 with timestamps of their puts, in order of puts: <friend, timestamp>
+     */
+    public Map<Integer, Integer> stateBefore(int time) {
+        Map<Integer, Integer> state = new LinkedHashMap<>();
+        for (int i = 0; i < baseFriends.length; i++) {
+            state.put(baseFriends[i], baseTimes[i]);
+        }
+        for (int i = 0, end = find(time); i < end; i++) {
+            if (getOperation(i) == PUT) {
+                state.putIfAbsent(getFriend(i), getTime(i)); // a friend put again keeps its place
+            } else {
+                state.remove(getFriend(i));
+            }
+        }
+        return state;
+    }
+
+    /**
+     * method to make a history without events before watermark, they are already moved to disk or collected
+     *
+     * @param watermark: the new floor, not smaller than floor
+     * @param arena: arena for off-heap columns, null to keep them on heap
+     * @return the new history
+     */
+    public KeyHistory spill(int watermark, OffHeapArena arena) {
+        KeyHistory history = new KeyHistory(arena);
+        Map<Integer, Integer> base = stateBefore(watermark);
+        int[] friendsOfBase = new int[base.size()];
+        int[] timesOfBase = new int[base.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> entry : base.entrySet()) {
+            friendsOfBase[i] = entry.getKey();
+            timesOfBase[i++] = entry.getValue();
+        }
+        int start = find(watermark);
+        history.setBase(watermark, start > 0 ? getTime(start - 1) : lastSpilled, friendsOfBase, timesOfBase);
+        history.setHorizon(horizon);
+        for (int j = start; j < size(); j++) {
+            history.append(getOperation(j), getTime(j), getFriend(j));
+        }
+        return history;
+    }
+
+    /**
+     * method to find the first event on or after a time
+     *
+     * @param time: a specific timestamp
+     * @return index of the first event with timestamp >= time, size() if there isn't
+     */
+    public int find(int time) {
+        return times.upperBound(time - 1);
+    }
+}
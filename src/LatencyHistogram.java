@@ -0,0 +1,194 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds, buckets are linear within each power of 2 like HdrHistogram,
+ * so any value from 1ns to hours is kept within 1/64 (about 1.6%) of itself in a fixed array of counts.
+ *
+ * Values below 128 have a bucket each, a larger value v with highest bit h falls into one of 64 buckets of [2^h, 2^(h+1)).
+ * It's not thread-safe, each thread records into its own histogram and they are added up at the end,
+ * or threads share a Recorder, which is lock-free and gives a histogram of what is recorded so far.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6; // 2^SUB_BITS buckets for each power of 2
+    private static final int SUB_COUNT = 1 << SUB_BITS; // buckets for each power of 2
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT; // enough for any non-negative long
+
+    private final long[] counts = new long[BUCKETS]; // number of values in each bucket
+    private long count; // number of values
+    private long sum; // sum of values, for mean
+    private long min = Long.MAX_VALUE; // the smallest value
+    private long max; // the largest value
+
+    /**
+     * method to record a latency
+     *
+     * @param nanos: latency in nanoseconds, a negative one is taken as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * method to add all values of another histogram into this one
+     *
+     * @param other: another histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * method to get number of values
+     *
+     * @return number of values
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * method to get the smallest value
+     *
+     * @return the smallest value, 0 if there's no value
+     */
+    public long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * method to get the largest value
+     *
+     * @return the largest value, 0 if there's no value
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * method to get mean of values
+     *
+     * @return mean, 0 if there's no value
+     */
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * method to get a percentile, it's the largest value of the bucket holding it, so it's never under-reported
+     *
+     * @param percent: percentile in (0, 100], e.g. 99.9
+     * @return value at percentile, 0 if there's no value
+     */
+    public long percentile(double percent) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count)); // rank of value at percentile, from 1
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestOf(i), max); // the largest value seen is exact
+            }
+        }
+        return max;
+    }
+
+    /**
+     * method to find bucket of a value
+     *
+     * @param value: a non-negative value
+     * @return index of bucket
+     */
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_COUNT) {
+            return (int) value; // one bucket for each small value
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // value >> shift is in [SUB_COUNT, 2 * SUB_COUNT)
+        return (shift + 1) * SUB_COUNT + (int) (value >> shift) - SUB_COUNT;
+    }
+
+    /**
+     * method to get the largest value falling into a bucket
+     *
+     * @param index: index of bucket
+     * @return the largest value of bucket
+     */
+    private static long highestOf(int index) {
+        if (index < 2 * SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long sub = index % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Lock-free histogram shared by many threads, counts are striped by thread so threads rarely update the same counter
+     */
+    public static class Recorder {
+
+        private static final int STRIPES = 8; // number of stripes of counts, must be power of 2
+
+        private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES]; // number of values in each bucket of each stripe
+        private final LongAdder sum = new LongAdder(); // sum of values
+        private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE); // the smallest value
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0); // the largest value
+
+        /**
+         * Constructor
+         */
+        public Recorder() {
+            for (int i = 0; i < STRIPES; i++) {
+                counts[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        /**
+         * method to record a latency
+         *
+         * @param nanos: latency in nanoseconds, a negative one is taken as 0
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(indexOf(value));
+            sum.add(value);
+            min.accumulate(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * method to get what is recorded so far, values recorded meanwhile may be partly seen
+         *
+         * @return a histogram of recorded values
+         */
+        public LatencyHistogram snapshot() {
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (AtomicLongArray stripe : counts) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long count = stripe.get(i);
+                    histogram.counts[i] += count;
+                    histogram.count += count;
+                }
+            }
+            histogram.sum = sum.sum();
+            histogram.min = min.get();
+            histogram.max = max.get();
+            return histogram;
+        }
+    }
+}
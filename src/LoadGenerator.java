@@ -0,0 +1,476 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator of Server: it opens many connections speaking binary protocol, each of them sends a command and waits for its result,
+ * records latency of each operation into a LatencyHistogram and operations finished in each second, then writes them as JSON.
+ *
+ * A workload is percentages of operations: put, get, get-at (get with time), del-friend (del with value), del and diff,
+ * keys are picked uniformly or by Zipfian popularity. With --rate, commands are sent on a fixed schedule and latency is counted from
+ * when a command should have been sent, so a slow server is not hidden by commands waiting to be sent (coordinated omission).
+ *
+ * Usage: java LoadGenerator --port 5000 --connections 16 --duration 30 --workload as-of-heavy --zipf 0.99 --output load.json
+ */
+public class LoadGenerator {
+
+    // operations of a workload, index of each one is its place in a mix
+    private static final String[] OPERATIONS = {"put", "get", "get-at", "del-friend", "del", "diff"};
+    private static final int PUT = 0, GET = 1, GET_AT = 2, DEL_FRIEND = 3, DEL = 4, DIFF = 5;
+
+    // built-in workloads, percent of each operation in order of OPERATIONS
+    private static final Map<String, int[]> WORKLOADS = new HashMap<>();
+    static {
+        WORKLOADS.put("put-heavy", new int[]{80, 10, 5, 5, 0, 0});
+        WORKLOADS.put("as-of-heavy", new int[]{10, 20, 70, 0, 0, 0});
+        WORKLOADS.put("diff-heavy", new int[]{10, 10, 0, 0, 0, 80});
+        WORKLOADS.put("mixed", new int[]{30, 30, 20, 10, 0, 10});
+    }
+
+    // name of each status of Server.SerialList in JSON
+    private static final String[] STATUSES = {
+            "success", "invalid-input", "quit", "invalid-time", "no-friend", "invalid-user", "not-friend", "reversed-time", "truncated"
+    };
+
+    private final int serverPort; // server port number to connect
+    private final int connections; // number of connections, one thread for each
+    private final int warmup; // seconds before measurement, not recorded
+    private final int duration; // seconds of measurement
+    private final long rate; // commands per second of all connections, 0 to send the next one as soon as a result comes
+    private final String workload; // name of workload
+    private final int[] mix; // percent of each operation
+    private final int keys; // number of keys
+    private final int friends; // number of distinct friends of each key
+    private final int preload; // puts of each key before warmup, so reads find history
+    private final Zipf zipf; // popularity of keys, null for uniform
+    private final AtomicLong puts = new AtomicLong(); // finished puts, server timestamp is at least this, so times before it are valid
+
+    /**
+     * Constructor
+     *
+     * @param options: options of command line, <--name value>
+     */
+    private LoadGenerator(Map<String, String> options) {
+        serverPort = Integer.parseInt(options.getOrDefault("--port", "5000"));
+        connections = Integer.parseInt(options.getOrDefault("--connections", "16"));
+        warmup = Integer.parseInt(options.getOrDefault("--warmup", "5"));
+        duration = Integer.parseInt(options.getOrDefault("--duration", "30"));
+        rate = Long.parseLong(options.getOrDefault("--rate", "0"));
+        keys = Integer.parseInt(options.getOrDefault("--keys", "10000"));
+        friends = Integer.parseInt(options.getOrDefault("--friends", "16"));
+        preload = Integer.parseInt(options.getOrDefault("--preload", "4"));
+        double theta = Double.parseDouble(options.getOrDefault("--zipf", "0"));
+        zipf = theta > 0 ? new Zipf(keys, theta) : null;
+        if (options.containsKey("--mix")) {
+            workload = "custom";
+            mix = parseMix(options.get("--mix"));
+        } else {
+            workload = options.getOrDefault("--workload", "mixed");
+            mix = WORKLOADS.get(workload);
+            if (mix == null) {
+                throw new IllegalArgumentException("Unknown workload " + workload + ", choose one of " + WORKLOADS.keySet() + " or give --mix");
+            }
+        }
+    }
+
+    /**
+     * method to parse a custom mix like put=50,get-at=40,diff=10
+     *
+     * @param text: operation=percent pairs separated by comma
+     * @return percent of each operation in order of OPERATIONS
+     */
+    private static int[] parseMix(String text) {
+        int[] mix = new int[OPERATIONS.length];
+        for (String pair : text.split(",")) {
+            String[] parts = pair.split("=");
+            int operation = List.of(OPERATIONS).indexOf(parts[0]);
+            if (operation < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix " + pair + ", operations are " + List.of(OPERATIONS));
+            }
+            mix[operation] = Integer.parseInt(parts[1]);
+        }
+        return mix;
+    }
+
+    /**
+     * method to run the load, it returns after warmup and measurement
+     *
+     * @return results of all connections
+     * @throws InterruptedException if it's interrupted while waiting for connections
+     */
+    private List<Worker> run() throws InterruptedException {
+        // 1. every connection preloads its share of keys, then they start together
+        CountDownLatch ready = new CountDownLatch(connections);
+        long[] start = new long[1]; // start of warmup, set when all connections are ready
+        CountDownLatch go = new CountDownLatch(1);
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i, ready, go, start);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "load-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        System.out.println("Preloaded " + keys + " keys, warming up " + warmup + " seconds");
+        start[0] = System.nanoTime();
+        go.countDown();
+
+        // 2. wait for warmup and measurement
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return workers;
+    }
+
+    /**
+     * One connection, it sends a command and waits for its result, then the next one
+     */
+    private class Worker implements Runnable {
+
+        private final int id; // index of this connection
+        private final CountDownLatch ready; // counted down when preload is done
+        private final CountDownLatch go; // opened when all connections are ready
+        private final long[] start; // start of warmup
+        private final SplittableRandom random; // choices of this connection
+        private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length]; // latency of each operation
+        private final long[][] statuses = new long[OPERATIONS.length][STATUSES.length]; // number of each status of each operation
+        private final long[] timeline = new long[duration]; // operations finished in each second of measurement
+        private IOException failure; // error of connection, null if it's fine
+
+        Worker(int id, CountDownLatch ready, CountDownLatch go, long[] start) {
+            this.id = id;
+            this.ready = ready;
+            this.go = go;
+            this.start = start;
+            this.random = new SplittableRandom(id * 0x9E3779B97F4A7C15L);
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean preloaded = false; // ready is counted down once, even if connection fails
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", serverPort))) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                BinaryProtocol protocol = new BinaryProtocol(channel);
+                protocol.writeMagic();
+                protocol.readGreeting();
+
+                // 1. preload keys of this connection
+                for (int key = id; key < keys; key += connections) {
+                    for (int i = 0; i < preload; i++) {
+                        call(protocol, "put user" + key + " f" + random.nextInt(friends));
+                        puts.incrementAndGet();
+                    }
+                }
+                preloaded = true;
+                ready.countDown();
+                go.await();
+
+                // 2. send commands until the end, on schedule if there's a rate
+                long measured = start[0] + warmup * 1_000_000_000L; // start of measurement
+                long end = measured + duration * 1_000_000_000L;
+                long interval = rate > 0 ? connections * 1_000_000_000L / rate : 0; // nanoseconds between 2 commands of this connection
+                long next = start[0] + (interval > 0 ? random.nextLong(interval) : 0); // connections don't send at the same moment
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    long intended = now;
+                    if (interval > 0) {
+                        if (now < next) {
+                            LockSupport.parkNanos(next - now);
+                            continue;
+                        }
+                        intended = next; // latency counts from when it should be sent
+                        next += interval;
+                    }
+                    int operation = pick();
+                    Server.SerialList result = call(protocol, command(operation));
+                    long done = System.nanoTime();
+                    if (operation == PUT) {
+                        puts.incrementAndGet();
+                    }
+                    if (intended >= measured) {
+                        latencies[operation].record(done - intended);
+                        statuses[operation][result.status]++;
+                        timeline[(int) Math.min(duration - 1, (done - measured) / 1_000_000_000L)]++;
+                    }
+                }
+                call(protocol, "quit");
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (!preloaded) {
+                    ready.countDown();
+                }
+            }
+        }
+
+        /**
+         * method to send a command and wait for its result
+         *
+         * @param protocol: binary protocol of this connection
+         * @param command: the command
+         * @return result from server
+         * @throws IOException if connection fails
+         */
+        private Server.SerialList call(BinaryProtocol protocol, String command) throws IOException {
+            protocol.writeCommand(command);
+            protocol.flush();
+            return protocol.readResult();
+        }
+
+        /**
+         * method to pick an operation by mix
+         *
+         * @return index of operation
+         */
+        private int pick() {
+            int total = 0;
+            for (int percent : mix) {
+                total += percent;
+            }
+            int dice = random.nextInt(total);
+            for (int i = 0; i < mix.length; i++) {
+                dice -= mix[i];
+                if (dice < 0) {
+                    return i;
+                }
+            }
+            return PUT;
+        }
+
+        /**
+         * method to make a command of an operation on a random key
+         *
+         * @param operation: index of operation
+         * @return the command
+         */
+        private String command(int operation) {
+            String user = "user" + (zipf != null ? zipf.next(random) : random.nextInt(keys));
+            long valid = Math.max(1, puts.get()); // times before it are valid
+            switch (operation) {
+                case PUT:
+                    return "put " + user + " f" + random.nextInt(friends);
+                case GET:
+                    return "get " + user;
+                case GET_AT:
+                    return "get " + user + " " + random.nextLong(valid);
+                case DEL_FRIEND:
+                    return "del " + user + " f" + random.nextInt(friends);
+                case DEL:
+                    return "del " + user;
+                default:
+                    long time1 = random.nextLong(valid);
+                    long time2 = random.nextLong(valid);
+                    return "diff " + user + " " + Math.min(time1, time2) + " " + Math.max(time1, time2);
+            }
+        }
+    }
+
+    /**
+     * Zipfian popularity of keys, key 0 is the most popular one, by Gray et al. "Quickly Generating Billion-Record Synthetic Databases"
+     */
+    private static class Zipf {
+
+        private final int n; // number of keys
+        private final double theta; // skew, larger is more skewed, must not be 1
+        private final double zetan; // sum of 1 / i^theta for i in [1, n]
+        private final double alpha; // 1 / (1 - theta)
+        private final double eta; // constant of the method
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            double zeta2 = 1 + Math.pow(0.5, theta);
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            this.zetan = sum;
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        /**
+         * method to pick a key
+         *
+         * @param random: random of caller
+         * @return index of key in [0, n)
+         */
+        int next(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    /**
+     * method to write results as JSON and print a summary
+     *
+     * @param workers: results of all connections
+     * @param output: JSON file
+     * @throws IOException if it can not be written
+     */
+    private void report(List<Worker> workers, String output) throws IOException {
+        // 1. add up results of all connections
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+        long[][] statuses = new long[OPERATIONS.length][STATUSES.length];
+        long[] timeline = new long[duration];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        int failed = 0;
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                failed++;
+                System.out.println("Connection " + worker.id + " failed: " + worker.failure);
+            }
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                latencies[i].add(worker.latencies[i]);
+                all.add(worker.latencies[i]);
+                for (int s = 0; s < STATUSES.length; s++) {
+                    statuses[i][s] += worker.statuses[i][s];
+                }
+            }
+            for (int second = 0; second < duration; second++) {
+                timeline[second] += worker.timeline[second];
+            }
+        }
+
+        // 2. write JSON, latencies are in microseconds
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"workload\": \"").append(workload).append("\",\n");
+        json.append("  \"mix\": {");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            json.append(i > 0 ? ", " : "").append('"').append(OPERATIONS[i]).append("\": ").append(mix[i]);
+        }
+        json.append("},\n");
+        json.append("  \"connections\": ").append(connections).append(",\n");
+        json.append("  \"failedConnections\": ").append(failed).append(",\n");
+        json.append("  \"keys\": ").append(keys).append(",\n");
+        json.append("  \"friends\": ").append(friends).append(",\n");
+        json.append("  \"zipf\": ").append(zipf != null ? format(zipf.theta) : "0").append(",\n");
+        json.append("  \"rate\": ").append(rate).append(",\n");
+        json.append("  \"warmupSeconds\": ").append(warmup).append(",\n");
+        json.append("  \"durationSeconds\": ").append(duration).append(",\n");
+        json.append("  \"total\": ");
+        appendLatency(json, all, null);
+        json.append(",\n  \"operations\": {");
+        String separator = "\n";
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (latencies[i].count() == 0) {
+                continue;
+            }
+            json.append(separator).append("    \"").append(OPERATIONS[i]).append("\": ");
+            appendLatency(json, latencies[i], statuses[i]);
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"throughputPerSecond\": [");
+        for (int second = 0; second < duration; second++) {
+            json.append(second > 0 ? ", " : "").append(timeline[second]);
+        }
+        json.append("]\n}\n");
+        try (Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+
+        // 3. print a summary
+        System.out.printf(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (latencies[i].count() > 0) {
+                printLine(OPERATIONS[i], latencies[i]);
+            }
+        }
+        printLine("total", all);
+        System.out.println("Results written into " + output);
+    }
+
+    /**
+     * method to append count, throughput and latency percentiles of an operation as a JSON object
+     *
+     * @param json: JSON being built
+     * @param histogram: latencies of the operation
+     * @param statuses: number of each status, or null to leave them out
+     */
+    private void appendLatency(StringBuilder json, LatencyHistogram histogram, long[] statuses) {
+        json.append("{\"count\": ").append(histogram.count());
+        json.append(", \"throughput\": ").append(format((double) histogram.count() / duration));
+        json.append(", \"latencyMicros\": {");
+        json.append("\"min\": ").append(format(histogram.min() / 1e3));
+        json.append(", \"mean\": ").append(format(histogram.mean() / 1e3));
+        json.append(", \"p50\": ").append(format(histogram.percentile(50) / 1e3));
+        json.append(", \"p90\": ").append(format(histogram.percentile(90) / 1e3));
+        json.append(", \"p99\": ").append(format(histogram.percentile(99) / 1e3));
+        json.append(", \"p99.9\": ").append(format(histogram.percentile(99.9) / 1e3));
+        json.append(", \"max\": ").append(format(histogram.max() / 1e3)).append('}');
+        if (statuses != null) {
+            json.append(", \"statuses\": {");
+            String separator = "";
+            for (int s = 0; s < STATUSES.length; s++) {
+                if (statuses[s] > 0) {
+                    json.append(separator).append('"').append(STATUSES[s]).append("\": ").append(statuses[s]);
+                    separator = ", ";
+                }
+            }
+            json.append('}');
+        }
+        json.append('}');
+    }
+
+    /**
+     * method to print one line of summary
+     *
+     * @param name: name of operation
+     * @param histogram: latencies of the operation
+     */
+    private void printLine(String name, LatencyHistogram histogram) {
+        System.out.printf(Locale.ROOT, "%-10s %10d %10.0f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.count(), (double) histogram.count() / duration,
+                histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3, histogram.max() / 1e3);
+    }
+
+    /**
+     * method to format a number for JSON, independent of locale
+     *
+     * @param value: the number
+     * @return number with at most 3 decimals
+     */
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // read options as <--name value> pairs
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        generator.report(generator.run(), options.getOrDefault("--output", "load.json"));
+    }
+}
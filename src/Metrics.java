@@ -0,0 +1,305 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of Server: commands, latency and statuses of each kind of command, connections and bytes in and out.
+ *
+ * Everything on the hot path is lock-free: counters are LongAdders striped by thread, latencies go into LatencyHistogram.Recorders,
+ * so threads serving different clients don't fight over one counter. Reading them is slower, it's only done by stats command and JMX.
+ * Logging of commands is sampled, by default nothing is logged.
+ */
+public class Metrics {
+
+    // kinds of commands, a command is counted by its operation and number of arguments
+    static final String[] COMMANDS = {"put", "get", "get-at", "del", "del-friend", "diff", "history", "mget", "mget-at", "stats", "watch", "cluster", "invalid"};
+    private static final int INVALID = COMMANDS.length - 1;
+
+    // name of each status of Server.SerialList
+    private static final String[] STATUSES = {
+            "success", "invalid-input", "quit", "invalid-time", "no-friend", "invalid-user", "not-friend", "reversed-time", "truncated", "more", "read-only", "moved", "forbidden"
+    };
+
+    private final LatencyHistogram.Recorder[] latencies = new LatencyHistogram.Recorder[COMMANDS.length]; // latency of each kind of command
+    private final LongAdder[] statuses = new LongAdder[STATUSES.length]; // number of results of each status
+    private final LongAdder connected = new LongAdder(); // connections accepted
+    private final LongAdder disconnected = new LongAdder(); // connections closed
+    private final LongAdder bytesIn = new LongAdder(); // bytes received from clients
+    private final LongAdder bytesOut = new LongAdder(); // bytes sent to clients
+    private final int logEvery; // a command is logged with probability 1 / logEvery, 0 to log nothing
+
+    /**
+     * Constructor
+     *
+     * @param logEvery: log about 1 of every logEvery commands, 1 to log all of them, 0 to log nothing
+     */
+    public Metrics(int logEvery) {
+        this.logEvery = logEvery;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latencies[i] = new LatencyHistogram.Recorder();
+        }
+        for (int i = 0; i < STATUSES.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * method to find kind of a command
+     *
+     * @param operation: the first word of command
+     * @param words: number of words of command
+     * @return index in COMMANDS
+     */
+    static int commandOf(String operation, int words) {
+        switch (operation) {
+            case "put":
+                return words == 3 ? 0 : INVALID;
+            case "get":
+                return words == 2 ? 1 : words == 3 ? 2 : INVALID;
+            case "del":
+                return words == 2 ? 3 : words == 3 ? 4 : INVALID;
+            case "diff":
+                return words == 4 ? 5 : INVALID;
+            case "history":
+                return words == 4 ? 6 : INVALID;
+            case "mget":
+                return words >= 2 ? 7 : INVALID;
+            case "mget-at":
+                return words >= 3 ? 8 : INVALID;
+            case "stats":
+                return words == 1 ? 9 : INVALID;
+            case "watch":
+                return words == 2 || words == 3 ? 10 : INVALID;
+            case "clock":
+            case "nodes":
+            case "handoff":
+            case "import":
+            case "joined":
+            case "drop-moved":
+            case "peer":
+                return 11; // commands between nodes and routers of a cluster
+            default:
+                return INVALID;
+        }
+    }
+
+    /**
+     * method to record a finished command
+     *
+     * @param command: index of kind in COMMANDS
+     * @param status: status of result
+     * @param nanos: time spent on it in nanoseconds
+     */
+    public void record(int command, byte status, long nanos) {
+        latencies[command].record(nanos);
+        statuses[status].increment();
+    }
+
+    /**
+     * method to decide if a command is logged, it's random so busy clients don't hide others
+     *
+     * @return true to log this command
+     */
+    public boolean sample() {
+        return logEvery > 0 && (logEvery == 1 || ThreadLocalRandom.current().nextInt(logEvery) == 0);
+    }
+
+    /**
+     * method to count a new connection
+     */
+    public void connected() {
+        connected.increment();
+    }
+
+    /**
+     * method to count a closed connection
+     */
+    public void disconnected() {
+        disconnected.increment();
+    }
+
+    /**
+     * method to count bytes received
+     *
+     * @param bytes: number of bytes
+     */
+    public void read(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * method to count bytes sent
+     *
+     * @param bytes: number of bytes
+     */
+    public void written(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * method to read all metrics, latencies are in microseconds
+     *
+     * @return <name, value> in a fixed order
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        long closed = disconnected.sum(); // read before connected, so current connections is never negative
+        long accepted = connected.sum();
+        values.put("connections.current", accepted - closed);
+        values.put("connections.total", accepted);
+        values.put("bytes.in", bytesIn.sum());
+        values.put("bytes.out", bytesOut.sum());
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram histogram = latencies[i].snapshot();
+            String prefix = "commands." + COMMANDS[i];
+            values.put(prefix + ".count", histogram.count());
+            values.put(prefix + ".meanMicros", Math.round(histogram.mean() / 1e3));
+            values.put(prefix + ".p50Micros", histogram.percentile(50) / 1000);
+            values.put(prefix + ".p99Micros", histogram.percentile(99) / 1000);
+            values.put(prefix + ".p999Micros", histogram.percentile(99.9) / 1000);
+            values.put(prefix + ".maxMicros", histogram.max() / 1000);
+        }
+        for (int i = 0; i < STATUSES.length; i++) {
+            values.put("statuses." + STATUSES[i], statuses[i].sum());
+        }
+        return values;
+    }
+
+    /**
+     * method to wrap a stream to count bytes received
+     *
+     * @param in: stream from client
+     * @return stream counting bytes read
+     */
+    public InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                int n = super.read(bytes, offset, length);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * method to wrap a stream to count bytes sent
+     *
+     * @param out: stream to client
+     * @return stream counting bytes written
+     */
+    public OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length); // FilterOutputStream would write byte by byte
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    /**
+     * method to publish metrics through JMX as read-only attributes of MBean KeyValueStore:type=Metrics
+     *
+     * @param source: all metrics to publish, read again whenever they are asked
+     * @throws JMException if MBean can not be registered
+     */
+    public static void register(Supplier<Map<String, Long>> source) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(source), new ObjectName("KeyValueStore:type=Metrics"));
+    }
+
+    /**
+     * MBean of metrics, each metric is a read-only attribute of type long
+     */
+    private static class MetricsBean implements DynamicMBean {
+
+        private final Supplier<Map<String, Long>> source; // all metrics
+
+        MetricsBean(Supplier<Map<String, Long>> source) {
+            this.source = source;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = source.get().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = source.get(); // read once for all attributes
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList(); // nothing is writable
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : source.get().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of key value store", attributes.toArray(new MBeanAttributeInfo[0]),
+                    null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
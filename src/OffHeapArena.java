@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Arena of off-heap memory for columns of histories, so GC never scans or copies them.
+ *
+ * Small chunks are cut from large direct buffers (slabs) by bumping a pointer, a large chunk gets its own direct buffer.
+ * Chunks are never freed one by one, a slab is freed by GC once no chunk of it is used, e.g. after histories are spilled to disk.
+ * Direct memory is limited by -XX:MaxDirectMemorySize.
+ */
+public class OffHeapArena {
+
+    private static final int SLAB_SIZE = 64 << 20; // bytes of a slab
+    private static final int LARGE_CHUNK = SLAB_SIZE >> 3; // chunks larger than it are not cut from slabs
+
+    private ByteBuffer slab; // the slab chunks are cut from, guarded by this
+    private final AtomicLong reserved; // bytes of all slabs and large chunks ever taken
+
+    /**
+     * Constructor
+     */
+    public OffHeapArena() {
+        reserved = new AtomicLong();
+    }
+
+    /**
+     * method to take a chunk
+     *
+     * @param bytes: size of chunk
+     * @return chunk in native byte order, accessed by absolute index from 0
+     */
+    public ByteBuffer allocate(int bytes) {
+        if (bytes > LARGE_CHUNK) {
+            reserved.addAndGet(bytes);
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer chunk;
+        synchronized (this) {
+            if (slab == null || slab.remaining() < bytes) {
+                slab = ByteBuffer.allocateDirect(SLAB_SIZE); // rest of the old slab is wasted, at most 1/8 of it
+                reserved.addAndGet(SLAB_SIZE);
+            }
+            chunk = slab.slice(slab.position(), bytes);
+            slab.position(slab.position() + bytes);
+        }
+        return chunk.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * method to get off-heap memory taken by this arena
+     *
+     * @return bytes of all slabs and large chunks
+     */
+    public long reserved() {
+        return reserved.get();
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Replication from a primary Server to read-only followers on other Servers.
+ *
+ * A follower connects to primary like a binary client and sends command "replicate", then primary only sends:
+ * <MAGIC> <base of Service.exportBase()> <{frame}>, frame is <number of changes, timestamp of primary> <{change}>,
+ * change is <operation, timestamp, user, friend>, or <MARK, timestamp, wall clock> of a heartbeat.
+ * Changes come in timestamp order with the same timestamps as primary, so a follower answers get(key, time) and diff
+ * the same as primary for any time it has applied. A follower falling too far behind is dropped by primary,
+ * it connects again and starts over from a new base, so does a follower losing its connection.
+ * Changes are only sent once they are durable on primary. Timestamps taken by reads are not logged at once, so a primary restarted
+ * after a crash may take again some timestamps a follower got by heartbeats, the follower loses its connection and loads a new base then.
+ */
+public class Replication {
+
+    static final int MAGIC = 0x4B565231; // "KVR1"
+    static final String COMMAND = "replicate"; // command of follower
+    static final long HEARTBEAT_INTERVAL = 100; // milliseconds between heartbeats of primary
+    private static final int BATCH = 4096; // max changes in a frame
+    private static final long LINGER = 1; // milliseconds primary waits after a frame that isn't full, so changes come in batches
+    private static final long RETRY_INTERVAL = 1000; // milliseconds before a follower connects again
+
+    /**
+     * method for primary to serve a follower until it's disconnected or dropped, on the thread serving its connection
+     *
+     * @param service: store of primary
+     * @param stream: stream to follower
+     * @param capacity: max number of changes waiting for follower, it's dropped if it falls further behind
+     * @throws IOException if follower can not be written, e.g. it's gone
+     */
+    static void serve(Service service, OutputStream stream, int capacity) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.writeInt(MAGIC);
+        ChangeFeed.Subscription subscription = service.exportBase(out, capacity);
+        System.out.println("Follower got base at timestamp " + service.getTimestamp());
+        try {
+            while (true) {
+                List<ChangeFeed.Change> changes = subscription.poll(BATCH, HEARTBEAT_INTERVAL * 10);
+                service.awaitDurable(changes); // follower never runs ahead of what primary keeps after a crash
+                out.writeInt(changes.size());
+                out.writeInt(service.getTimestamp()); // so follower knows how far behind it is
+                for (ChangeFeed.Change change : changes) {
+                    out.writeByte(change.operation);
+                    out.writeInt(change.time);
+                    if (change.operation == WriteAheadLog.MARK) {
+                        out.writeLong(change.millis);
+                    } else {
+                        writeString(out, change.userName);
+                        writeString(out, change.friendName);
+                    }
+                }
+                out.flush();
+                if (changes.size() < BATCH) {
+                    // let changes pile up instead of waking this thread up for each of them, it adds at most LINGER to lag
+                    Thread.sleep(LINGER);
+                }
+            }
+        } catch (IllegalStateException e) {
+            System.out.println("Follower dropped: " + e.getMessage()); // it starts over from a new base
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            service.getFeed().unsubscribe(subscription);
+        }
+    }
+
+    /**
+     * Follower side: keeps a replica of primary, connecting again whenever connection is lost
+     */
+    static class Follower implements Runnable {
+
+        private final String host; // host of primary
+        private final int port; // port of primary
+        private final Path dir; // directory for cold segments of primary, each base has its own sub-directory
+        private final int checkpointInterval; // events of a user between 2 checkpoints of its friends
+        private final boolean offHeap; // true to keep histories and indexes off heap
+        private final Consumer<Service> install; // where a new replica goes once its base is loaded
+
+        private volatile Service replica; // the replica being updated, null before the first base
+        private volatile boolean connected; // true while changes are streaming
+        private volatile long bases; // number of bases loaded
+        private volatile long applied; // number of changes applied, heartbeats excluded
+        private volatile int primaryTimestamp; // timestamp of primary when it sent the latest frame
+        private volatile long heartbeatMillis; // wall clock of primary when it made the latest heartbeat applied
+        private volatile long lagMillis; // milliseconds from the latest heartbeat applied being made to being applied
+
+        /**
+         * Constructor
+         *
+         * @param host: host of primary
+         * @param port: port of primary
+         * @param dir: directory for cold segments of primary
+         * @param checkpointInterval: events of a user between 2 checkpoints of its friends, 0 to use max-tree instead
+         * @param offHeap: true to keep histories and indexes off heap
+         * @param install: gets each new replica, server serves reads from it
+         */
+        Follower(String host, int port, Path dir, int checkpointInterval, boolean offHeap, Consumer<Service> install) {
+            this.host = host;
+            this.port = port;
+            this.dir = dir;
+            this.checkpointInterval = checkpointInterval;
+            this.offHeap = offHeap;
+            this.install = install;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    follow();
+                } catch (IOException e) {
+                    System.out.println("Replication from " + host + ":" + port + " stopped: " + e);
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * method to connect to primary, load a new base and apply changes until connection is lost
+         *
+         * @throws IOException if primary can not be reached, or connection is lost
+         */
+        private void follow() throws IOException {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+
+                // 1. speak binary protocol, skip header of serialization stream, and ask for replication
+                out.writeInt(BinaryProtocol.MAGIC);
+                byte[] command = COMMAND.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(command.length);
+                out.write(command);
+                out.flush();
+                if (in.readShort() != ObjectStreamConstants.STREAM_MAGIC || in.readShort() != ObjectStreamConstants.STREAM_VERSION) {
+                    throw new IOException("Unknown server");
+                }
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Server is not a primary"); // e.g. it's a follower too
+                }
+
+                // 2. load base into a new replica, then older ones are no longer served
+                Path baseDir = dir.resolve("base-" + bases);
+                deleteDirectory(baseDir); // left by an earlier run
+                Service next = Service.importBase(in, baseDir, checkpointInterval, offHeap);
+                install.accept(next);
+                replica = next;
+                bases++;
+                System.out.println("Replica loaded base of primary at timestamp " + next.getTimestamp());
+                try (DirectoryStream<Path> olds = Files.newDirectoryStream(dir, "base-*")) {
+                    for (Path old : olds) {
+                        if (!old.equals(baseDir)) {
+                            deleteDirectory(old); // segments stay mapped by readers of old replica
+                        }
+                    }
+                }
+
+                // 3. apply changes as they come
+                connected = true;
+                while (true) {
+                    int count = in.readInt();
+                    int timestamp = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        byte operation = in.readByte();
+                        int time = in.readInt();
+                        ChangeFeed.Change change;
+                        if (operation == WriteAheadLog.MARK) {
+                            change = new ChangeFeed.Change(operation, time, "", "", in.readLong());
+                            heartbeatMillis = change.millis;
+                            lagMillis = System.currentTimeMillis() - change.millis;
+                        } else {
+                            change = new ChangeFeed.Change(operation, time, readString(in), readString(in), 0);
+                            applied++;
+                        }
+                        next.applyReplicated(change);
+                    }
+                    primaryTimestamp = timestamp;
+                }
+            }
+        }
+
+        /**
+         * method to read replication status of this follower
+         *
+         * @return <name, value> in a fixed order
+         */
+        Map<String, Long> stats() {
+            Service current = replica;
+            long appliedTimestamp = current == null ? 0 : current.getTimestamp();
+            long heartbeat = heartbeatMillis;
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("replication.connected", connected ? 1L : 0L);
+            values.put("replication.bases", bases);
+            values.put("replication.changesApplied", applied);
+            values.put("replication.appliedTimestamp", appliedTimestamp);
+            values.put("replication.primaryTimestamp", (long) primaryTimestamp);
+            values.put("replication.lagTimestamps", Math.max(0, primaryTimestamp - appliedTimestamp));
+            values.put("replication.lagMillis", lagMillis);
+            values.put("replication.heartbeatAgeMillis", heartbeat == 0 ? -1 : System.currentTimeMillis() - heartbeat); // grows if stream stalls
+            return values;
+        }
+    }
+
+    /**
+     * method to delete a directory and everything in it
+     *
+     * @param dir: the directory, nothing happens if it doesn't exist
+     * @throws IOException if it can not be deleted
+     */
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * method to write a string as <length, UTF-8 bytes>
+     *
+     * @param out: stream to write to
+     * @param s: the string
+     * @throws IOException if it can not be written
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * method to read a string written by writeString()
+     *
+     * @param in: stream to read from
+     * @return the string
+     * @throws IOException if it can not be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of results of get(key, time) and diff(key, time1, time2) at times already passed. Such a result never changes,
+ * since every later change of the user takes a later timestamp, so it's served again without touching history of the user.
+ * Only history collected by retention or users moved between nodes change them. Service clears the whole cache after users
+ * are moved, and pauses it while retention collects history, since a user already collected must not be served from it.
+ * A result read before clear() or pause() is not cached after it, since its generation is older.
+ *
+ * Keys are spread over SEGMENTS segments, each one is an LRU list (LinkedHashMap in access order) under its own lock, holding
+ * at most 1 / SEGMENTS of the memory budget. Memory of an entry is estimated from lengths of its strings.
+ * Like the doorkeeper of TinyLFU, a result is only cached when its key is asked the second time within a while, so a scan
+ * of keys asked once, e.g. mget-at of every user, doesn't push out results asked again and again by dashboards.
+ */
+public class ResultCache {
+
+    private static final int SEGMENTS = 16; // number of segments, must be power of 2
+    private static final int DOORKEEPER_BITS = 1 << 16; // bits of doorkeeper of each segment
+    private static final long ENTRY_BYTES = 160; // estimated bytes of an entry besides its strings: map entry, key, list and its array
+    private static final long STRING_BYTES = 56; // estimated bytes of a string besides its characters, with its slot in list
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicInteger generation = new AtomicInteger(); // 2 for each clear(), 1 for each pause() and resume(), odd while paused
+
+    /**
+     * Key of a result: get(user, time) has time2 of -1
+     */
+    private static final class Key {
+        final String userName; // the user
+        final int time1; // time of get, or time1 of diff
+        final int time2; // time2 of diff, -1 for get
+
+        Key(String userName, int time1, int time2) {
+            this.userName = userName;
+            this.time1 = time1;
+            this.time2 = time2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return time1 == other.time1 && time2 == other.time2 && userName.equals(other.userName);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = userName.hashCode() * 31 + time1;
+            hash = hash * 31 + time2;
+            return hash ^ (hash >>> 16); // spread higher bits, same as HashMap does
+        }
+    }
+
+    /**
+     * A segment: LRU list of entries and its counters, all guarded by this
+     */
+    private static final class Segment {
+        private final LinkedHashMap<Key, List<String>> entries = new LinkedHashMap<>(16, 0.75f, true); // the least recently used first
+        private final long capacity; // max estimated bytes
+        private final long[] doorkeeper = new long[DOORKEEPER_BITS / 64]; // keys asked once since it's reset
+        private int doorkept; // keys recorded by doorkeeper since it's reset
+        private long bytes; // estimated bytes of entries
+        private long hits; // lookups finding a result
+        private long misses; // lookups finding nothing
+        private long evictions; // entries pushed out by newer ones
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized List<String> get(Key key) {
+            List<String> result = entries.get(key);
+            if (result == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return result;
+        }
+
+        synchronized void put(Key key, List<String> result, int generation, AtomicInteger current) {
+            if (generation != current.get()) {
+                return; // read before clear(), it may be stale
+            }
+
+            // 1. a key asked the first time is only remembered by doorkeeper
+            int bit = (key.hashCode() >>> 4) & (DOORKEEPER_BITS - 1); // lower bits choose segment
+            if ((doorkeeper[bit >>> 6] & (1L << bit)) == 0) {
+                doorkeeper[bit >>> 6] |= 1L << bit;
+                if (++doorkept == DOORKEEPER_BITS / 8) {
+                    // forget old keys, so doorkeeper doesn't fill up and let everything in
+                    Arrays.fill(doorkeeper, 0);
+                    doorkept = 0;
+                }
+                return;
+            }
+
+            // 2. cache it and push out the least recently used entries beyond capacity
+            long size = weigh(key, result);
+            if (size > capacity) {
+                return;
+            }
+            List<String> old = entries.put(key, result);
+            bytes += size - (old == null ? 0 : weigh(key, old));
+            Iterator<Map.Entry<Key, List<String>>> eldest = entries.entrySet().iterator();
+            while (bytes > capacity) {
+                Map.Entry<Key, List<String>> entry = eldest.next();
+                bytes -= weigh(entry.getKey(), entry.getValue());
+                eldest.remove();
+                evictions++;
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        synchronized void addTo(long[] totals) {
+            totals[0] += hits;
+            totals[1] += misses;
+            totals[2] += evictions;
+            totals[3] += entries.size();
+            totals[4] += bytes;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity: max estimated bytes of all results
+     */
+    public ResultCache(long capacity) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity / SEGMENTS);
+        }
+    }
+
+    /**
+     * method to find a cached result, the list is shared by all hits, so callers should not change it
+     *
+     * @param userName: the user
+     * @param time1: time of get, or time1 of diff
+     * @param time2: time2 of diff, -1 for get
+     * @return friends of result, null if it's not cached
+     */
+    public List<String> get(String userName, int time1, int time2) {
+        if ((generation.get() & 1) != 0) {
+            return null; // paused
+        }
+        Key key = new Key(userName, time1, time2);
+        return segmentOf(key).get(key);
+    }
+
+    /**
+     * method to get generation of results read from now on, it's passed to put() with the result
+     *
+     * @return generation of cache now, odd while it's paused
+     */
+    public int generation() {
+        return generation.get();
+    }
+
+    /**
+     * method to cache a successful result, caller should make sure it never changes, and not change the list afterwards
+     *
+     * @param userName: the user
+     * @param time1: time of get, or time1 of diff
+     * @param time2: time2 of diff, -1 for get
+     * @param result: friends of result
+     * @param generation: generation() before result is read, it's not cached if cache is cleared or paused since then
+     */
+    public void put(String userName, int time1, int time2, List<String> result, int generation) {
+        if ((generation & 1) != 0) {
+            return; // read while paused
+        }
+        Key key = new Key(userName, time1, time2);
+        segmentOf(key).put(key, result, generation, this.generation);
+    }
+
+    /**
+     * method to drop all results, e.g. after users are moved, when some of them may be wrong now
+     */
+    public void clear() {
+        generation.addAndGet(2); // results being read now are not cached, a paused cache stays paused
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * method to drop all results and stop serving and caching any until resume(), e.g. while history is collected user by user
+     */
+    public void pause() {
+        generation.incrementAndGet(); // odd, results being read now are not cached
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * method to serve and cache results again after pause()
+     */
+    public void resume() {
+        generation.incrementAndGet(); // even, results read while paused are not cached
+    }
+
+    /**
+     * method to read counters of this cache
+     *
+     * @return <name, value> of hits, misses, evictions, entries and their estimated bytes
+     */
+    public Map<String, Long> stats() {
+        long[] totals = new long[5];
+        for (Segment segment : segments) {
+            segment.addTo(totals);
+        }
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("cache.hits", totals[0]);
+        values.put("cache.misses", totals[1]);
+        values.put("cache.evictions", totals[2]);
+        values.put("cache.entries", totals[3]);
+        values.put("cache.bytes", totals[4]);
+        return values;
+    }
+
+    /**
+     * method to find segment of a key
+     *
+     * @param key: the key
+     * @return its segment
+     */
+    private Segment segmentOf(Key key) {
+        return segments[key.hashCode() & (SEGMENTS - 1)];
+    }
+
+    /**
+     * method to estimate bytes of an entry
+     *
+     * @param key: key of entry
+     * @param result: friends of entry
+     * @return estimated bytes, strings are counted as if they were not shared with anything else
+     */
+    private static long weigh(Key key, List<String> result) {
+        long bytes = ENTRY_BYTES + key.userName.length();
+        for (String friendName : result) {
+            bytes += STRING_BYTES + friendName.length();
+        }
+        return bytes;
+    }
+}
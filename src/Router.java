@@ -0,0 +1,386 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side routing of commands to nodes of a cluster, each user lives on the node HashRing gives it.
+ *
+ * Times of nodes are made comparable by a Lamport clock: router remembers the largest timestamp it has seen, a node behind it is
+ * moved forward by command <clock time> before the routed command, and command <clock 0> after it tells how far the node is.
+ * Both are pipelined with the routed command, so it still takes one round trip. Then anything done through a router happens at
+ * a larger time than everything it has done before, on any node, so get(key, time) and diff of several users tell one history.
+ * Nodes also sync their clocks with each other in background, so routers not talking to each other don't drift apart much.
+ *
+ * A node answers MOVED for a user it doesn't own, e.g. once a new node takes over the user, router reloads nodes from it and tries again.
+ * A router is used by one thread at a time.
+ */
+public class Router implements Closeable {
+
+    private static final long MOVED_RETRY = 20; // milliseconds between tries of a user being moved
+    private static final long MOVED_TIMEOUT = 10000; // milliseconds before router gives up a user being moved
+
+    private HashRing ring; // nodes and owners of users
+    private final String token; // cluster token shown to each node, so it takes commands moving users, null for other routers
+    private final Map<String, Connection> connections = new HashMap<>(); // connection to each node, opened when it's first used
+    private final Map<String, Integer> clocks = new HashMap<>(); // the latest known timestamp of each node
+    private int seen; // the largest timestamp seen on any node
+
+    /**
+     * Connection to a node
+     */
+    private static class Connection {
+        final BinaryProtocol protocol; // speaks binary protocol
+        boolean behind; // true if the command sent last has a clock command before it
+
+        Connection(BinaryProtocol protocol) {
+            this.protocol = protocol;
+        }
+    }
+
+    /**
+     * Constructor, nodes are connected when they are first used
+     *
+     * @param ring: nodes of cluster
+     */
+    public Router(HashRing ring) {
+        this(ring, null);
+    }
+
+    /**
+     * Constructor of a router moving users between nodes
+     *
+     * @param ring: nodes of cluster
+     * @param token: cluster token of nodes, null if they trust hosts of the cluster instead
+     */
+    public Router(HashRing ring, String token) {
+        this.ring = ring;
+        this.token = token;
+    }
+
+    /**
+     * method to get nodes used now
+     *
+     * @return the ring, it's replaced when nodes are reloaded
+     */
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * method to run a command on the nodes it belongs to
+     *
+     * @param order: a command of client
+     * @return results in order, more than one if it's streamed in chunks
+     * @throws IOException if a node can not be reached
+     */
+    public List<Server.SerialList> execute(String order) throws IOException {
+        String[] input = order.split(" ");
+        switch (input[0]) {
+            case "put":
+            case "get":
+            case "del":
+            case "diff":
+            case "history":
+                return input.length < 2 ? call(ring.getNodes().get(0), order) : route(input[1], order);
+            case "mget":
+                return input.length < 2 ? call(ring.getNodes().get(0), order) : mget(input, 1);
+            case "mget-at":
+                return input.length < 3 ? call(ring.getNodes().get(0), order) : mget(input, 2);
+            case "stats":
+                return stats(order);
+            case "watch":
+                // a watch never ends, it's kept on a connection of its own to the user's node
+                return Arrays.asList(new Server.SerialList(Server.SerialList.INVALID_INPUT, false));
+            case "quit":
+                // every node connected is told, nothing is pipelined after it since node stops reading
+                for (Connection connection : connections.values()) {
+                    connection.protocol.writeCommand(order);
+                    connection.protocol.flush();
+                    connection.protocol.readResult();
+                }
+                close();
+                return Arrays.asList(new Server.SerialList(Server.SerialList.QUIT, false));
+            default:
+                return call(ring.getNodes().get(0), order); // node tells what's wrong with it
+        }
+    }
+
+    /**
+     * method to run a command of a user on its owner, following the user if it's moved
+     *
+     * @param userName: the user
+     * @param order: the command
+     * @return results of the command
+     * @throws IOException if a node can not be reached
+     */
+    private List<Server.SerialList> route(String userName, String order) throws IOException {
+        long deadline = System.currentTimeMillis() + MOVED_TIMEOUT;
+        while (true) {
+            String node = ring.getNodes().get(ring.owner(userName));
+            List<Server.SerialList> results = call(node, order);
+            if (results.get(0).status != Server.SerialList.MOVED || System.currentTimeMillis() > deadline) {
+                return results;
+            }
+            reload(node);
+        }
+    }
+
+    /**
+     * method to run mget or mget-at: users are grouped by node, each node gets one command of its users, all nodes work together
+     *
+     * @param input: words of command
+     * @param first: index of the first user in input
+     * @return one result, entries in the same order as users
+     * @throws IOException if a node can not be reached
+     */
+    private List<Server.SerialList> mget(String[] input, int first) throws IOException {
+        String prefix = String.join(" ", Arrays.asList(input).subList(0, first));
+        long deadline = System.currentTimeMillis() + MOVED_TIMEOUT;
+        while (true) {
+            // 1. group users by node, remembering where each one goes back
+            Map<String, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = first; i < input.length; i++) {
+                groups.computeIfAbsent(ring.getNodes().get(ring.owner(input[i])), node -> new ArrayList<>()).add(i);
+            }
+
+            // 2. send all commands before reading any result
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                StringBuilder command = new StringBuilder(prefix);
+                for (int i : group.getValue()) {
+                    command.append(' ').append(input[i]);
+                }
+                send(group.getKey(), command.toString());
+            }
+            String[] entries = new String[input.length - first];
+            Server.SerialList failed = null; // the first result not successful, e.g. invalid time
+            String moved = null; // a node not owning some users any more
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                Server.SerialList result = receive(group.getKey()).get(0);
+                if (result.status == Server.SerialList.MOVED) {
+                    moved = group.getKey();
+                } else if (result.status != Server.SerialList.SUCCESS) {
+                    failed = failed == null ? result : failed;
+                } else {
+                    List<Integer> positions = group.getValue();
+                    for (int j = 0; j < positions.size(); j++) {
+                        entries[positions.get(j) - first] = result.getList().get(j);
+                    }
+                }
+            }
+
+            // 3. merge, or try again if some users are moved
+            if (moved != null && System.currentTimeMillis() <= deadline) {
+                reload(moved);
+                continue;
+            }
+            if (moved != null || failed != null) {
+                return Arrays.asList(failed != null ? failed : new Server.SerialList(Server.SerialList.MOVED, false));
+            }
+            Server.SerialList result = new Server.SerialList(Server.SerialList.SUCCESS, true);
+            result.setList(new ArrayList<>(Arrays.asList(entries)));
+            return Arrays.asList(result);
+        }
+    }
+
+    /**
+     * method to read metrics of all nodes, each line starts with its node
+     *
+     * @param order: stats command
+     * @return one result of all metrics
+     * @throws IOException if a node can not be reached
+     */
+    private List<Server.SerialList> stats(String order) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String node : ring.getNodes()) {
+            Server.SerialList result = call(node, order).get(0);
+            if (!result.hasList) {
+                return Arrays.asList(result);
+            }
+            for (String line : result.getList()) {
+                lines.add(node + " " + line);
+            }
+        }
+        Server.SerialList result = new Server.SerialList(Server.SerialList.SUCCESS, true);
+        result.setList(lines);
+        return Arrays.asList(result);
+    }
+
+    /**
+     * method to move clocks of all nodes to the largest one, and remember it
+     *
+     * @param time: a timestamp seen elsewhere, e.g. on the node running this router
+     * @return the largest timestamp seen
+     * @throws IOException if a node can not be reached
+     */
+    public int sync(int time) throws IOException {
+        seen = Math.max(seen, time);
+        for (String node : ring.getNodes()) {
+            connection(node).protocol.writeCommand("clock " + seen);
+            connection(node).protocol.flush();
+        }
+        for (String node : ring.getNodes()) {
+            clock(node, connection(node).protocol.readResult());
+        }
+        return seen;
+    }
+
+    /**
+     * method to run a command on a node as it is, with its clock synced
+     *
+     * @param node: <host:port> of the node
+     * @param order: the command
+     * @return results of the command
+     * @throws IOException if the node can not be reached
+     */
+    List<Server.SerialList> call(String node, String order) throws IOException {
+        send(node, order);
+        return receive(node);
+    }
+
+    /**
+     * method to run a command streamed in chunks on a node, handing each chunk over as soon as it comes
+     *
+     * @param node: <host:port> of the node
+     * @param order: the command
+     * @param writer: gets each chunk, the last one has status of whole result
+     * @throws IOException if the node can not be reached, or writer fails
+     */
+    void stream(String node, String order, Server.ChunkWriter writer) throws IOException {
+        send(node, order);
+        receive(node, writer);
+    }
+
+    /**
+     * method to send a command to a node between commands syncing its clock
+     *
+     * @param node: <host:port> of the node
+     * @param order: the command
+     * @throws IOException if the node can not be reached
+     */
+    private void send(String node, String order) throws IOException {
+        Connection connection = connection(node);
+        connection.behind = clocks.getOrDefault(node, 0) < seen;
+        if (connection.behind) {
+            connection.protocol.writeCommand("clock " + seen); // node is behind, its command should be after everything seen
+        }
+        connection.protocol.writeCommand(order);
+        connection.protocol.writeCommand("clock 0"); // how far the node is after command
+        connection.protocol.flush();
+    }
+
+    /**
+     * method to receive results of a command sent by send()
+     *
+     * @param node: <host:port> of the node
+     * @return results of the command, chunks of a streamed result are read until the last one
+     * @throws IOException if the node can not be reached
+     */
+    private List<Server.SerialList> receive(String node) throws IOException {
+        List<Server.SerialList> results = new ArrayList<>();
+        receive(node, results::add);
+        return results;
+    }
+
+    /**
+     * method to receive results of a command sent by send(), handing each of them over as soon as it comes
+     *
+     * @param node: <host:port> of the node
+     * @param writer: gets each result, chunks of a streamed result are read until the last one
+     * @throws IOException if the node can not be reached, or writer fails
+     */
+    private void receive(String node, Server.ChunkWriter writer) throws IOException {
+        Connection connection = connection(node);
+        if (connection.behind) {
+            clock(node, connection.protocol.readResult());
+        }
+        Server.SerialList result;
+        do {
+            result = connection.protocol.readResult();
+            writer.write(result);
+        } while (result.status == Server.SerialList.MORE);
+        clock(node, connection.protocol.readResult());
+    }
+
+    /**
+     * method to remember timestamp of a node from result of a clock command
+     *
+     * @param node: <host:port> of the node
+     * @param result: result of clock command
+     * @throws IOException if it's not a result of clock command, e.g. node is an old server
+     */
+    private void clock(String node, Server.SerialList result) throws IOException {
+        if (result.status == Server.SerialList.INVALID_TIME) {
+            throw new IOException("Node " + node + " refused time " + seen + ", it's ahead of its clock by more than max skew");
+        }
+        if (result.status != Server.SerialList.SUCCESS || !result.hasList || result.getList().size() != 1) {
+            throw new IOException("Node " + node + " doesn't keep a clock");
+        }
+        int time = Integer.parseInt(result.getList().get(0));
+        clocks.put(node, time);
+        seen = Math.max(seen, time);
+    }
+
+    /**
+     * method to reload nodes from a node which tells a user is moved, and wait a little for the move
+     *
+     * @param node: <host:port> of the node
+     * @throws IOException if the node can not be reached
+     */
+    private void reload(String node) throws IOException {
+        Server.SerialList result = call(node, "nodes").get(0);
+        if (result.hasList && !result.getList().isEmpty() && !result.getList().get(0).equals(ring.toString())) {
+            ring = HashRing.parse(result.getList().get(0));
+        }
+        try {
+            Thread.sleep(MOVED_RETRY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while user is moved");
+        }
+    }
+
+    /**
+     * method to get connection to a node, connecting it if it's not connected yet
+     *
+     * @param node: <host:port> of the node
+     * @return connection speaking binary protocol
+     * @throws IOException if the node can not be reached
+     */
+    private Connection connection(String node) throws IOException {
+        Connection connection = connections.get(node);
+        if (connection == null) {
+            int colon = node.lastIndexOf(':');
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection = new Connection(new BinaryProtocol(channel));
+            connection.protocol.writeMagic();
+            connection.protocol.readGreeting();
+            if (token != null) {
+                connection.protocol.writeCommand("peer " + token);
+                connection.protocol.flush();
+                if (connection.protocol.readResult().status != Server.SerialList.SUCCESS) {
+                    connection.protocol.close();
+                    throw new IOException("Node " + node + " refused cluster token");
+                }
+            }
+            connections.put(node, connection);
+        }
+        return connection;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Connection connection : connections.values()) {
+            connection.protocol.close();
+        }
+        connections.clear();
+    }
+}
@@ -1,220 +1,1058 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
+import javax.management.JMException;
 
 public class Server {
 
-    private static int serverPort; // server port number
-    private static Service service; // APIs services
+    private int serverPort; // server port number
+    private int maxConnections; // max number of clients served at the same time
+    private volatile Service service; // APIs services, shared by all connected clients, a follower replaces it with each new base
+    private Semaphore connections; // permits of connections, one permit for each connected client
+    private ExecutorService workers; // thread pool, one thread serves one connected client
+    private Metrics metrics; // counters and latencies of commands, read by stats command and JMX
+    private Replication.Follower follower; // replication from primary, null unless this server is a read-only follower
+    private int replicationBuffer = 1 << 20; // max changes waiting for a follower of this server before it's dropped
+    private Cluster.Node node; // membership in a cluster, null if this server holds all users
+    private int watchBuffer = 1024; // max changes waiting for a watcher of a user before it's disconnected
+    private int maxClockSkew = Cluster.MAX_CLOCK_SKEW; // max timestamps clock is moved forward at once by another node or a router
+    private String clusterToken; // secret a caller shows by command <peer token> before moving users, null to trust hosts of nodes instead
+
+    // some codes used to mark result status
+    private static final int NOUSER = -1; // marks that there's is no such user
+    private static final int HASDELETED = 0; // the user has been deleted
+    private static final int SUCCESS = 1; // operate successfully
+    private static final int NOFRIEND = 2; // no such searching friend
+    private static final int INVALIDTIME = 3; // invalid time error
+    private static final int TRUNCATED = 4; // history at the time is collected
+    private static final int HISTORY_CHUNK = 256; // max events in one chunk of history command, so memory doesn't grow with history
+    private static final long WATCH_KEEPALIVE = 1000; // milliseconds without changes before a watcher gets an empty chunk, so a client gone is noticed
 
     /**
      * Server constructor
+     *
+     * @param serverPort: the port number server listening on
+     * @param maxConnections: the max number of clients connected at the same time, later clients wait until one quits
+     * @param service: the Service class to do all operations
      */
-    public Server() {
-        this.serverPort = 5000;	//set server port number
-        this.service = new Service(); // initialize a Service class to do all operations
+    public Server(int serverPort, int maxConnections, Service service) {
+        this(serverPort, maxConnections, service, new Metrics(0));
+    }
 
+    /**
+     * Server constructor with metrics
+     *
+     * @param serverPort: the port number server listening on
+     * @param maxConnections: the max number of clients connected at the same time, later clients wait until one quits
+     * @param service: the Service class to do all operations
+     * @param metrics: metrics of commands and connections, it also decides which commands are logged
+     */
+    public Server(int serverPort, int maxConnections, Service service, Metrics metrics) {
+        this.serverPort = serverPort; //set server port number
+        this.maxConnections = maxConnections;
+        this.service = service;
+        this.metrics = metrics;
+        this.connections = new Semaphore(maxConnections);
+        this.workers = Executors.newCachedThreadPool(); // threads are created on demand and bounded by connections permits
     }
 
     /**
-     * start method for server
+     * start method for server, keep accepting clients and hand each of them to a worker thread
      */
-    private static void start() {
-        try {
+    private void start() {
+        try (ServerSocketChannel sSocket = ServerSocketChannel.open()) {
+            sSocket.bind(new InetSocketAddress(serverPort), maxConnections);
             // Runtime.getRuntime().exec(new String[] { "bash", "-c", "rm -f /path/*.txt" }).waitFor(); //first clear all other useless file in the directory where we will output files
 
-            ServerSocket sSocket = new ServerSocket(serverPort); //give server port number 5000
             System.out.println("Server starting at: " + new Date()); //print to indicate we are ready to start
-            Socket client = sSocket.accept(); // accept client socket connection
 
-            DataInputStream dis = new DataInputStream(client.getInputStream()); // a dataInputStream to receive input command from client
-            ObjectOutputStream oos = new ObjectOutputStream(client.getOutputStream()); // a objectOutputStream to output result to client
+            // keep accepting clients
+            while (true) {
+                connections.acquire(); // wait until we are able to serve one more client
+                SocketChannel client;
+                try {
+                    client = sSocket.accept(); // accept client socket connection
+                } catch (IOException exception) {
+                    connections.release();
+                    throw exception;
+                }
+                metrics.connected();
+                workers.execute(new ClientHandler(client)); // serve this client in its own thread
+            }
 
-            System.out.println(dis.readUTF() + ", server listening on port " + serverPort); // print an info from client, presenting a successful connection with client
+        } catch (IOException exception) {
+            System.out.println("Error: " + exception);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdown();
+        }
+    }
 
-            // initialize some useful output string :)
-            String warning = "Invalid input! ";
-            String success = "Success ";
-            String seeya = "Server received and quitting. Thanks for using! ";
-            String invalidTime = "Invalid time, please enter an integer or a smaller one! ";
-            String noFriend = "This user does not have any friends yet or he/she deleted before :(. ";
-            String invalidUser = "Invalid user ";
-
-            // some codes used to mark result status
-            final int NOUSER = -1; // marks that there's is no such user
-            final int HASDELETED = 0; // the user has been deleted
-            final int SUCCESS = 1; // operate successfully
-            final int NOFRIEND = 2; // no such searching friend
-            final int INVALIDTIME = 3; // invalid time error
+    /**
+     * a ClientHandler to serve one connected client until it quits or disconnects
+     */
+    private class ClientHandler implements Runnable {
+
+        private SocketChannel client; // channel of this client
+        private boolean peer; // true once client showed cluster token, it may move users between nodes then
+
+        /**
+         * Constructor
+         *
+         * @param client: the accepted client channel in blocking mode
+         */
+        ClientHandler(SocketChannel client) {
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel client = this.client) {
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true); // results are buffered and sent as a whole, don't wait for more
+                // legacy client waits for header of serialization stream before sending anything, so always send it first, binary client skips it
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(metrics.counting(Channels.newOutputStream(client))));
+                oos.flush();
+
+                // first 2 bytes tell which protocol client speaks, legacy client sends writeUTF() of its greeting first, see BinaryProtocol.MAGIC
+                ByteBuffer first = ByteBuffer.allocate(2);
+                while (first.hasRemaining()) {
+                    if (client.read(first) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                metrics.read(first.capacity());
+                if (first.getShort(0) == (short) (BinaryProtocol.MAGIC >>> 16)) {
+                    serveBinary(client);
+                } else {
+                    serveLegacy(client, first.array(), oos);
+                }
+
+            } catch (EOFException exception) {
+                System.out.println("Client disconnected"); // client is gone without quit command
+            } catch (IOException exception) {
+                System.out.println("Error: " + exception);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                metrics.disconnected();
+                connections.release(); // give the seat to next client
+            }
+        }
+
+        /**
+         * method to serve a client speaking binary protocol
+         *
+         * @param client: channel of this client, the first 2 bytes of magic are already read
+         * @throws IOException if client can not be read or written
+         */
+        private void serveBinary(SocketChannel client) throws IOException {
+            ByteBuffer rest = ByteBuffer.allocate(2);
+            while (rest.hasRemaining()) {
+                if (client.read(rest) < 0) {
+                    throw new EOFException();
+                }
+            }
+            metrics.read(rest.capacity());
+            if (rest.getShort(0) != (short) BinaryProtocol.MAGIC) {
+                throw new IOException("Unknown protocol");
+            }
+            System.out.println("Binary client connected now, server listening on port " + serverPort);
+
+            BinaryProtocol protocol = new BinaryProtocol(client, metrics);
+            // keep listening client
+            while (true) {
+                String order = protocol.readCommand(); // receive command from client
+                if (order == null) {
+                    throw new EOFException();
+                }
+                if (metrics.sample()) {
+                    System.out.println("command is: " + order); // output some commands on terminal for double checking
+                }
+
+                // quit command
+                if (order.equals("quit")) {
+                    System.out.println("Client quitting..."); // print on server to indicate this client is quiting
+                    protocol.writeResult(new SerialList(SerialList.QUIT, false)); // still transport info to client
+                    protocol.flush();
+                    break; // stop listening this client
+                }
+
+                // history is sent in chunks as soon as each of them is read
+                if (order.startsWith("history ")) {
+                    history(order, result -> {
+                        protocol.writeResult(result);
+                        protocol.flush();
+                    });
+                    continue;
+                }
+
+                // changes of a user are pushed in chunks as they commit, until client goes away
+                if (order.startsWith("watch ")) {
+                    watch(order, client, result -> {
+                        protocol.writeResult(result);
+                        protocol.flush();
+                    });
+                    continue;
+                }
+
+                // an old node of a cluster hands over users moving to a new node, in chunks
+                if (order.startsWith("handoff ") && node != null) {
+                    long start = System.nanoTime();
+                    if (!isPeer()) {
+                        protocol.writeResult(new SerialList(SerialList.FORBIDDEN, false));
+                        protocol.flush();
+                        metrics.record(Metrics.commandOf("handoff", 2), SerialList.FORBIDDEN, System.nanoTime() - start);
+                        continue;
+                    }
+                    Cluster.handoff(node, service, HashRing.parse(order.substring("handoff ".length())), result -> {
+                        protocol.writeResult(result);
+                        protocol.flush();
+                    });
+                    metrics.record(Metrics.commandOf("handoff", 2), SerialList.SUCCESS, System.nanoTime() - start);
+                    continue;
+                }
+
+                // a follower asks for replication, this connection only streams changes to it from now on
+                if (order.equals(Replication.COMMAND) && follower == null) {
+                    System.out.println("Follower connected");
+                    Replication.serve(service, metrics.counting(Channels.newOutputStream(client)), replicationBuffer);
+                    break;
+                }
+
+                // output final result to client, results of pipelined commands already received are sent together
+                protocol.writeResult(run(order));
+                if (!protocol.hasBufferedInput()) {
+                    protocol.flush();
+                }
+            }
+        }
+
+        /**
+         * method to serve a client speaking legacy protocol: commands by writeUTF() and results by Java serialization
+         *
+         * @param client: channel of this client
+         * @param first: the first 2 bytes already read from client
+         * @param oos: a objectOutputStream to output result to client, its header is already sent
+         * @throws IOException if client can not be read or written
+         */
+        private void serveLegacy(SocketChannel client, byte[] first, ObjectOutputStream oos) throws IOException {
+            // a dataInputStream to receive input command from client, starting with bytes already read
+            DataInputStream dis = new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(first), new BufferedInputStream(metrics.counting(Channels.newInputStream(client)))));
+
+            System.out.println(dis.readUTF() + ", server listening on port " + serverPort); // print an info from client, presenting a successful connection with client
 
             // keep listening client
             while (true) {
                 String order = dis.readUTF(); // receive command from client
-                SerialList result; // initialize a result type to send back to client
-                System.out.println("command is: " + order); // output command on terminal for double checking
+                if (metrics.sample()) {
+                    System.out.println("command is: " + order); // output some commands on terminal for double checking
+                }
 
                 // quit command
                 if (order.equals("quit")) {
-                    System.out.println("Server quitting..."); // print on server to indicate quiting
-                    result = new SerialList(seeya, false); // still transport info to client
-                    oos.writeObject(result); // send to client
-                    break; // stop listening process
-                }
-
-                // processing
-                String[] input = order.split(" "); // split command
-                String operation = input[0]; // extract operation
-
-                // choose different scenarios by different operations
-                switch (operation) {
-                    case "put":
-                        // command <put user friend>
-                        if (input.length != 3) {
-                            // edge case: invalid input
-                            result = new SerialList(warning, false);
-                        } else {
-                            service.put(input[1], input[2]); // do put operation
-                            result = new SerialList(success, false);
-                        }
-                        break;
-                    case "get":
-                        if (input.length == 2) {
-                            // command: <get user>
-                            ResultType resultType = service.get(input[1]); // receive results
-                            if (resultType.code == NOUSER) {
-                                // no friends found, but we still set true flag since we wanna output a empty list
-                                result = new SerialList(invalidUser, false);
-                            } else if (resultType.code == NOFRIEND) {
-                                result = new SerialList(noFriend, true);
-                            } else {
-                                // found friends 
-                                result = new SerialList(success, true);
-                            }
-                            result.setList(resultType.getResult()); // deserialize friends list
-                        } else if (input.length == 3) {
-                            // command: <get user time>
-                            String time = input[2];
-                            // make sure input search time is an integer, I assume the times of operation is within integer range
-                            if (!isTimeValid(time)) {
-                                // it's not an integer
-                                result = new SerialList(invalidTime, false);
-                                break;
-                            }
-                            int searchingTime =  Integer.parseInt(time); // convert to int type
-                            ResultType resultType = service.get(input[1], searchingTime); // receive the final result
-                            if (resultType.code == INVALIDTIME) {
-                                // invalid time
-                                result = new SerialList(invalidTime, false);
-                            } else if (resultType.code == NOUSER) {
-                                // no user
-                                result = new SerialList(invalidUser, false);
-                            } else {
-                                // valid time
-                                result = new SerialList(success, true); // get result
-                                result.setList(resultType.getResult()); // serialize list
-                            }
-                        } else {
-                            // invalid input
-                            result = new SerialList(warning, false);
-                        }
-                        break;
-                    case "del":
-                        if (input.length == 2) {
-                            // command: <delete, user>
-                            int code = service.delete((input[1])); // flag
-                            if (code == SUCCESS) {
-                                // we do deletion
-                                result = new SerialList(success, false);
-                            } else if (code == NOUSER) {
-                                // no such user
-                                result = new SerialList(invalidUser, false);
-                            } else {
-                                // the user's friends are already deleted or no friends yet
-                                result = new SerialList(noFriend, false);
-                            }
-                        } else if (input.length == 3) {
-                            // command: <delete, user, friend>
-                            int code = service.delete(input[1], input[2]); // flag
-                            if (code == SUCCESS) {
-                                // complete deletion
-                                result = new SerialList(success, false);
-                            } else if (code == HASDELETED) {
-                                // this friend has been deleted
-                                result = new SerialList("This user does not have this friends yet!", false);
-                            } else {
-                                // no such user
-                                result = new SerialList(invalidUser, false);
-                            }
-                        } else {
-                            // invalid input
-                            result = new SerialList(warning, false);
-                        }
-                        break;
-                    case "diff":
-                        // command: <diff, user, time1, time2>
-                        // edge case: invalid input
-                        if (input.length != 4) {
-                            result = new SerialList(warning, false);
-                            break;
-                        }
-                        String time1 = input[2];
-                        String time2 = input[3];
-                        if (!isTimeValid(time1) || !isTimeValid(time2)) {
-                            // invalid input time
-                            result = new SerialList(invalidTime, false);
-                        } else if (Integer.parseInt(time1) > Integer.parseInt(time2)) {
-                            // reversed comparative value of time1 and time2
-                            result = new SerialList(warning + "Time1 should <= Time2", false);
-                        } else {
-                            ResultType resultType = service.diff(input[1], Integer.parseInt(input[2]), Integer.parseInt(input[3]));
-                            if (resultType.code == INVALIDTIME) {
-                                // invalid time
-                                result = new SerialList(invalidTime, false);
-                            } else if (resultType.code == NOUSER) {
-                                // no such user
-                                result = new SerialList(invalidUser, false);
-                            } else {
-                                // success
-                                result = new SerialList(success, true);
-                                result.setList(resultType.getResult());
-                            }
+                    System.out.println("Client quitting..."); // print on server to indicate this client is quiting
+                    oos.writeObject(new SerialList(SerialList.QUIT, false)); // still transport info to client
+                    oos.flush();
+                    break; // stop listening this client
+                }
 
-                        }
-                        break;
-                    default:
-                        // other invalid input
-                        result = new SerialList(warning, false);
-                        break;
+                // history is sent in chunks as soon as each of them is read
+                if (order.startsWith("history ")) {
+                    history(order, result -> {
+                        oos.writeObject(result);
+                        oos.reset();
+                        oos.flush();
+                    });
+                    continue;
                 }
 
                 // output final result to client
-                oos.writeObject(result);
+                oos.writeObject(run(order));
+                oos.reset(); // forget sent objects, otherwise stream keeps all of them as long as client is connected
+                if (dis.available() == 0) {
+                    oos.flush(); // results of pipelined commands already received are sent together
+                }
             }
+        }
 
-            // close all stream and socket
-            oos.close();
-            dis.close();
-            client.close();
-            sSocket.close();
+        /**
+         * method to do one command of this client, commands moving users between nodes are only done for a peer
+         *
+         * @param order: the command received from client
+         * @return result to be sent back to client
+         * @throws IOException if address of client can not be read
+         */
+        private SerialList run(String order) throws IOException {
+            String operation = order.split(" ", 2)[0];
+            if (node == null || !operation.equals("peer") && !Cluster.Node.movesUsers(operation)) {
+                return process(order);
+            }
+            long start = System.nanoTime();
+            SerialList result;
+            if (operation.equals("peer")) {
+                // command <peer token>: client shows cluster token, once for the whole connection
+                byte[] token = order.substring(operation.length()).trim().getBytes(StandardCharsets.UTF_8);
+                peer = clusterToken != null && MessageDigest.isEqual(token, clusterToken.getBytes(StandardCharsets.UTF_8));
+                result = new SerialList(peer ? SerialList.SUCCESS : SerialList.FORBIDDEN, false);
+            } else if (isPeer()) {
+                return process(order);
+            } else {
+                result = new SerialList(SerialList.FORBIDDEN, false);
+            }
+            metrics.record(Metrics.commandOf(operation, 1), result.status, System.nanoTime() - start);
+            return result;
+        }
 
-        } catch (IOException exception) {
-            System.out.println("Error: " + exception);
-        } catch (Exception e) {
-            e.printStackTrace();
+        /**
+         * method to check if client may move users between nodes: it showed cluster token, or there's no token and it connects
+         * from a host of the cluster
+         *
+         * @return true if it's a peer
+         * @throws IOException if address of client can not be read
+         */
+        private boolean isPeer() throws IOException {
+            if (peer || clusterToken != null) {
+                return peer;
+            }
+            return node.isPeerHost(((InetSocketAddress) client.getRemoteAddress()).getAddress());
+        }
+    }
+
+    /**
+     * method to do one command on service and wrap its result
+     *
+     * @param order: the command received from client
+     * @return result to be sent back to client
+     */
+    SerialList process(String order) {
+        long start = System.nanoTime();
+        SerialList result; // initialize a result type to send back to client
+
+        // processing
+        String[] input = order.split(" "); // split command
+        String operation = input[0]; // extract operation
+
+        // on a node of a cluster, users are only served by their owner, and ring isn't switched while they are served
+        Lock owned = null;
+        if (node != null && Cluster.Node.isKeyed(input)) {
+            owned = node.admit(input);
+            if (owned == null) {
+                result = new SerialList(SerialList.MOVED, false);
+                metrics.record(Metrics.commandOf(operation, input.length), result.status, System.nanoTime() - start);
+                return result;
+            }
+        }
+        try {
+            result = execute(input);
+        } finally {
+            if (owned != null) {
+                owned.unlock();
+            }
         }
+
+        metrics.record(Metrics.commandOf(operation, input.length), result.status, System.nanoTime() - start);
+        return result;
     }
 
-    public static void main(String[] args) {
-        Server server = new Server(); // initialize a server
+    /**
+     * method to run one command on service
+     *
+     * @param input: words of command
+     * @return result to be sent back to client
+     */
+    private SerialList execute(String[] input) {
+        SerialList result;
+        String operation = input[0];
+
+        // choose different scenarios by different operations
+        switch (operation) {
+            case "put":
+                // command <put user friend>
+                if (follower != null) {
+                    result = new SerialList(SerialList.READ_ONLY, false); // changes only come from primary
+                } else if (input.length != 3) {
+                    // edge case: invalid input
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                } else {
+                    service.put(input[1], input[2]); // do put operation
+                    result = new SerialList(SerialList.SUCCESS, false);
+                }
+                break;
+            case "get":
+                if (input.length == 2) {
+                    // command: <get user>
+                    result = getResult(service.get(input[1])); // receive results
+                } else if (input.length == 3) {
+                    // command: <get user time>
+                    String time = input[2];
+                    // make sure input search time is an integer, I assume the times of operation is within integer range
+                    if (!isTimeValid(time)) {
+                        // it's not an integer
+                        result = new SerialList(SerialList.INVALID_TIME, false);
+                        break;
+                    }
+                    int searchingTime =  Integer.parseInt(time); // convert to int type
+                    result = getAtResult(service.get(input[1], searchingTime)); // receive the final result
+                } else {
+                    // invalid input
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                }
+                break;
+            case "del":
+                if (follower != null) {
+                    result = new SerialList(SerialList.READ_ONLY, false); // changes only come from primary
+                } else if (input.length == 2) {
+                    // command: <delete, user>
+                    int code = service.delete((input[1])); // flag
+                    if (code == SUCCESS) {
+                        // we do deletion
+                        result = new SerialList(SerialList.SUCCESS, false);
+                    } else if (code == NOUSER) {
+                        // no such user
+                        result = new SerialList(SerialList.INVALID_USER, false);
+                    } else {
+                        // the user's friends are already deleted or no friends yet
+                        result = new SerialList(SerialList.NO_FRIEND, false);
+                    }
+                } else if (input.length == 3) {
+                    // command: <delete, user, friend>
+                    int code = service.delete(input[1], input[2]); // flag
+                    if (code == SUCCESS) {
+                        // complete deletion
+                        result = new SerialList(SerialList.SUCCESS, false);
+                    } else if (code == HASDELETED) {
+                        // this friend has been deleted
+                        result = new SerialList(SerialList.NOT_FRIEND, false);
+                    } else {
+                        // no such user
+                        result = new SerialList(SerialList.INVALID_USER, false);
+                    }
+                } else {
+                    // invalid input
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                }
+                break;
+            case "diff":
+                // command: <diff, user, time1, time2>
+                // edge case: invalid input
+                if (input.length != 4) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                String time1 = input[2];
+                String time2 = input[3];
+                if (!isTimeValid(time1) || !isTimeValid(time2)) {
+                    // invalid input time
+                    result = new SerialList(SerialList.INVALID_TIME, false);
+                } else if (Integer.parseInt(time1) > Integer.parseInt(time2)) {
+                    // reversed comparative value of time1 and time2
+                    result = new SerialList(SerialList.REVERSED_TIME, false);
+                } else {
+                    ResultType resultType = service.diff(input[1], Integer.parseInt(input[2]), Integer.parseInt(input[3]));
+                    if (resultType.code == INVALIDTIME) {
+                        // invalid time
+                        result = new SerialList(SerialList.INVALID_TIME, false);
+                    } else if (resultType.code == NOUSER) {
+                        // no such user
+                        result = new SerialList(SerialList.INVALID_USER, false);
+                    } else if (resultType.code == TRUNCATED) {
+                        // history at time1 is collected
+                        result = new SerialList(SerialList.TRUNCATED_TIME, false);
+                    } else {
+                        // success
+                        result = new SerialList(SerialList.SUCCESS, true);
+                        result.setList(resultType.getResult());
+                    }
+
+                }
+                break;
+            case "mget":
+                // command: <mget user1 user2 ...>
+                if (input.length < 2) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                result = mget(input, 1, -1);
+                break;
+            case "mget-at":
+                // command: <mget-at time user1 user2 ...>
+                if (input.length < 3) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                if (!isTimeValid(input[1])) {
+                    result = new SerialList(SerialList.INVALID_TIME, false);
+                    break;
+                }
+                result = mget(input, 2, Integer.parseInt(input[1]));
+                break;
+            case "stats":
+                // command: <stats>
+                if (input.length != 1) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                List<String> lines = new ArrayList<>();
+                for (Map.Entry<String, Long> entry : stats().entrySet()) {
+                    lines.add(entry.getKey() + "=" + entry.getValue());
+                }
+                result = new SerialList(SerialList.SUCCESS, true);
+                result.setList(lines);
+                break;
+            case "clock":
+                // command <clock time>: move clock to time of another node or router, answer current timestamp
+                // only nodes of a cluster are moved, <clock 0> just reads current timestamp of any server
+                if (input.length != 2 || !isTimeValid(input[1]) || node == null && !input[1].equals("0")) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                int seen = Integer.parseInt(input[1]);
+                int current = service.syncClock(seen, maxClockSkew);
+                if (current < seen) {
+                    result = new SerialList(SerialList.INVALID_TIME, false); // too far ahead, e.g. a broken router
+                    break;
+                }
+                result = new SerialList(SerialList.SUCCESS, true);
+                result.setList(new ArrayList<>(Arrays.asList(String.valueOf(current))));
+                break;
+            case "nodes":
+                // command <nodes>: all nodes of cluster, empty if this server is alone
+                result = new SerialList(SerialList.SUCCESS, true);
+                result.setList(node == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(node.getRing().toString())));
+                break;
+            case "import":
+                // command <import user...>: users moved from another node, each one encoded in base64
+                if (node == null) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                for (int i = 1; i < input.length; i++) {
+                    service.importUser(Base64.getDecoder().decode(input[i]));
+                }
+                result = new SerialList(SerialList.SUCCESS, false);
+                break;
+            case "joined":
+                // command <joined>: every user moved in is here, start serving them
+                if (node == null) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                snapshot(); // users moved in are not in log
+                node.joined();
+                result = new SerialList(SerialList.SUCCESS, false);
+                break;
+            case "drop-moved":
+                // command <drop-moved>: forget users owned by other nodes now, after they are moved
+                if (node == null) {
+                    result = new SerialList(SerialList.INVALID_INPUT, false);
+                    break;
+                }
+                int dropped = service.dropUsers(userName -> !node.owns(userName));
+                snapshot(); // otherwise log brings them back after restart
+                result = new SerialList(SerialList.SUCCESS, true);
+                result.setList(new ArrayList<>(Arrays.asList(String.valueOf(dropped))));
+                break;
+            default:
+                // other invalid input
+                result = new SerialList(SerialList.INVALID_INPUT, false);
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * method to take a snapshot now, for changes of store which are not logged, e.g. users moved in or out
+     */
+    private void snapshot() {
+        try {
+            service.snapshot(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * method to do mget or mget-at command, users are read in parallel by service
+     *
+     * @param input: words of command
+     * @param first: index of the first user in input
+     * @param time: time of mget-at, -1 for mget
+     * @return one entry for each user, <user: result>, result is what get or get-at of this user alone would print
+     */
+    private SerialList mget(String[] input, int first, int time) {
+        List<String> users = Arrays.asList(input).subList(first, input.length);
+        List<ResultType> resultTypes = time < 0 ? service.mget(users) : service.mget(users, time);
+        List<String> entries = new ArrayList<>(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            SerialList entry = time < 0 ? getResult(resultTypes.get(i)) : getAtResult(resultTypes.get(i));
+            entries.add(users.get(i) + ": " + entry.line());
+        }
+        SerialList result = new SerialList(SerialList.SUCCESS, true);
+        result.setList(entries);
+        return result;
+    }
+
+    /**
+     * method to wrap result of get(key)
+     *
+     * @param resultType: result from service
+     * @return result to be sent back to client
+     */
+    private static SerialList getResult(ResultType resultType) {
+        SerialList result;
+        if (resultType.code == NOUSER) {
+            // no friends found, but we still set true flag since we wanna output a empty list
+            result = new SerialList(SerialList.INVALID_USER, false);
+        } else if (resultType.code == NOFRIEND) {
+            result = new SerialList(SerialList.NO_FRIEND, true);
+        } else {
+            // found friends
+            result = new SerialList(SerialList.SUCCESS, true);
+        }
+        result.setList(resultType.getResult()); // deserialize friends list
+        return result;
+    }
+
+    /**
+     * method to wrap result of get(key, time)
+     *
+     * @param resultType: result from service
+     * @return result to be sent back to client
+     */
+    private static SerialList getAtResult(ResultType resultType) {
+        SerialList result;
+        if (resultType.code == INVALIDTIME) {
+            // invalid time
+            result = new SerialList(SerialList.INVALID_TIME, false);
+        } else if (resultType.code == NOUSER) {
+            // no user
+            result = new SerialList(SerialList.INVALID_USER, false);
+        } else if (resultType.code == TRUNCATED) {
+            // history at this time is collected
+            result = new SerialList(SerialList.TRUNCATED_TIME, false);
+        } else {
+            // valid time
+            result = new SerialList(SerialList.SUCCESS, true); // get result
+            result.setList(resultType.getResult()); // serialize list
+        }
+        return result;
+    }
+
+    /**
+     * Where chunks of a streamed result go, each chunk is sent at once
+     */
+    interface ChunkWriter {
+        void write(SerialList chunk) throws IOException;
+    }
+
+    /**
+     * method to do history command: changes of a user between 2 times, sent in chunks of at most HISTORY_CHUNK events,
+     * the user's lock is released between chunks and only one chunk is in memory at a time
+     *
+     * @param order: command <history user time1 time2>
+     * @param writer: where chunks go, chunks before the last one have status MORE
+     * @throws IOException if a chunk can not be sent
+     */
+    void history(String order, ChunkWriter writer) throws IOException {
+        long start = System.nanoTime();
+        String[] input = order.split(" ");
+        SerialList result;
+        if (input.length != 4) {
+            result = new SerialList(SerialList.INVALID_INPUT, false);
+        } else if (!isTimeValid(input[2]) || !isTimeValid(input[3])) {
+            result = new SerialList(SerialList.INVALID_TIME, false);
+        } else if (Integer.parseInt(input[2]) > Integer.parseInt(input[3])) {
+            result = new SerialList(SerialList.REVERSED_TIME, false);
+        } else {
+            HistoryCursor cursor = new HistoryCursor(input[1], Integer.parseInt(input[2]), Integer.parseInt(input[3]));
+            while (true) {
+                // on a node of a cluster, the user may be moved between chunks
+                Lock owned = node == null ? null : node.admit(input);
+                if (node != null && owned == null) {
+                    result = new SerialList(SerialList.MOVED, false);
+                    break;
+                }
+                ResultType resultType;
+                try {
+                    resultType = service.history(cursor, HISTORY_CHUNK);
+                } finally {
+                    if (owned != null) {
+                        owned.unlock();
+                    }
+                }
+                if (resultType.code == INVALIDTIME) {
+                    result = new SerialList(SerialList.INVALID_TIME, false);
+                } else if (resultType.code == NOUSER) {
+                    result = new SerialList(SerialList.INVALID_USER, false);
+                } else if (resultType.code == TRUNCATED) {
+                    // history from the next event is collected, maybe after some chunks are sent
+                    result = new SerialList(SerialList.TRUNCATED_TIME, false);
+                } else {
+                    result = new SerialList(cursor.isDone() ? SerialList.SUCCESS : SerialList.MORE, true);
+                    result.setList(resultType.getResult());
+                }
+                if (result.status != SerialList.MORE) {
+                    break;
+                }
+                writer.write(result);
+            }
+        }
+        writer.write(result);
+        metrics.record(Metrics.commandOf(input[0], input.length), result.status, System.nanoTime() - start);
+    }
+
+    /**
+     * method to do watch command: changes of a user since a time are sent in chunks like history, then every change committed later
+     * is pushed in a chunk as soon as it's durable. Chunks all have status MORE, an empty one is sent after WATCH_KEEPALIVE without changes.
+     * Changes are queued for the watcher by writers without waiting, a watcher more than watchBuffer changes behind is disconnected.
+     *
+     * @param order: command <watch user [time]>, without time only changes from now on are sent
+     * @param client: channel of this client, closed if it falls behind
+     * @param writer: where chunks go
+     * @throws IOException if a chunk can not be sent, or client is disconnected for falling behind
+     */
+    void watch(String order, SocketChannel client, ChunkWriter writer) throws IOException {
+        long start = System.nanoTime();
+        String[] input = order.split(" ");
+        if (input.length != 2 && input.length != 3 || follower != null) {
+            // a replica is replaced when it starts over from a new base, watch primary instead
+            writer.write(new SerialList(SerialList.INVALID_INPUT, false));
+            metrics.record(Metrics.commandOf(input[0], input.length), SerialList.INVALID_INPUT, System.nanoTime() - start);
+            return;
+        }
+        if (input.length == 3 && !isTimeValid(input[2])) {
+            writer.write(new SerialList(SerialList.INVALID_TIME, false));
+            metrics.record(Metrics.commandOf(input[0], input.length), SerialList.INVALID_TIME, System.nanoTime() - start);
+            return;
+        }
+
+        // 1. subscribe first, so no change falls between changes read from history and changes pushed
+        Service store = service;
+        ChangeFeed.Subscription subscription = store.watch(input[1], watchBuffer, () -> {
+            try {
+                client.close(); // on overflow thread of feed, wakes up this watcher if it's blocked on its client
+            } catch (IOException ignored) {
+            }
+        });
+        try {
+            // 2. replay changes before subscription
+            int next = input.length == 3 ? Integer.parseInt(input[2]) : subscription.getFrom(); // the first timestamp not sent yet
+            SerialList end = pushEvents(store, input, next, subscription.getFrom() - 1, writer);
+            metrics.record(Metrics.commandOf(input[0], input.length), end == null ? SerialList.SUCCESS : end.status, System.nanoTime() - start);
+            next = Math.max(next, subscription.getFrom());
+
+            // 3. push changes as they come, until client goes away or the user is moved
+            while (end == null) {
+                List<ChangeFeed.Change> changes;
+                try {
+                    changes = subscription.poll(HISTORY_CHUNK, WATCH_KEEPALIVE);
+                } catch (IllegalStateException e) {
+                    throw new IOException("Watcher of " + input[1] + " is disconnected: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while watching " + input[1]);
+                }
+                if (changes.isEmpty()) {
+                    // nothing happens, check that the user still lives here and client is still there
+                    Lock owned = node == null ? null : node.admit(input);
+                    if (node != null && owned == null) {
+                        end = new SerialList(SerialList.MOVED, false);
+                        break;
+                    }
+                    if (owned != null) {
+                        owned.unlock();
+                    }
+                    SerialList keepalive = new SerialList(SerialList.MORE, true);
+                    keepalive.setList(new ArrayList<>());
+                    writer.write(keepalive);
+                    continue;
+                }
+                int last = changes.get(changes.size() - 1).time;
+                end = pushEvents(store, input, next, last, writer);
+                next = Math.max(next, last + 1);
+            }
+            writer.write(end);
+        } finally {
+            store.getFeed().unsubscribe(subscription);
+        }
+    }
+
+    /**
+     * method to send changes of a watched user between 2 times in chunks, after they are durable
+     *
+     * @param store: store watched
+     * @param input: words of watch command
+     * @param time1: the first timestamp
+     * @param time2: the last timestamp, all changes up to it are published
+     * @param writer: where chunks go, each chunk has status MORE
+     * @return null if watch goes on, or the last chunk ending it, e.g. MOVED if the user is moved to another node
+     * @throws IOException if a chunk can not be sent
+     */
+    private SerialList pushEvents(Service store, String[] input, int time1, int time2, ChunkWriter writer) throws IOException {
+        HistoryCursor cursor = new HistoryCursor(input[1], time1, time2);
+        while (time1 <= time2 && !cursor.isDone()) {
+            // on a node of a cluster, the user may be moved between chunks
+            Lock owned = node == null ? null : node.admit(input);
+            if (node != null && owned == null) {
+                return new SerialList(SerialList.MOVED, false);
+            }
+            ResultType resultType;
+            try {
+                resultType = store.watchedEvents(cursor, HISTORY_CHUNK);
+            } finally {
+                if (owned != null) {
+                    owned.unlock();
+                }
+            }
+            if (resultType.code == TRUNCATED) {
+                return new SerialList(SerialList.TRUNCATED_TIME, false); // history from the time is collected
+            }
+            if (resultType.getResult().isEmpty()) {
+                continue; // only changes doing nothing
+            }
+            store.awaitDurable();
+            SerialList result = new SerialList(SerialList.MORE, true);
+            result.setList(resultType.getResult());
+            writer.write(result);
+        }
+        return null;
+    }
+
+    /**
+     * method to read all metrics of server and sizes of store
+     *
+     * @return <name, value> in a fixed order
+     */
+    Map<String, Long> stats() {
+        Map<String, Long> values = metrics.snapshot();
+        values.putAll(service.stats());
+        if (follower != null) {
+            values.putAll(follower.stats());
+        }
+        return values;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // read options as <--name value> pairs
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        int serverPort = Integer.parseInt(options.getOrDefault("--port", "5000")); // set server port, 5000 by default
+        int maxConnections = Integer.parseInt(options.getOrDefault("--max-connections", "1024")); // set max number of connected clients
+
+        int checkpointInterval = Integer.parseInt(options.getOrDefault("--checkpoint-interval", String.valueOf(Service.DEFAULT_CHECKPOINT_INTERVAL))); // events, 0 to turn off
+        boolean offHeap = options.getOrDefault("--storage", "heap").equals("off-heap"); // keep histories on heap by default
+        int logCommands = Integer.parseInt(options.getOrDefault("--log-commands", "0")); // log 1 of every n commands, 0 to log none
+
+        // background tasks run on one thread, so snapshots, spills and history collection never run together
+        ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "background");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // a follower keeps a read-only replica of primary, changes only come from primary, so it has no log of its own
+        // with a data directory, every change is logged and replayed after restart, otherwise store lives only in memory
+        Service service;
+        if (options.containsKey("--replica-of")) {
+            service = Service.emptyReplica(checkpointInterval, offHeap); // served until the first base of primary is loaded
+        } else if (options.containsKey("--data-dir")) {
+            WriteAheadLog.SyncMode syncMode = WriteAheadLog.SyncMode.valueOf(options.getOrDefault("--fsync", "interval").toUpperCase());
+            long interval = Long.parseLong(options.getOrDefault("--fsync-interval", "10")); // milliseconds
+            WriteAheadLog wal = WriteAheadLog.open(Paths.get(options.get("--data-dir")), syncMode, interval);
+            int hotHistory = Integer.parseInt(options.getOrDefault("--hot-history", "0")); // timestamps kept in memory, 0 to never spill
+            service = new Service(wal, checkpointInterval, offHeap, hotHistory);
+            if (options.containsKey("--bulk-load")) {
+                bulkLoad(service, options.get("--bulk-load")); // before background tasks, nothing else touches store while it's loaded
+            }
+
+            // take snapshots in background, so restart only replays log written after the latest snapshot
+            long snapshotInterval = Long.parseLong(options.getOrDefault("--snapshot-interval", "300")); // seconds
+            final Service store = service;
+            background.scheduleWithFixedDelay(() -> {
+                try {
+                    store.snapshot();
+                } catch (Exception e) {
+                    System.out.println("Error: " + e);
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+
+            // spill cold history to disk
+            if (hotHistory > 0) {
+                long spillInterval = Long.parseLong(options.getOrDefault("--spill-interval", "60")); // seconds
+                background.scheduleWithFixedDelay(() -> {
+                    try {
+                        store.spill();
+                    } catch (Exception e) {
+                        System.out.println("Error: " + e);
+                    }
+                }, spillInterval, spillInterval, TimeUnit.SECONDS);
+            }
+
+            // flush log when server is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    wal.close();
+                } catch (IOException e) {
+                    System.out.println("Error: " + e);
+                }
+            }));
+        } else {
+            service = new Service(null, checkpointInterval, offHeap);
+            if (options.containsKey("--bulk-load")) {
+                bulkLoad(service, options.get("--bulk-load"));
+            }
+        }
+
+        Server server = new Server(serverPort, maxConnections, service, new Metrics(logCommands)); // initialize a server
+
+        // collect history out of retention, latest timestamps or latest changes of each user are kept
+        // a follower collects its own replica by its own options, it may keep more or less history than primary
+        int retainHistory = Integer.parseInt(options.getOrDefault("--retain-history", "0")); // timestamps, 0 to keep all
+        int retainVersions = Integer.parseInt(options.getOrDefault("--retain-versions", "0")); // changes of each user, 0 to keep all
+        service.setRetention(retainHistory, retainVersions);
+
+        // cache results of get and diff at times already passed, they never change, off by default
+        long resultCache = Long.parseLong(options.getOrDefault("--result-cache", "0")) << 20; // megabytes, 0 to turn it off
+        service.setResultCache(resultCache);
+        if (retainHistory > 0 || retainVersions > 0) {
+            long retentionInterval = Long.parseLong(options.getOrDefault("--retention-interval", "60")); // seconds
+            background.scheduleWithFixedDelay(() -> {
+                try {
+                    server.service.collectHistory(); // replica served now on a follower
+                } catch (Exception e) {
+                    System.out.println("Error: " + e);
+                }
+            }, retentionInterval, retentionInterval, TimeUnit.SECONDS);
+        }
+
+        if (options.containsKey("--replica-of")) {
+            // follow primary at <host:port>, cold segments of each base go into data directory or a temporary one
+            String[] primary = options.get("--replica-of").split(":");
+            Path dir = options.containsKey("--data-dir") ? Paths.get(options.get("--data-dir")) : Files.createTempDirectory("replica");
+            server.follower = new Replication.Follower(primary[0], Integer.parseInt(primary[1]), dir, checkpointInterval, offHeap, replica -> {
+                replica.setRetention(retainHistory, retainVersions);
+                replica.setResultCache(resultCache);
+                server.service = replica; // commands started later read new replica
+            });
+            Thread thread = new Thread(server.follower, "replication");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            // followers are dropped once this many changes wait for them, they start over from a new base
+            server.replicationBuffer = Integer.parseInt(options.getOrDefault("--replication-buffer", String.valueOf(server.replicationBuffer)));
+
+            // watchers are disconnected once this many changes of their user wait for them
+            server.watchBuffer = Integer.parseInt(options.getOrDefault("--watch-buffer", String.valueOf(server.watchBuffer)));
+
+            // heartbeats tell followers how far primary is even if nothing changes, on their own thread so snapshots don't delay them
+            ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final Service store = service;
+            heartbeats.scheduleAtFixedRate(store::heartbeat, Replication.HEARTBEAT_INTERVAL, Replication.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        if (options.containsKey("--nodes")) {
+            // a node of a cluster only serves users it owns, a node added later serves nothing until its users are moved in
+            HashRing ring = HashRing.parse(options.get("--nodes"));
+            int index = Integer.parseInt(options.getOrDefault("--node-index", "0"));
+            server.node = new Cluster.Node(ring, index, Boolean.parseBoolean(options.getOrDefault("--joining", "false")));
+            server.maxClockSkew = Integer.parseInt(options.getOrDefault("--max-clock-skew", String.valueOf(server.maxClockSkew)));
+            server.clusterToken = options.get("--cluster-token"); // without it, only hosts of nodes can move users
+
+            // sync clocks with other nodes, so timestamps of nodes stay close even without routers moving them
+            ScheduledExecutorService clocks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "clock");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Router[] router = {null}; // kept between syncs, opened again when ring changes or a node fails
+            clocks.scheduleWithFixedDelay(() -> {
+                try {
+                    if (router[0] == null || router[0].getRing() != server.node.getRing()) {
+                        if (router[0] != null) {
+                            router[0].close();
+                        }
+                        router[0] = new Router(server.node.getRing());
+                    }
+                    server.service.syncClock(router[0].sync(server.service.getTimestamp()), server.maxClockSkew); // a time refused by other nodes fails sync
+                } catch (IOException e) {
+                    try {
+                        router[0].close(); // some node is not up yet or gone, try again next time
+                    } catch (IOException ignored) {
+                    }
+                    router[0] = null;
+                }
+            }, Cluster.CLOCK_INTERVAL, Cluster.CLOCK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            Metrics.register(server::stats); // metrics are also read by JMX
+        } catch (JMException e) {
+            System.out.println("Error: " + e);
+        }
         server.start(); // start this server
     }
 
+    /**
+     * method to seed a new store with a command file, the same as sending it by Client but without any result.
+     * A store which is not empty, e.g. restarted from its data directory, is not loaded again
+     *
+     * @param service: the store, not open to clients yet
+     * @param file: command file, one command each line
+     * @throws IOException if file can not be loaded, or snapshot of it can not be written
+     */
+    private static void bulkLoad(Service service, String file) throws IOException {
+        long start = System.nanoTime();
+        long lines;
+        try {
+            lines = BulkLoader.load(service, Paths.get(file));
+        } catch (IllegalStateException e) {
+            System.out.println("Bulk load skipped: store is not empty");
+            return;
+        }
+        System.out.println("Bulk load of " + lines + " lines at timestamp " + service.getTimestamp() + " done in " + (System.nanoTime() - start) / 1000000 + " ms");
+        service.snapshot(true); // nothing of it is logged
+    }
+
     /**
      * method to check if input time is a valid integer
      *
@@ -240,6 +1078,42 @@ public class Server {
     public static class SerialList implements Serializable {
         // I define a result type to return results back to client.
         // It's basically a list, but for socket transportation, I implements Serializable to serialize it
+        // UID of the first version, fields are only added since then, so old clients and servers of legacy protocol still read it
+        private static final long serialVersionUID = 6526672527626728091L;
+
+        // status of a result, binary protocol only sends status and client finds its signal
+        static final byte SUCCESS = 0; // operate successfully
+        static final byte INVALID_INPUT = 1; // command is in wrong format
+        static final byte QUIT = 2; // server received quit command
+        static final byte INVALID_TIME = 3; // time is not an integer or it's too large
+        static final byte NO_FRIEND = 4; // user does not have any friends now
+        static final byte INVALID_USER = 5; // no such user
+        static final byte NOT_FRIEND = 6; // deleted friend is not user's friend
+        static final byte REVERSED_TIME = 7; // time1 > time2 in diff
+        static final byte TRUNCATED_TIME = 8; // history at the time is collected by retention policy
+        static final byte MORE = 9; // a chunk of a streamed result, more chunks follow, the last one has status of whole result
+        static final byte READ_ONLY = 10; // a change sent to a follower, changes only go to primary
+        static final byte MOVED = 11; // a user not owned by this node of cluster, client should find its owner again
+        static final byte FORBIDDEN = 12; // a command moving users, from a caller which is not a node of cluster and has no cluster token
+
+        // initialize some useful output string :)
+        private static final String[] SIGNALS = {
+                "Success ",
+                "Invalid input! ",
+                "Server received and quitting. Thanks for using! ",
+                "Invalid time, please enter an integer or a smaller one! ",
+                "This user does not have any friends yet or he/she deleted before :(. ",
+                "Invalid user ",
+                "This user does not have this friends yet!",
+                "Invalid input! Time1 should <= Time2",
+                "History before this time is truncated! ",
+                "Success ",
+                "This server is a read-only replica, send changes to primary! ",
+                "This user lives on another node, reload nodes of cluster! ",
+                "Only nodes of this cluster can move users, or the cluster token is wrong! "
+        };
+
+        byte status; // status of this result
         List<String> list; // a list to record friends names
         String signal; // record some extra output info to remind client, like success or warning
         boolean hasList; // mark if we should check and/or print friends name's list
@@ -247,11 +1121,12 @@ public class Server {
         /**
          * Constructor
          *
-         * @param signal: string of extra output info
+         * @param status: status of this result, it decides the extra output info
          * @param hasList: marks of checking/printing friends name's list or not
          */
-        SerialList(String signal, boolean hasList){
-            this.signal = signal;
+        SerialList(byte status, boolean hasList){
+            this.status = status;
+            this.signal = SIGNALS[status];
             this.hasList = hasList;
         }
 
@@ -272,5 +1147,28 @@ public class Server {
         void setList(List<String> list) {
             this.list = list;
         }
+
+        /**
+         * method to format this result as one line, the same as client prints it, e.g. Success {a, b}
+         *
+         * @return signal followed by list if there's one
+         */
+        String line() {
+            return hasList ? signal + "{" + String.join(", ", list) + "}" : signal;
+        }
+
+        /**
+         * method to read a result of legacy protocol, a result of an old server has no status, it's found by its signal
+         *
+         * @param in: stream of result
+         * @throws IOException if result can not be read
+         * @throws ClassNotFoundException if a class in result is unknown
+         */
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            if (status == SUCCESS && signal != null && !signal.equals(SIGNALS[SUCCESS])) {
+                status = (byte) Math.max(SUCCESS, Arrays.asList(SIGNALS).indexOf(signal));
+            }
+        }
     }
 }
\ No newline at end of file
@@ -1,23 +1,154 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 /**
  * APIs for Key Value Store
+ *
+ * It's safe to be used by many threads: each user is guarded by one of striped read-write locks, so operations on different users run in parallel.
+ * A timestamp is always taken while holding the user's lock, so once a reader holds the lock, every timestamp of this user before current timestamp has been applied.
+ *
+ * With a data directory, history older than the latest hotHistory timestamps can be spilled to HistoryTier on disk, memory keeps
+ * the rest of each user's history and its friends at that point, get(key, time) and diff before it read the tier.
+ * A retention policy keeps the latest retainHistory timestamps, or the latest retainVersions changes of each user, history before
+ * them is collapsed into friends at that point by collectHistory(), and get(key, time) and diff before it are refused as truncated.
+ *
+ * mget and mget-at read many users in one call, keys are split among threads of a fork-join pool, each key is read like a single get.
  */
 public class Service {
-    public int timestamp; // record the timestamp
-    public Map<String, TreeMap<Integer, Friend>> users; // record all historic users info, TreeMap sorts friends names with timestamp order: <userName, <timestamp, friendName>>
-    public Map<String, TreeMap<Integer,List<Friend>>> deleted; // record all deleted friends associated with users: <userName, <timestamp, {friendName}>>
-    public Map<String, List<Friend>> currFriends; // record only users' current friends info before deletion or new friends after deletion: <userName, {friendName}>
+    static final int STRIPES = 256; // number of striped locks, must be power of 2
+    private static final int BATCH_SLICE = 64; // keys of mget read by one task, smaller batches are read by caller alone
+    private static final ForkJoinPool READERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors()); // threads of mget, shared by all stores
+    static final int DEFAULT_CHECKPOINT_INTERVAL = 1024; // about 1% more memory for friends lists of thousands, and get(key, time) 2-3 times faster than max-tree
+
+    private final AtomicInteger timestamp; // record the timestamp
+    private final Map<String, KeyHistory> users; // record all historic users info, puts and deletions of friends in timestamp order: <userName, {timestamp, operation, friend}>
+    private final Map<String, CurrentFriends> currFriends; // record only users' current friends info before deletion or new friends after deletion, in order of being added: <userName, {friend}>
+    private final StringDictionary friendIds; // id of each friend's name, histories, indexes and current friends keep ids instead of names
+    private final Map<String, IntervalIndex> indexes; // record interval of each friend of users for get(key, time): <userName, index>
+    private final ReadWriteLock[] locks; // striped locks, history, index and current friends of a user are only touched while holding its lock
+    private final WriteAheadLog wal; // log of all changes, null if store lives only in memory
+    private final int checkpointInterval; // events of a user between 2 checkpoints of its friends, 0 to use max-tree instead
+    private final OffHeapArena arena; // off-heap memory of histories and indexes, null if they are on heap
+    private final HistoryTier tier; // cold history on disk, null if store lives only in memory
+    private final int hotHistory; // latest timestamps always kept in memory, 0 if history is never spilled
+    private volatile int retainHistory; // latest timestamps kept by retention policy, 0 to keep all
+    private volatile int retainVersions; // latest changes of each user kept by retention policy, 0 to keep all
+    private volatile int retentionHorizon; // the oldest timestamp kept for all users, new users start with it
+    private final ChangeFeed feed = new ChangeFeed(); // changes in timestamp order for followers, writers take timestamps under its monitor
+    private volatile ResultCache cache; // results of get and diff at times already passed, null if it's off
+    private final boolean replica; // true if changes only come from a primary, reads don't take timestamps then
 
     /**
-     * Constructor
+     * Constructor of a store living only in memory
      */
     public Service() {
+        this(null, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Constructor of a durable store with default checkpoint interval
+     *
+     * @param wal: write-ahead log, or null if store lives only in memory
+     * @throws UncheckedIOException if log can not be replayed
+     */
+    public Service(WriteAheadLog wal) {
+        this(wal, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Constructor of a durable store keeping histories on heap
+     *
+     * @param wal: write-ahead log, or null if store lives only in memory
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends for get(key, time), 0 to use max-tree instead
+     * @throws UncheckedIOException if log can not be replayed
+     */
+    public Service(WriteAheadLog wal, int checkpointInterval) {
+        this(wal, checkpointInterval, false);
+    }
+
+    /**
+     * Constructor of a durable store keeping all history in memory
+     *
+     * @param wal: write-ahead log, or null if store lives only in memory
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends for get(key, time), 0 to use max-tree instead
+     * @param offHeap: true to keep histories and indexes off heap, so heap and GC pauses don't grow with history
+     * @throws UncheckedIOException if log can not be replayed
+     */
+    public Service(WriteAheadLog wal, int checkpointInterval, boolean offHeap) {
+        this(wal, checkpointInterval, offHeap, 0);
+    }
+
+    /**
+     * Constructor of a durable store, it loads the latest snapshot and replays the log after it to rebuild history with same timestamps, then logs every change
+     *
+     * @param wal: write-ahead log, or null if store lives only in memory
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends for get(key, time), 0 to use max-tree instead
+     * @param offHeap: true to keep histories and indexes off heap, so heap and GC pauses don't grow with history
+     * @param hotHistory: latest timestamps kept in memory by spill(), 0 to keep all history in memory, only used with a log
+     * @throws UncheckedIOException if log or history segments can not be read
+     */
+    public Service(WriteAheadLog wal, int checkpointInterval, boolean offHeap, int hotHistory) {
+        this(wal, wal == null ? null : wal.getDir(), checkpointInterval, offHeap, hotHistory, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param wal: write-ahead log, or null if store is not logged
+     * @param tierDir: directory of history segments, null if nothing is on disk
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends for get(key, time), 0 to use max-tree instead
+     * @param offHeap: true to keep histories and indexes off heap
+     * @param hotHistory: latest timestamps kept in memory by spill(), 0 to keep all history in memory, only used with a log
+     * @param replica: true if changes only come from a primary by applyReplicated()
+     * @throws UncheckedIOException if log or history segments can not be read
+     */
+    private Service(WriteAheadLog wal, Path tierDir, int checkpointInterval, boolean offHeap, int hotHistory, boolean replica) {
+        this.checkpointInterval = checkpointInterval; // set before replay builds indexes
+        this.replica = replica;
+        this.arena = offHeap ? new OffHeapArena() : null;
+        this.hotHistory = hotHistory;
         // initialization
-        timestamp = 0; // I assume the number of operations will be in int range, and each valid operation will be on 1 single timestamp
-        users = new HashMap<>();
-        deleted = new HashMap<>();
-        currFriends = new HashMap<>();
+        timestamp = new AtomicInteger(0); // I assume the number of operations will be in int range, and each valid operation will be on 1 single timestamp
+        users = new ConcurrentHashMap<>();
+        friendIds = new StringDictionary();
+        currFriends = new ConcurrentHashMap<>();
+        indexes = new ConcurrentHashMap<>();
+        locks = new ReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+
+        this.wal = wal;
+        try {
+            tier = tierDir == null ? null : new HistoryTier(tierDir); // opened even if spill is off now, snapshot may have users spilled before
+            if (wal != null) {
+                long from = Snapshot.load(this, wal.getDir()); // segments before this one are in snapshot
+                wal.replay(this, from);
+                // timestamps taken by reads after the last record are not logged, but spill may have moved past them
+                advanceTimestamp(tier.watermark());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (wal != null) {
+            wal.setClock(timestamp::get);
+        }
     }
 
     // some codes used to mark result status
@@ -26,6 +157,70 @@ public class Service {
     private final int SUCCESS = 1; // delete successfully
     private final int NOFRIEND = 2; // no such searching friend
     private final int INVALIDTIME = 3; // invalid time error
+    private final int TRUNCATED = 4; // history at the time is collected by retention policy
+
+    /**
+     * method to get current timestamp, the next operation will be on it
+     *
+     * @return current timestamp
+     */
+    public int getTimestamp() {
+        return timestamp.get();
+    }
+
+    /**
+     * method to find the lock guarding a user
+     *
+     * @param userName: the user to be locked
+     * @return the striped lock of this user
+     */
+    private ReadWriteLock lockOf(String userName) {
+        return locks[stripeOf(userName)];
+    }
+
+    /**
+     * method to find the stripe of a user, users of different stripes never share a lock
+     *
+     * @param userName: the user
+     * @return index of its striped lock
+     */
+    static int stripeOf(String userName) {
+        int hash = userName.hashCode();
+        hash ^= (hash >>> 16); // spread higher bits, same as HashMap does
+        return hash & (STRIPES - 1);
+    }
+
+    /**
+     * method to take a timestamp for a change and publish the change to followers, caller should hold the user's write lock.
+     * Timestamp is taken under monitor of feed, so changes are published in timestamp order, or without it if nobody reads feed
+     *
+     * @param operation: WriteAheadLog.PUT, DELETE_USER or DELETE_FRIEND
+     * @param userName: user of change
+     * @param friendName: friend of change, empty if there isn't
+     * @return timestamp of change
+     */
+    private int takeTimestamp(byte operation, String userName, String friendName) {
+        if (!feed.isPublishing()) {
+            return timestamp.getAndIncrement(); // a new subscriber waits for this user's lock before it reads timestamp
+        }
+        synchronized (feed) {
+            int time = timestamp.getAndIncrement();
+            if (feed.hasSubscribers()) {
+                // a change that turns out to do nothing is published too, follower gets the same result from the same history
+                feed.publish(new ChangeFeed.Change(operation, time, userName, friendName, 0));
+            }
+            return time;
+        }
+    }
+
+    /**
+     * method to take a timestamp for a read, a replica doesn't take any since its timestamps come from primary
+     *
+     * @return timestamp taken, or the latest applied timestamp of a replica
+     */
+    private int tick() {
+        return replica ? timestamp.get() - 1 : timestamp.getAndIncrement();
+    }
 
     /**
      * realize put(key, value) method
@@ -34,33 +229,50 @@ public class Service {
      * @param friendName: a new user's friend - value
      */
     public void put(String userName, String friendName) {
-        // 1. create this new friend
-        Friend friend = new Friend(timestamp, 1, friendName);
-
-        // 2. insert this new friend into user's friend map with timestamp
-        TreeMap<Integer, Friend> friends = users.getOrDefault(userName, new TreeMap<>());
-        friends.put(timestamp, friend);
-        users.put(userName, friends);
-
-        // 3. insert this new friend into current friend map if necessary
-        List<Friend> list = currFriends.getOrDefault(userName, new LinkedList<>());
-        // check if user already has this friend in current friend list
-        boolean alreadyHas = false;
-        for (Friend f :
-                list) {
-            if (f.equals(friend)) {
-                alreadyHas = true;
-                break;
-            }
-        }
-        // if user does not have this friend in current friend list, then add it
-        if (!alreadyHas) {
-            list.add(friend); // add friend to user's list
-            currFriends.put(userName, list); // update currFriends map
+        long logged; // log position of this change
+        ReadWriteLock lock = lockOf(userName);
+        lock.writeLock().lock();
+        try {
+            int time = takeTimestamp(WriteAheadLog.PUT, userName, friendName); // take a timestamp and update timestamp
+            applyPut(userName, friendName, time);
+            logged = log(WriteAheadLog.PUT, time, userName, friendName);
+        } finally {
+            lock.writeLock().unlock();
         }
+        commit(logged); // wait until change is durable, without blocking this user's other operations
+    }
+
+    /**
+     * method to apply put(key, value) on a timestamp, caller should hold user's write lock
+     *
+     * @param userName: current user - key
+     * @param friendName: a new user's friend - value
+     * @param time: timestamp of this operation
+     */
+    private void applyPut(String userName, String friendName, int time) {
+        applyPut(userName, friendIds.id(friendName), time);
+    }
 
-        // update timestamp
-        timestamp++;
+    /**
+     * method to apply put(key, value) of a friend already in friendIds on a timestamp, caller should hold user's write lock
+     *
+     * @param userName: current user - key
+     * @param friend: id of the new friend - value
+     * @param time: timestamp of this operation
+     */
+    private void applyPut(String userName, int friend, int time) {
+        // 1. record this put in user's history, create the user if it's new
+        users.computeIfAbsent(userName, name -> {
+            KeyHistory history = new KeyHistory(arena);
+            history.setHorizon(retentionHorizon); // nothing before it is known for any user
+            return history;
+        }).append(KeyHistory.PUT, time, friend);
+
+        // 2. open an interval of this friend if it's not a current friend
+        indexes.computeIfAbsent(userName, name -> new IntervalIndex(checkpointInterval, arena)).add(friend, time);
+
+        // 3. insert this new friend into current friend map if user does not have it yet, an existing friend keeps its place
+        currFriends.computeIfAbsent(userName, name -> new CurrentFriends()).add(friend, time);
     }
 
     /**
@@ -70,30 +282,32 @@ public class Service {
      * @return a list of friends' names
      */
     public ResultType get(String userName) {
-        timestamp++; // update timestamp
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            tick(); // update timestamp
 
-        // 1. edge case: search a user which is not in our store yet
-        if (!users.containsKey(userName)) {
-            return new ResultType(NOUSER);
-        }
+            // 1. edge case: search a user which is not in our store yet
+            if (!users.containsKey(userName)) {
+                return new ResultType(NOUSER);
+            }
 
-        // 2. get current friends list
-        List<Friend> friends = new LinkedList<>(currFriends.get(userName));
-        if (friends.isEmpty()) {
-            return new ResultType(NOFRIEND);
-        }
+            // 2. get current friends list, user may have deleted all of them
+            CurrentFriends friends = currFriends.get(userName);
+            if (friends == null || friends.isEmpty()) {
+                return new ResultType(NOFRIEND);
+            }
 
-        // 3. get each friend's name
-        List<String> result = new LinkedList<>();
-        for (Friend friend :
-                friends) {
-            result.add(friend.getName());
-        }
+            // 3. get each friend's name
+            List<String> result = friends.names(friendIds);
 
-        // 4. return resultType
-        ResultType resultType = new ResultType(SUCCESS);
-        resultType.setResult(result);
-        return resultType;
+            // 4. return resultType
+            ResultType resultType = new ResultType(SUCCESS);
+            resultType.setResult(result);
+            return resultType;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -104,53 +318,142 @@ public class Service {
      * @return a list of friends' names before time of this user
      */
     public ResultType get(String userName, int time) {
-        // 1. edge case: input time is larger than timestamp
-        if (time >= timestamp) {
-            return new ResultType(INVALIDTIME);
+        // a result at a time already passed never changes, it may be cached
+        ResultCache results = cache;
+        if (results != null) {
+            List<String> cached = results.get(userName, time, -1);
+            if (cached != null) {
+                tick(); // a hit takes a timestamp like any get
+                ResultType resultType = new ResultType(SUCCESS);
+                resultType.setResult(cached);
+                return resultType;
+            }
         }
+        int generation = results == null ? 0 : results.generation();
 
-        // 2. edge case: this user is not in our store yet
-        if (!users.containsKey(userName)) {
-            return new ResultType(NOUSER);
-        }
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            // 1. edge case: input time is larger than timestamp
+            if (time >= timestamp.get()) {
+                return new ResultType(INVALIDTIME);
+            }
 
-        timestamp++; // update timestamp
+            // 2. edge case: this user is not in our store yet
+            if (!users.containsKey(userName)) {
+                return new ResultType(NOUSER);
+            }
+
+            // 3. edge case: history at time is collected
+            List<String> friends = getAt(userName, time);
+            if (friends == null) {
+                return new ResultType(TRUNCATED);
+            }
 
-        List<Friend> friends = new LinkedList<>(); // friends list
+            tick(); // update timestamp
+            if (results != null) {
+                results.put(userName, time, -1, friends, generation);
+            }
 
-        // 3. iterate friends with timestamp up to time
-        for (Map.Entry<Integer, Friend> entry : users.get(userName).subMap(0, time + 1).entrySet()) {
-            friends.add(entry.getValue());
+            // 4. return resultType
+            ResultType resultType = new ResultType(SUCCESS);
+            resultType.setResult(friends);
+            return resultType;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        // 4. remove friends who may be deleted by user during this time
-        if (deleted.containsKey(userName)) {
-            Map<Integer, List<Friend>> deletedFriends = deleted.get(userName).subMap(0, time + 1);
-            // if some friends are indeed deleted during this time
-            if (!deletedFriends.isEmpty()) {
-                for (Map.Entry<Integer, List<Friend>> entry :
-                        deletedFriends.entrySet()) {
-                    // get each deleted friend in different timestamp
-                    List<Friend> list = entry.getValue();
-                    for (Friend friend :
-                            list) {
-                        friends.remove(friend); // remove deleted friend
-                    }
-                }
-            }
+    /**
+     * method to find friends' names of a user at a specific time, caller should hold user's lock and make sure user exists
+     *
+     * @param userName: the user who does get operation
+     * @param time: a specific timestamp
+     * @return a list of friends' names before time of this user, null if history at time is collected by retention policy
+     */
+    private List<String> getAt(String userName, int time) {
+        KeyHistory history = users.get(userName);
+        if (time < history.getHorizon()) {
+            return null;
+        }
+        if (time < history.getFloor() - 1) {
+            return tier.get(userName, time); // cold, memory only knows friends from floor - 1, tier may have collected it too
         }
+        return indexes.get(userName).get(time, friendIds); // friends whose interval covers time, in order of being added
+    }
+
+    /**
+     * realize mget(keys) method: get(key) of many users, read in parallel
+     *
+     * @param userNames: the users been searched
+     * @return result of get(key) of each user, in same order as userNames
+     */
+    public List<ResultType> mget(List<String> userNames) {
+        return batchGet(userNames, -1);
+    }
 
-        // 5. get final return result with friends' names
-        List<String> result = new LinkedList<>();
-        for (Friend friend :
-                friends) {
-            result.add(friend.getName());
+    /**
+     * realize mget-at(keys, time) method: get(key, time) of many users at one time, read in parallel
+     *
+     * @param userNames: the users been searched
+     * @param time: a specific timestamp
+     * @return result of get(key, time) of each user, in same order as userNames
+     */
+    public List<ResultType> mget(List<String> userNames, int time) {
+        return batchGet(userNames, time);
+    }
+
+    /**
+     * method to do get of many users, each one takes its own lock and timestamp like a single get,
+     * so result is same as a sequence of single gets, except the order of timestamps among them
+     *
+     * @param userNames: the users been searched
+     * @param time: a specific timestamp, -1 for current friends
+     * @return result of each user, in same order as userNames
+     */
+    private List<ResultType> batchGet(List<String> userNames, int time) {
+        String[] names = userNames.toArray(new String[0]);
+        ResultType[] results = new ResultType[names.length];
+        BatchGet task = new BatchGet(names, time, results, 0, names.length);
+        if (names.length <= BATCH_SLICE || READERS.getParallelism() == 1) {
+            task.compute(); // not worth handing to other threads, or there's no other core to run them
+        } else {
+            READERS.invoke(task);
         }
+        return Arrays.asList(results);
+    }
 
-        // 6. return resultType
-        ResultType resultType = new ResultType(SUCCESS);
-        resultType.setResult(result);
-        return resultType;
+    /**
+     * Task of mget: reads keys in [from, to), splits itself in halves until a slice is small enough
+     */
+    @SuppressWarnings("serial") // tasks are never serialized
+    private class BatchGet extends RecursiveAction {
+
+        private final String[] names; // all keys of mget
+        private final int time; // time of get, -1 for current friends
+        private final ResultType[] results; // result of each key
+        private final int from; // the first key of this task
+        private final int to; // after the last key of this task
+
+        BatchGet(String[] names, int time, ResultType[] results, int from, int to) {
+            this.names = names;
+            this.time = time;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SLICE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchGet(names, time, results, from, middle), new BatchGet(names, time, results, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                results[i] = time < 0 ? Service.this.get(names[i]) : Service.this.get(names[i], time); // not get() of ForkJoinTask
+            }
+        }
     }
 
     /**
@@ -160,32 +463,51 @@ public class Service {
      * @return true means deletion completed, false means there's no such user in our store
      */
     public int delete(String userName) {
+        int code;
+        long logged = -1; // log position of this change, -1 if nothing changed
+        ReadWriteLock lock = lockOf(userName);
+        lock.writeLock().lock();
+        try {
+            int time = takeTimestamp(WriteAheadLog.DELETE_USER, userName, ""); // take a timestamp and update timestamp
+            code = applyDelete(userName, time);
+            if (code == SUCCESS) {
+                logged = log(WriteAheadLog.DELETE_USER, time, userName, "");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(logged);
+        return code;
+    }
+
+    /**
+     * method to apply delete(key) on a timestamp, caller should hold user's write lock
+     *
+     * @param userName: the user which is gonna delete
+     * @param time: timestamp of this operation
+     * @return true means deletion completed, false means there's no such user in our store
+     */
+    private int applyDelete(String userName, int time) {
         // 1. edge case: this user is not in our store yet
         if (!users.containsKey(userName)) {
-            timestamp++; // update timestamp
             return NOUSER;
         }
 
         // 2. edge case: this user does not have current friends list
         if (!currFriends.containsKey(userName)) {
-            timestamp++; // update timestamp
             return HASDELETED;
         }
 
-        // 3. user has some friends right now, record this operation and deleted friends in deleted map
-        List<Friend> friends = new LinkedList<>(currFriends.get(userName)); // get friends list to be deleted
-        TreeMap<Integer, List<Friend>> toDel = deleted.getOrDefault(userName, new TreeMap<>()); // this user's deleted map
-        List<Friend> toDelFriends = new LinkedList<>(); // list to record deleted friends
-        for (Friend friend :
-                friends) {
-            toDelFriends.add(new Friend(timestamp, -1, friend.getName())); // added deleted friends
+        // 3. user has some friends right now, record a deletion of each friend in history on this timestamp
+        KeyHistory history = users.get(userName);
+        for (int friend :
+                currFriends.get(userName).ids()) {
+            history.append(KeyHistory.DELETE, time, friend);
         }
-        toDel.put(timestamp, toDelFriends); // add deleted list with timestamp
-        deleted.put(userName, toDel); // update deleted map
+        indexes.get(userName).deleteAll(time); // close intervals of all current friends
 
         // 4. change this user's current friend from current friends lis, keep historic data in users map
         currFriends.remove(userName); // remove from current friends list
-        timestamp++; // update timestamp
 
         return SUCCESS;
     }
@@ -198,91 +520,1250 @@ public class Service {
      * @return true means deletion completed, false means this friend is not user's friend yet
      */
     public int delete(String userName, String friendName) {
+        int code;
+        long logged = -1; // log position of this change, -1 if nothing changed
+        ReadWriteLock lock = lockOf(userName);
+        lock.writeLock().lock();
+        try {
+            int time = takeTimestamp(WriteAheadLog.DELETE_FRIEND, userName, friendName); // take a timestamp and update timestamp
+            code = applyDelete(userName, friendName, time);
+            if (code == SUCCESS) {
+                logged = log(WriteAheadLog.DELETE_FRIEND, time, userName, friendName);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(logged);
+        return code;
+    }
+
+    /**
+     * method to apply delete(key, value) on a timestamp, caller should hold user's write lock
+     *
+     * @param userName: the user who wants do deletion
+     * @param friendName: the friend who is gonna be deleted
+     * @param time: timestamp of this operation
+     * @return true means deletion completed, false means this friend is not user's friend yet
+     */
+    private int applyDelete(String userName, String friendName, int time) {
+        return applyDelete(userName, friendIds.find(friendName), time); // -1 if this name was never put, so it's not a friend
+    }
+
+    /**
+     * method to apply delete(key, value) on a timestamp by id of friend, caller should hold user's write lock
+     *
+     * @param userName: the user who wants do deletion
+     * @param friend: id of the friend who is gonna be deleted, -1 if its name is not in friendIds
+     * @param time: timestamp of this operation
+     * @return true means deletion completed, false means this friend is not user's friend yet
+     */
+    private int applyDelete(String userName, int friend, int time) {
         // 1. edge case: this user is not in our store yet
         if (!users.containsKey(userName)) {
-            timestamp++; // update timestamp
             return NOUSER;
         }
 
         // 2. user has no friends yet, or friends have been all deleted already
         if (!currFriends.containsKey(userName)) {
-            timestamp++; // update timestamp
             return HASDELETED;
         }
 
         // 3. delete a specific friend in current friend list if it presents, keep historic data in users map
-        List<Friend> friends = currFriends.get(userName);
+        CurrentFriends friends = currFriends.get(userName);
         if (friends.isEmpty()) {
-            timestamp++; // update timestamp
             return HASDELETED;
         }
-        Friend deletedFri = new Friend(timestamp, -1, friendName); // the friend to be deleted
-        boolean doDeletion = friends.remove(deletedFri); // remove this friend from user's current friend list if it presents, mark if it's done
+        boolean doDeletion = friends.remove(friend); // remove this friend from user's current friend list if it presents, mark if it's done
 
-        // 4. add deleted friend info into deleted map
+        // 4. record this deletion in history
         if (doDeletion) {
-            currFriends.put(userName, friends); // update current friends list
-            TreeMap<Integer, List<Friend>> toDel = deleted.getOrDefault(userName, new TreeMap<>());
-            List<Friend> toDelFriend = new LinkedList<>();
-            toDelFriend.add(deletedFri); // add this deleted friends
-            toDel.put(timestamp, toDelFriend); // update this user's deleted friend list
-            deleted.put(userName, toDel); // update deleted
-            timestamp++; // update timestamp
+            users.get(userName).append(KeyHistory.DELETE, time, friend);
+            indexes.get(userName).delete(friend, time); // close interval of this friend
             return SUCCESS;
         } else {
-            timestamp++; // update timestamp
             return HASDELETED;
         }
     }
 
     /**
-     * realize diff(key, time1, time2) method
+     * method to apply a change read from log, only called before store is open to clients
      *
-     * @param userName: the user who does diff operation
-     * @param time1: the first checking time
-     * @param time2: the second checking time (time1 < time2 guaranteed)
-     * @return a list of friends' names which are the difference between time1 and time2
+     * @param operation: operation recorded in log
+     * @param time: timestamp of this operation
+     * @param userName: user of this operation
+     * @param friendName: friend of this operation, empty if there isn't
      */
-    public ResultType diff(String userName, int time1, int time2) {
-        // 1. edge case: this user is not in our store yet, or time is larger
-        ResultType resultType1 = get(userName, time1);
-        ResultType resultType2 = get(userName, time2);
-        // we can only check time1, since we make sure time2 > time2 when call this method
-        if (resultType1.code != SUCCESS) {
-            return new ResultType(resultType1.code);
-        }
-        if (resultType2.code != SUCCESS) {
-            return new ResultType(resultType2.code);
-        }
-
-        timestamp--; // since we call twice get(), so minus one
-
-        // 2. find historic info associate 2 time spot
-        List<String> friends1 = resultType1.getResult(); // friend name list of this user at time1
-        List<String> friends2 = resultType2.getResult(); // friend name list of this user at time2
-        Set<String> set = new HashSet<>(); // set to remove same friends
-        // record all friends at time1
-        for (String fri1 :
-                friends1) {
-            set.add(fri1); // record info in set
-        }
-        // remove duplicates and record difference
-        for (String fri2 :
-                friends2) {
-            if (set.contains(fri2)) {
-                // duplicates
-                set.remove(fri2);
-                friends1.remove(fri2);
-            } else {
-                // different friends
-                set.add(fri2);
-                friends1.add(fri2);
+    void replay(byte operation, int time, String userName, String friendName) {
+        if (operation != WriteAheadLog.MARK && time <= lastTime(userName)) {
+            return; // already in snapshot
+        }
+        switch (operation) {
+            case WriteAheadLog.PUT:
+                applyPut(userName, friendName, time);
+                break;
+            case WriteAheadLog.DELETE_USER:
+                applyDelete(userName, time);
+                break;
+            case WriteAheadLog.DELETE_FRIEND:
+                applyDelete(userName, friendName, time);
+                break;
+            default:
+                // a mark only tells us the timestamp, reads may have taken timestamps after last change
+                timestamp.set(Math.max(timestamp.get(), time));
+                return;
+        }
+        timestamp.set(Math.max(timestamp.get(), time + 1)); // next operation goes after this change
+    }
+
+    /**
+     * method to apply a change of bulk load on its timestamp, only called before store is open to clients.
+     * Changes of a user come in timestamp order, users of different stripes are applied by different threads at the same time,
+     * timestamp is moved by caller after all of them are applied
+     *
+     * @param operation: WriteAheadLog.PUT, DELETE_USER or DELETE_FRIEND
+     * @param time: timestamp of this change
+     * @param userName: user of this change
+     * @param friend: id of friend in friendIds, -1 if there isn't or its name is not in friendIds
+     */
+    void load(byte operation, int time, String userName, int friend) {
+        ReadWriteLock lock = lockOf(userName);
+        lock.writeLock().lock();
+        try {
+            switch (operation) {
+                case WriteAheadLog.PUT:
+                    applyPut(userName, friend, time);
+                    break;
+                case WriteAheadLog.DELETE_USER:
+                    applyDelete(userName, time);
+                    break;
+                default:
+                    applyDelete(userName, friend, time);
+                    break;
             }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        // 3. return
-        ResultType resultType = new ResultType(SUCCESS);
-        resultType.setResult(friends1);
-        return resultType;
+    /**
+     * method to check if nothing has happened on this store yet, bulk load only seeds such a store
+     *
+     * @return true if there's no user and no timestamp is taken
+     */
+    boolean isEmpty() {
+        return timestamp.get() == 0 && users.isEmpty();
+    }
+
+    /**
+     * method to get dictionary of friends' names, bulk load adds names while parsing in parallel
+     *
+     * @return the dictionary
+     */
+    StringDictionary getFriendIds() {
+        return friendIds;
+    }
+
+    /**
+     * method to find timestamp of a user's last change
+     *
+     * @param userName: the user to check
+     * @return timestamp of last put or deletion, -1 if this user has no change
+     */
+    private int lastTime(String userName) {
+        KeyHistory history = users.get(userName);
+        return history == null ? -1 : history.lastTime();
+    }
+
+    /**
+     * method to move timestamp forward, only called before store is open to clients
+     *
+     * @param time: timestamp to move to, nothing happens if current timestamp is larger
+     */
+    void advanceTimestamp(int time) {
+        timestamp.set(Math.max(timestamp.get(), time));
+    }
+
+    /**
+     * method to take a snapshot of this store in background, writers keep running during it
+     *
+     * @throws IOException if snapshot can not be written
+     */
+    public void snapshot() throws IOException {
+        snapshot(false);
+    }
+
+    /**
+     * method to take a snapshot of this store, writers keep running during it
+     *
+     * @param always: true to take it even if nothing is logged after the last one, e.g. users are moved in or out without log
+     * @throws IOException if snapshot can not be written
+     */
+    void snapshot(boolean always) throws IOException {
+        if (wal == null) {
+            return; // store lives only in memory
+        }
+        synchronized (wal.getDir()) {
+            if (always || wal.segmentSize() > 0) {
+                Snapshot.write(this, wal); // only take a snapshot when something is logged after the last one
+            }
+        }
+    }
+
+    /**
+     * method to start replicating this store to a follower: subscribe it to changes, then write everything before them as base.
+     * It's synchronized with spill() and collectHistory(), so segments and users written are from the same moment of history.
+     * Base looks like: <snapshot version, timestamp, retention horizon> <number of segments, {name, length, bytes of file}>
+     * <{length, snapshot section of a user}> <-1>
+     * A change both in base and in subscription is skipped by follower, since it's not newer than the user's last change.
+     *
+     * @param out: stream to follower
+     * @param capacity: max number of changes waiting for follower, it's dropped if it falls further behind
+     * @return subscription of changes after base, in timestamp order
+     * @throws IOException if base can not be sent
+     */
+    synchronized ChangeFeed.Subscription exportBase(DataOutputStream out, int capacity) throws IOException {
+        // 1. make writers publish, and wait for writers which took a timestamp without monitor of feed
+        feed.join();
+        for (ReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+            lock.writeLock().unlock();
+        }
+
+        // 2. subscribe, every change before this timestamp is applied once writers holding locks now are done
+        int from;
+        ChangeFeed.Subscription subscription;
+        synchronized (feed) {
+            from = timestamp.get();
+            subscription = feed.subscribe(capacity, from);
+        }
+        for (ReadWriteLock lock : locks) {
+            // wait for writers holding a timestamp before it, a new user of theirs may not be in users yet
+            lock.writeLock().lock();
+            lock.writeLock().unlock();
+        }
+        try {
+            out.writeInt(Snapshot.VERSION);
+            out.writeInt(from);
+            out.writeInt(retentionHorizon);
+
+            // 3. cold segments, files are immutable
+            List<HistorySegment> segments = tier == null ? Collections.emptyList() : tier.segments();
+            out.writeInt(segments.size());
+            byte[] chunk = new byte[1 << 16];
+            for (HistorySegment segment : segments) {
+                ByteBuffer bytes = segment.bytes();
+                out.writeUTF(segment.getFile().getFileName().toString());
+                out.writeInt(bytes.remaining());
+                while (bytes.hasRemaining()) {
+                    int length = Math.min(chunk.length, bytes.remaining());
+                    bytes.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            }
+
+            // 4. users, each one is copied while holding its lock like a snapshot
+            for (String userName : userNames()) {
+                byte[] section = encodeUser(userName);
+                out.writeInt(section.length);
+                out.write(section);
+            }
+            out.writeInt(-1);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            feed.unsubscribe(subscription);
+            throw e;
+        }
+        return subscription;
+    }
+
+    /**
+     * method to build a replica from base written by exportBase(), changes after base are applied by applyReplicated()
+     *
+     * @param in: stream from primary
+     * @param dir: an empty directory for cold segments of primary
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends, 0 to use max-tree instead
+     * @param offHeap: true to keep histories and indexes off heap
+     * @return a replica at the timestamp of base
+     * @throws IOException if base can not be read or it's broken
+     */
+    static Service importBase(DataInputStream in, Path dir, int checkpointInterval, boolean offHeap) throws IOException {
+        int version = in.readInt();
+        if (version < 1 || version > Snapshot.VERSION) {
+            throw new IOException("Unknown version of base: " + version);
+        }
+        int from = in.readInt();
+        int horizon = in.readInt();
+
+        // 1. cold segments are written into dir, tier opens them
+        Files.createDirectories(dir);
+        int segments = in.readInt();
+        byte[] chunk = new byte[1 << 16];
+        for (int i = 0; i < segments; i++) {
+            String name = in.readUTF();
+            if (!name.matches("history-\\d+-\\d+\\.seg")) {
+                throw new IOException("Broken segment name in base: " + name);
+            }
+            try (OutputStream file = Files.newOutputStream(dir.resolve(name))) {
+                for (int left = in.readInt(); left > 0; ) {
+                    int length = Math.min(chunk.length, left);
+                    in.readFully(chunk, 0, length);
+                    file.write(chunk, 0, length);
+                    left -= length;
+                }
+            }
+        }
+        Service service = new Service(null, dir, checkpointInterval, offHeap, 0, true);
+
+        // 2. users
+        for (int length = in.readInt(); length >= 0; length = in.readInt()) {
+            byte[] section = new byte[length];
+            in.readFully(section);
+            service.decodeUser(ByteBuffer.wrap(section), version);
+        }
+        service.retentionHorizon = horizon;
+        service.advanceTimestamp(from);
+        return service;
+    }
+
+    /**
+     * method to apply a change of primary on a replica, changes come one by one in timestamp order
+     *
+     * @param change: a change, or a heartbeat telling timestamp of primary
+     */
+    void applyReplicated(ChangeFeed.Change change) {
+        if (change.operation == WriteAheadLog.MARK) {
+            advanceTimestamp(change.time); // every change before it is applied
+            return;
+        }
+        ReadWriteLock lock = lockOf(change.userName);
+        lock.writeLock().lock();
+        try {
+            replay(change.operation, change.time, change.userName, change.friendName); // skipped if it's already in base
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * method to get feed of changes of this store
+     *
+     * @return feed of changes
+     */
+    ChangeFeed getFeed() {
+        return feed;
+    }
+
+    /**
+     * method to make an empty replica, it's replaced by one built from base of primary
+     *
+     * @param checkpointInterval: events of a user between 2 checkpoints of its friends, 0 to use max-tree instead
+     * @param offHeap: true to keep histories and indexes off heap
+     * @return an empty replica
+     */
+    static Service emptyReplica(int checkpointInterval, boolean offHeap) {
+        return new Service(null, null, checkpointInterval, offHeap, 0, true);
+    }
+
+    /**
+     * method to start watching a user: every change of the user from current timestamp on is published to the subscription,
+     * changes before it are read by watchedEvents()
+     *
+     * @param userName: the user watched
+     * @param capacity: max number of changes waiting for watcher, it's closed if it falls further behind
+     * @param overflow: run once on another thread if watcher falls behind, e.g. to disconnect its client
+     * @return subscription of the user's changes, getFrom() of it is the first timestamp published to it
+     */
+    ChangeFeed.Subscription watch(String userName, int capacity, Runnable overflow) {
+        // only writers of this user matter, they hold its lock while taking a timestamp without monitor of feed
+        feed.join();
+        ReadWriteLock lock = lockOf(userName);
+        lock.writeLock().lock();
+        lock.writeLock().unlock();
+        synchronized (feed) {
+            return feed.watch(userName, capacity, timestamp.get(), overflow);
+        }
+    }
+
+    /**
+     * method to wait until every change logged so far is durable, so a watcher never sees a change which a crash may take back
+     */
+    void awaitDurable() {
+        if (wal != null) {
+            wal.commit(wal.position());
+        }
+    }
+
+    /**
+     * method to wait until changes taken from feed are durable, so a follower never applies a change which a crash of primary may take back.
+     * A change is published before it's logged, so writers of its user are waited for by the user's lock first
+     *
+     * @param changes: changes taken from feed
+     */
+    void awaitDurable(List<ChangeFeed.Change> changes) {
+        if (wal == null) {
+            return;
+        }
+        boolean[] waited = new boolean[STRIPES];
+        for (ChangeFeed.Change change : changes) {
+            if (change.operation == WriteAheadLog.MARK) {
+                continue; // a heartbeat, changes before it are in this list or durable already
+            }
+            int stripe = stripeOf(change.userName);
+            if (!waited[stripe]) {
+                waited[stripe] = true;
+                locks[stripe].readLock().lock(); // writer logs its change before it unlocks
+                locks[stripe].readLock().unlock();
+            }
+        }
+        awaitDurable();
+    }
+
+    /**
+     * method to tell followers current timestamp, so they move on when there's no change, and know how far behind they are
+     */
+    void heartbeat() {
+        synchronized (feed) {
+            if (feed.hasSubscribers()) {
+                feed.publish(new ChangeFeed.Change(WriteAheadLog.MARK, timestamp.get(), "", "", System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * method to move clock of this store forward to a time seen on another node of a cluster, so times of all nodes are comparable:
+     * a change made after a change on another node always gets a larger timestamp
+     *
+     * @param time: a timestamp seen on another node, nothing happens if current timestamp is larger
+     * @return current timestamp, no timestamp is taken
+     */
+    int syncClock(int time) {
+        return timestamp.accumulateAndGet(time, Math::max); // reads take timestamps meanwhile, none of them is lost
+    }
+
+    /**
+     * method to move clock forward to a time told by another node or a router, a time too far ahead is refused,
+     * so a wrong time can't move clock close to int overflow, and it's not spread to other nodes
+     *
+     * @param time: a timestamp seen on another node
+     * @param maxSkew: max timestamps clock moves forward at once, unless store is empty, e.g. a node just added,
+     *               also timestamps always left before int overflows
+     * @return current timestamp, less than time if time is refused
+     */
+    int syncClock(int time, int maxSkew) {
+        if (time > Integer.MAX_VALUE - maxSkew) {
+            return timestamp.get();
+        }
+        boolean empty = users.isEmpty(); // no history yet, its clock doesn't have to be close to anything
+        return timestamp.accumulateAndGet(time, (current, seen) -> !empty && seen - current > maxSkew ? current : Math.max(current, seen));
+    }
+
+    /**
+     * method to encode everything of a user to move it to another node of a cluster, like encodeUser() but cold history in tier
+     * is put back into events, since segments of this node stay here
+     *
+     * @param userName: the user to be moved
+     * @return encoded section, read by importUser()
+     */
+    byte[] encodeMovedUser(String userName) {
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            KeyHistory history = users.get(userName);
+            if (tier == null || history.getFloor() == 0) {
+                return encodeUser(userName, history); // all in memory
+            }
+
+            // 1. friends before the first section of this user in tier are only known if retention collapsed them into a base
+            KeyHistory whole = new KeyHistory(null);
+            boolean first = true;
+            for (HistorySegment segment : tier.segments()) {
+                if (segment.getFrom() >= history.getFloor()) {
+                    break; // spilled after this user's latest spill, nothing of it is there
+                }
+                HistorySegment.Section section = segment.find(userName);
+                if (section == null) {
+                    continue;
+                }
+                if (first && section.baseFriends.length > 0) {
+                    int[] baseFriends = new int[section.baseFriends.length];
+                    for (int i = 0; i < baseFriends.length; i++) {
+                        baseFriends[i] = friendIds.id(section.baseFriends[i]);
+                    }
+                    whole.setBase(section.baseTime + 1, -1, baseFriends, section.baseTimes);
+                    whole.setHorizon(section.baseTime); // earlier friends are collected, and the new node has no tier for them
+                }
+                first = false;
+
+                // 2. cold events in time order, segments don't overlap
+                for (int i = 0; i < section.times.length && section.times[i] < history.getFloor(); i++) {
+                    whole.append(section.operations[i], section.times[i], friendIds.id(section.friends[i]));
+                }
+            }
+
+            // 3. events in memory after them
+            for (int i = 0; i < history.size(); i++) {
+                whole.append(history.getOperation(i), history.getTime(i), history.getFriend(i));
+            }
+            whole.setHorizon(history.getHorizon());
+            return encodeUser(userName, whole);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * method to add a user moved from another node of a cluster, a user of the same name is replaced, so a move can be tried again
+     *
+     * @param section: encoded by encodeMovedUser()
+     */
+    void importUser(byte[] section) {
+        ByteBuffer buffer = ByteBuffer.wrap(section);
+        String userName = readString(buffer.duplicate());
+        ReadWriteLock lock = lockOf(userName);
+        lock.writeLock().lock();
+        try {
+            decodeUser(buffer, Snapshot.VERSION);
+            syncClock(lastTime(userName) + 1); // the user's changes are before any change made here from now on
+        } finally {
+            lock.writeLock().unlock();
+        }
+        feed.closeAll(); // followers start over from a new base having this user
+        clearResults(); // this node had no history of the user before
+    }
+
+    /**
+     * method to remove users moved to other nodes of a cluster, each one while holding its lock
+     *
+     * @param moved: tells if a user is moved
+     * @return number of users removed
+     */
+    int dropUsers(Predicate<String> moved) {
+        int dropped = 0;
+        for (String userName : users.keySet()) {
+            if (!moved.test(userName)) {
+                continue;
+            }
+            ReadWriteLock lock = lockOf(userName);
+            lock.writeLock().lock();
+            try {
+                users.remove(userName);
+                indexes.remove(userName);
+                currFriends.remove(userName);
+                dropped++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (dropped > 0) {
+            feed.closeAll(); // followers start over from a new base without these users
+            clearResults();
+        }
+        return dropped;
+    }
+
+    /**
+     * method to spill history older than the latest hotHistory timestamps to a new segment of HistoryTier, writers keep running during it.
+     * Segment is written and published before any user drops those events from memory, so a query always finds them in one tier or both.
+     *
+     * @throws IOException if segment can not be written
+     */
+    public synchronized void spill() throws IOException {
+        if (tier == null || hotHistory <= 0) {
+            return; // history always stays in memory
+        }
+        synchronized (wal.getDir()) { // never at the same time as a snapshot
+            int from = tier.watermark();
+            int to = timestamp.get() - hotHistory; // new watermark
+            if (to <= from || users.isEmpty()) {
+                return; // watermark doesn't pass an empty store, e.g. a node joining a cluster before users with old history move in
+            }
+
+            // 1. write events in [from, to) of users in order of name, users moved in with events before from stay in memory,
+            // since tier has nothing of them before from
+            List<String> names = new ArrayList<>();
+            for (String userName : users.keySet()) {
+                if (!hasEventsBefore(userName, from)) {
+                    names.add(userName);
+                }
+            }
+            names.sort(null);
+            HistorySegment segment;
+            try (HistorySegment.Writer writer = tier.newSegment(to)) {
+                for (String userName : names) {
+                    HistorySegment.Section section = exportHistory(userName, from, to);
+                    if (section != null) {
+                        writer.add(section);
+                    }
+                }
+                segment = writer.finish();
+            }
+            tier.add(segment);
+
+            // 2. drop those events from memory
+            for (String userName : names) {
+                collapseHistory(userName, to, 0);
+            }
+            System.out.println("History of " + segment.userCount() + " users in [" + from + ", " + to + ") spilled");
+
+            // 3. keep the number of segments small
+            tier.compact();
+        }
+    }
+
+    /**
+     * method to check if a user has events in memory before a time which are not in tier, e.g. a user moved in from another node
+     *
+     * @param userName: the user
+     * @param time: watermark of tier
+     * @return true if memory has events of the user before time
+     */
+    private boolean hasEventsBefore(String userName, int time) {
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            KeyHistory history = users.get(userName);
+            return history != null && history.getFloor() < time && history.find(time) > 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * method to copy a user's history in a range of timestamps into a segment section, while holding user's read lock
+     *
+     * @param userName: the user to be copied
+     * @param from: the first timestamp
+     * @param to: end of timestamps
+     * @return section with friends at from - 1 and events in [from, to), null if the user has no event in it
+     */
+    private HistorySegment.Section exportHistory(String userName, int from, int to) {
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            KeyHistory history = users.get(userName);
+            from = Math.max(from, history.getFloor()); // events before floor are collected, times before it are truncated anyway
+            int start = history.find(from);
+            int end = history.find(to);
+            if (start == end) {
+                return null;
+            }
+
+            // 1. friends at from - 1, the first time still known
+            Map<Integer, Integer> base = history.stateBefore(from);
+            String[] baseFriends = new String[base.size()];
+            int[] baseTimes = new int[base.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : base.entrySet()) {
+                baseFriends[i] = friendIds.name(entry.getKey());
+                baseTimes[i++] = entry.getValue();
+            }
+
+            // 2. events in [from, to)
+            int[] times = new int[end - start];
+            byte[] operations = new byte[end - start];
+            String[] friends = new String[end - start];
+            for (int j = start; j < end; j++) {
+                times[j - start] = history.getTime(j);
+                operations[j - start] = history.getOperation(j);
+                friends[j - start] = friendIds.name(history.getFriend(j));
+            }
+            return new HistorySegment.Section(userName, from - 1, baseFriends, baseTimes, times, operations, friends);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * method to collect history of users before retention watermark, one user at a time, readers and writers keep running during it.
+     * Friends at watermark are kept, and history in tier is collapsed too.
+     *
+     * @throws IOException if a collapsed segment can not be written
+     */
+    public synchronized void collectHistory() throws IOException {
+        int keptTimestamps = retainHistory;
+        int keptVersions = retainVersions;
+        if (keptTimestamps <= 0 && keptVersions <= 0) {
+            return; // keep all history
+        }
+        // a cached result skips the horizon check, so nothing is served from cache or cached until every user is collected
+        ResultCache results = cache;
+        if (results != null) {
+            results.pause();
+        }
+        try {
+            collect(keptTimestamps, keptVersions);
+        } finally {
+            if (results != null) {
+                results.resume();
+            }
+        }
+    }
+
+    /**
+     * method to collect history of users and tier, results are not cached meanwhile
+     *
+     * @param keptTimestamps: latest timestamps kept, 0 to keep all
+     * @param keptVersions: latest changes of each user kept, 0 to keep all
+     * @throws IOException if a collapsed segment can not be written
+     */
+    private void collect(int keptTimestamps, int keptVersions) throws IOException {
+        int watermark = keptTimestamps > 0 ? timestamp.get() - keptTimestamps : 0; // the oldest timestamp kept for all users
+        retentionHorizon = Math.max(retentionHorizon, watermark);
+
+        // 1. users in memory, each has its own horizon if latest versions are kept
+        int collected = 0;
+        for (String userName : users.keySet()) {
+            int horizon = watermark;
+            if (keptVersions > 0) {
+                ReadWriteLock lock = lockOf(userName);
+                lock.readLock().lock();
+                try {
+                    KeyHistory history = users.get(userName);
+                    if (history.size() > keptVersions) {
+                        horizon = Math.max(horizon, history.getTime(history.size() - keptVersions) - 1); // only history in memory is counted
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            if (horizon > 0 && collapseHistory(userName, horizon + 1, horizon)) {
+                collected++;
+            }
+        }
+
+        // 2. segments in tier
+        if (tier != null && watermark > 0) {
+            tier.collapse(watermark + 1);
+        }
+        System.out.println("History of " + collected + " users collected, timestamps before " + watermark + " are truncated");
+    }
+
+    /**
+     * method to turn on cache of results of get and diff at times already passed, or turn it off
+     *
+     * @param capacity: max estimated bytes of results cached, 0 to turn it off
+     */
+    public void setResultCache(long capacity) {
+        cache = capacity > 0 ? new ResultCache(capacity) : null;
+    }
+
+    /**
+     * method to drop results cached, when history they are read from is changed
+     */
+    private void clearResults() {
+        ResultCache results = cache;
+        if (results != null) {
+            results.clear();
+        }
+    }
+
+    /**
+     * method to set retention policy, it's applied by the next collectHistory()
+     *
+     * @param retainHistory: latest timestamps kept, 0 to keep all
+     * @param retainVersions: latest changes of each user kept, 0 to keep all
+     */
+    public void setRetention(int retainHistory, int retainVersions) {
+        this.retainHistory = retainHistory;
+        this.retainVersions = retainVersions;
+    }
+
+    /**
+     * method to read sizes of store for metrics, they are read without locks, so they may miss the latest changes
+     *
+     * @return <name, value> in a fixed order
+     */
+    public Map<String, Long> stats() {
+        long events = 0; // events in memory of all users
+        for (KeyHistory history : users.values()) {
+            events += history.size();
+        }
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("store.timestamp", (long) timestamp.get());
+        values.put("store.users", (long) users.size());
+        values.put("store.friendNames", (long) friendIds.size());
+        values.put("history.eventsInMemory", events);
+        values.put("history.segments", tier == null ? 0L : tier.segmentCount());
+        values.put("history.watermark", tier == null ? 0L : tier.watermark());
+        values.put("history.horizon", (long) retentionHorizon);
+        values.putAll(feed.stats());
+        ResultCache results = cache;
+        if (results != null) {
+            values.putAll(results.stats());
+        }
+        return values;
+    }
+
+    /**
+     * method to drop a user's events before a time from memory, they are already in HistoryTier or collected by retention policy.
+     * New history is built while holding user's read lock, and only swapped in while holding its write lock.
+     *
+     * @param userName: the user to be changed
+     * @param floor: the user's new floor, friends at floor - 1 are kept
+     * @param horizon: the user's new horizon, 0 if nothing is collected
+     * @return true if some events are dropped
+     */
+    private boolean collapseHistory(String userName, int floor, int horizon) {
+        ReadWriteLock lock = lockOf(userName);
+
+        // 1. build history without those events and its index, readers keep running
+        KeyHistory history;
+        int size; // events when it's built
+        KeyHistory kept = null;
+        IntervalIndex index = null;
+        lock.readLock().lock();
+        try {
+            history = users.get(userName);
+            size = history.size();
+            if (history.getFloor() < floor && history.find(floor) > 0) {
+                kept = history.spill(floor, arena);
+                index = buildIndex(kept);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // 2. swap them in, they are built again if the user is changed meanwhile
+        lock.writeLock().lock();
+        try {
+            if (kept != null) {
+                if (users.get(userName) != history || history.size() != size) {
+                    history = users.get(userName);
+                    kept = history.spill(floor, arena);
+                    index = buildIndex(kept);
+                }
+                users.put(userName, kept);
+                indexes.put(userName, index);
+            }
+            users.get(userName).setHorizon(horizon);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return kept != null;
+    }
+
+    /**
+     * method to build interval index of a history: friends alive at floor - 1, then events in timestamp order
+     *
+     * @param history: history of a user
+     * @return interval index
+     */
+    private IntervalIndex buildIndex(KeyHistory history) {
+        IntervalIndex index = new IntervalIndex(checkpointInterval, arena);
+        for (int i = 0; i < history.baseSize(); i++) {
+            index.add(history.getBaseFriend(i), history.getBaseTime(i));
+        }
+        for (int i = 0; i < history.size(); i++) {
+            if (history.getOperation(i) == KeyHistory.PUT) {
+                index.add(history.getFriend(i), history.getTime(i));
+            } else {
+                index.delete(history.getFriend(i), history.getTime(i));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * method to get names of all users, new users may or may not be in it
+     *
+     * @return names of users
+     */
+    Set<String> userNames() {
+        return users.keySet();
+    }
+
+    /**
+     * method to encode everything of a user into a snapshot section, while holding user's read lock
+     * Section looks like: <name> <floor, horizon, timestamp of last spilled event, number of friends at floor - 1, {timestamp of put, friend}>
+     * <number of events, {timestamp, operation, friend}> <number of current friends or -1, {timestamp of friend's put}>
+     *
+     * @param userName: the user to be encoded
+     * @return encoded section
+     */
+    byte[] encodeUser(String userName) {
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            return encodeUser(userName, users.get(userName));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * method to encode a user into a snapshot section, caller should hold user's lock
+     *
+     * @param userName: the user to be encoded
+     * @param history: history of the user, current friends point to its puts
+     * @return encoded section
+     */
+    private byte[] encodeUser(String userName, KeyHistory history) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeString(out, userName);
+
+            // 1. what is spilled, and friends at floor - 1
+            out.writeInt(history.getFloor());
+            out.writeInt(history.getHorizon());
+            out.writeInt(history.getLastSpilled());
+            out.writeInt(history.baseSize());
+            for (int i = 0; i < history.baseSize(); i++) {
+                out.writeInt(history.getBaseTime(i));
+                writeString(out, friendIds.name(history.getBaseFriend(i)));
+            }
+
+            // 2. events in memory
+            out.writeInt(history.size());
+            for (int i = 0; i < history.size(); i++) {
+                out.writeInt(history.getTime(i));
+                out.writeByte(history.getOperation(i));
+                writeString(out, friendIds.name(history.getFriend(i)));
+            }
+
+            // 3. current friends, pointing to their puts
+            CurrentFriends list = currFriends.get(userName);
+            out.writeInt(list == null ? -1 : list.size());
+            if (list != null) {
+                for (int time : list.times()) {
+                    out.writeInt(time);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never happens on a byte array
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * method to decode a snapshot section into this store, only called before store is open to clients
+     *
+     * @param buffer: buffer positioned at the start of section, it's positioned at the end of section after decoding
+     * @param version: version of snapshot, 1 if puts and deletions are in 2 lists, 2 if nothing is spilled, 3 if nothing is collected
+     */
+    void decodeUser(ByteBuffer buffer, int version) {
+        String userName = readString(buffer);
+
+        // 1. events in memory, after what is spilled
+        KeyHistory history = version == 1 ? decodeEvents(buffer) : new KeyHistory(arena);
+        if (version >= 3) {
+            int floor = buffer.getInt();
+            int horizon = version >= 4 ? buffer.getInt() : 0;
+            int lastSpilled = buffer.getInt();
+            int[] baseFriends = new int[buffer.getInt()];
+            int[] baseTimes = new int[baseFriends.length];
+            for (int i = 0; i < baseFriends.length; i++) {
+                baseTimes[i] = buffer.getInt();
+                baseFriends[i] = friendIds.id(readString(buffer));
+            }
+            history.setBase(floor, lastSpilled, baseFriends, baseTimes);
+            history.setHorizon(horizon);
+        }
+        if (version != 1) {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                int time = buffer.getInt();
+                byte operation = buffer.get();
+                history.append(operation, time, friendIds.id(readString(buffer)));
+            }
+        }
+        users.put(userName, history);
+
+        // 2. intervals, rebuilt from events in timestamp order
+        indexes.put(userName, buildIndex(history));
+
+        // 3. current friends
+        int currCount = buffer.getInt();
+        if (currCount >= 0) {
+            CurrentFriends list = new CurrentFriends();
+            for (int i = 0; i < currCount; i++) {
+                int time = buffer.getInt();
+                list.add(history.friendPutAt(time), time);
+            }
+            currFriends.put(userName, list);
+        }
+    }
+
+    /**
+     * method to decode events of a version 1 section: <number of puts, {timestamp, friend}> <number of deletions, {timestamp, number of friends, {friend}}>
+     *
+     * @param buffer: buffer positioned at puts
+     * @return history merged from puts and deletions in timestamp order
+     */
+    private KeyHistory decodeEvents(ByteBuffer buffer) {
+        // 1. puts and deletions are 2 lists, each in timestamp order
+        int putCount = buffer.getInt();
+        int[] putTimes = new int[putCount];
+        int[] putFriends = new int[putCount];
+        for (int i = 0; i < putCount; i++) {
+            putTimes[i] = buffer.getInt();
+            putFriends[i] = friendIds.id(readString(buffer));
+        }
+        KeyHistory deletions = new KeyHistory(null); // only used while decoding
+        int delCount = buffer.getInt();
+        for (int i = 0; i < delCount; i++) {
+            int time = buffer.getInt();
+            int n = buffer.getInt();
+            for (int j = 0; j < n; j++) {
+                deletions.append(KeyHistory.DELETE, time, friendIds.id(readString(buffer)));
+            }
+        }
+
+        // 2. merge them, a put and a deletion never share a timestamp
+        KeyHistory history = new KeyHistory(arena);
+        int d = 0;
+        for (int i = 0; i < putCount; i++) {
+            while (d < deletions.size() && deletions.getTime(d) < putTimes[i]) {
+                history.append(KeyHistory.DELETE, deletions.getTime(d), deletions.getFriend(d));
+                d++;
+            }
+            history.append(KeyHistory.PUT, putTimes[i], putFriends[i]);
+        }
+        for (; d < deletions.size(); d++) {
+            history.append(KeyHistory.DELETE, deletions.getTime(d), deletions.getFriend(d));
+        }
+        return history;
+    }
+
+    /**
+     * method to write a string as <length, UTF-8 bytes>
+     *
+     * @param out: output to write to
+     * @param s: string to be written
+     * @throws IOException if it can not be written
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * method to read a string encoded as <length, UTF-8 bytes>
+     *
+     * @param buffer: buffer to read from
+     * @return decoded string
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * method to record a change in log, caller should hold user's write lock
+     *
+     * @param operation: operation to be recorded
+     * @param time: timestamp of this operation
+     * @param userName: user of this operation
+     * @param friendName: friend of this operation, empty if there isn't
+     * @return log position of this change, -1 if store lives only in memory
+     */
+    private long log(byte operation, int time, String userName, String friendName) {
+        return wal == null ? -1 : wal.append(operation, time, userName, friendName);
+    }
+
+    /**
+     * method to wait until a logged change is durable, caller should not hold any lock
+     *
+     * @param logged: log position of the change, -1 if nothing is logged
+     */
+    private void commit(long logged) {
+        if (logged >= 0) {
+            wal.commit(logged);
+        }
+    }
+
+    /**
+     * realize diff(key, time1, time2) method
+     *
+     * @param userName: the user who does diff operation
+     * @param time1: the first checking time
+     * @param time2: the second checking time (time1 <= time2 guaranteed)
+     * @return a list of friends' names which are the difference between time1 and time2
+     */
+    public ResultType diff(String userName, int time1, int time2) {
+        // a result between times already passed never changes, it may be cached
+        ResultCache results = cache;
+        if (results != null) {
+            List<String> cached = results.get(userName, time1, time2);
+            if (cached != null) {
+                tick(); // a hit takes a timestamp like any diff, time2 is not after it since it was not after an older one
+                ResultType resultType = new ResultType(SUCCESS);
+                resultType.setResult(cached);
+                return resultType;
+            }
+        }
+        int generation = results == null ? 0 : results.generation();
+
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            // 1. edge case: this user is not in our store yet, or time is larger
+            if (time1 >= timestamp.get()) {
+                return new ResultType(INVALIDTIME);
+            }
+            if (!users.containsKey(userName)) {
+                return new ResultType(NOUSER);
+            }
+            // time2 is allowed to be this operation's own timestamp, nothing of this user changes on it since we hold the lock
+            if (time2 > tick()) {
+                return new ResultType(INVALIDTIME);
+            }
+
+            // 2. only walk friends added or deleted between 2 time spots, or compare friends at 2 time spots if time1 is cold or collected
+            List<String> difference;
+            KeyHistory history = users.get(userName);
+            if (time1 >= history.getFloor() - 1 && time1 >= history.getHorizon()) {
+                difference = indexes.get(userName).diff(time1, time2, friendIds);
+            } else {
+                List<String> before = getAt(userName, time1);
+                List<String> after = getAt(userName, time2);
+                if (before == null || after == null) {
+                    return new ResultType(TRUNCATED); // history at time1 is collected
+                }
+                difference = difference(before, after);
+            }
+            if (results != null) {
+                results.put(userName, time1, time2, difference, generation);
+            }
+
+            // 3. return
+            ResultType resultType = new ResultType(SUCCESS);
+            resultType.setResult(difference);
+            return resultType;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * realize history(key, time1, time2) method: read changes of a user between 2 times page by page, in order of timestamp,
+     * the user's lock is only held while reading one page, so a long history doesn't block writers of this user
+     *
+     * @param cursor: position of the next event, it's moved after events of this page
+     * @param limit: max number of events of this page
+     * @return events of this page as "put/del friend timestamp", cursor is done after the last page
+     */
+    public ResultType history(HistoryCursor cursor, int limit) {
+        String userName = cursor.getUserName();
+        ReadWriteLock lock = lockOf(userName);
+        lock.readLock().lock();
+        try {
+            // 1. edge case: the first page checks user and times like diff, and takes a timestamp
+            if (!cursor.started) {
+                if (cursor.time >= timestamp.get()) {
+                    return new ResultType(INVALIDTIME);
+                }
+                if (!users.containsKey(userName)) {
+                    return new ResultType(NOUSER);
+                }
+                // time2 is allowed to be this operation's own timestamp, nothing of this user changes on it since we hold the lock
+                if (cursor.getTime2() > tick()) {
+                    return new ResultType(INVALIDTIME);
+                }
+                cursor.started = true;
+            }
+
+            // 2. events of this page
+            return historyPage(users.get(userName), cursor, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * method to read changes of a watched user after they are published, page by page like history(), without taking a timestamp.
+     * A change published is already applied once the user's lock is taken, since its writer holds the lock until then
+     *
+     * @param cursor: position of the next event, time2 of cursor is a published timestamp
+     * @param limit: max number of events of this page
+     * @return events of this page as "put/del friend timestamp", nothing if the user is not in store
+     */
+    public ResultType watchedEvents(HistoryCursor cursor, int limit) {
+        ReadWriteLock lock = lockOf(cursor.getUserName());
+        lock.readLock().lock();
+        try {
+            KeyHistory history = users.get(cursor.getUserName());
+            if (history == null) {
+                // watched before the user is created, or after it's moved away
+                cursor.done = true;
+                ResultType resultType = new ResultType(SUCCESS);
+                resultType.setResult(new ArrayList<>());
+                return resultType;
+            }
+            return historyPage(history, cursor, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * method to read a page of a user's history, caller should hold the user's read lock
+     *
+     * @param history: history of the user
+     * @param cursor: position of the next event, it's moved after events of this page
+     * @param limit: max number of events of this page
+     * @return events of this page as "put/del friend timestamp", cursor is done after the last page
+     */
+    private ResultType historyPage(KeyHistory history, HistoryCursor cursor, int limit) {
+        // 1. edge case: events from position are collected, it may happen between pages too
+        if (history.getHorizon() > 0 && cursor.time <= history.getHorizon()) {
+            cursor.done = true;
+            return new ResultType(TRUNCATED);
+        }
+
+        // 2. cold events before floor are in tier, the rest are in memory
+        List<String> events = new ArrayList<>();
+        int floor = history.getFloor();
+        if (cursor.time < floor) {
+            if (!tier.events(cursor, Math.min(cursor.getTime2(), floor - 1), limit, events)) {
+                cursor.done = true;
+                return new ResultType(TRUNCATED); // collected before it's spilled, its horizon is lost by a restart without snapshot
+            }
+            if (events.size() < limit) {
+                cursor.skipTo(floor);
+            }
+        }
+        if (cursor.time >= floor) {
+            for (int i = history.find(cursor.time) + cursor.seq; i < history.size() && events.size() < limit; i++) {
+                int time = history.getTime(i);
+                if (time > cursor.getTime2()) {
+                    break;
+                }
+                events.add(new Friend(time, history.getOperation(i), friendIds.name(history.getFriend(i))).toString());
+                cursor.passed(time);
+            }
+        }
+        cursor.done = events.size() < limit;
+
+        // 3. return
+        ResultType resultType = new ResultType(SUCCESS);
+        resultType.setResult(events);
+        return resultType;
+    }
+
+    /**
+     * method to compare friends at 2 times
+     *
+     * @param before: friends at time1 in order of being added
+     * @param after: friends at time2 in order of being added
+     * @return friends only in before, then friends only in after, each in order of being added
+     */
+    private static List<String> difference(List<String> before, List<String> after) {
+        Set<String> beforeSet = new HashSet<>(before);
+        Set<String> afterSet = new HashSet<>(after);
+        List<String> result = new ArrayList<>();
+        for (String friend : before) {
+            if (!afterSet.contains(friend)) {
+                result.add(friend);
+            }
+        }
+        for (String friend : after) {
+            if (!beforeSet.contains(friend)) {
+                result.add(friend);
+            }
+        }
+        return result;
     }
-}
\ No newline at end of file
+}
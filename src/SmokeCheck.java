@@ -0,0 +1,237 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Smoke test of Server and Client as separate processes: it starts a durable server, runs the example of README through Client with
+ * binary protocol, kills the server, starts it again on the same data directory and asks history through Client with legacy protocol,
+ * then stops it cleanly and starts it once more from its snapshot and log. Answers of each step and the timestamp kept by a clean stop
+ * are checked, it exits with 1 if any of them is wrong.
+ *
+ * Usage: java SmokeCheck --port 5123 --fsync always --storage heap --data-dir smoke-data
+ */
+public class SmokeCheck {
+
+    // the example of README, same as input.txt, with its answers
+    private static final String[] EXAMPLE = {
+            "put A c", "put B d", "get A", "put A e", "get A", "get A 2", "del A", "get A", "get A 5", "put B f", "del B d", "get B",
+            "diff A 1 2", "diff A 3 5", "diff A 1 4", "diff B 0 1"
+    };
+    private static final String[] EXAMPLE_ANSWERS = {
+            "Success ", "Success ", "Success {c}", "Success ", "Success {c, e}", "Success {c}", "Success ",
+            "This user does not have any friends yet or he/she deleted before :(. {}", "Success {c, e}", "Success ", "Success ", "Success {f}",
+            "Success {}", "Success {}", "Success {e}", "Success {d}"
+    };
+
+    // history of the example asked after a restart, the answers don't depend on timestamps taken by reads before it
+    private static final String[] HISTORY = {
+            "get A 5", "get A 8", "get B 11", "diff A 1 4", "diff B 0 1", "get B", "get A", "put C x", "get C 17"
+    };
+    private static final String[] HISTORY_ANSWERS = {
+            "Success {c, e}", "Success {}", "Success {f}", "Success {e}", "Success {d}", "Success {f}",
+            "This user does not have any friends yet or he/she deleted before :(. {}", "Success ", "Success {}"
+    };
+
+    private static final long START_TIMEOUT = 30_000; // milliseconds to wait for a server to listen
+
+    private final int port; // port of server
+    private final Path dataDir; // data directory of server
+    private final List<String> serverOptions = new ArrayList<>(); // options passed to server besides port and data directory
+    private final String java; // java command of this JVM
+    private final String classPath; // class path of this JVM, Server and Client are on it
+    private final File serverLog; // output of servers, printed if a check fails
+    private int failures; // number of failed checks
+
+    /**
+     * Constructor
+     *
+     * @param options: options of command line, <--name value>
+     */
+    private SmokeCheck(Map<String, String> options) throws IOException {
+        port = Integer.parseInt(options.getOrDefault("--port", "5123"));
+        dataDir = options.containsKey("--data-dir") ? Paths.get(options.get("--data-dir")) : Files.createTempDirectory("smoke-data");
+        serverOptions.addAll(Arrays.asList("--fsync", options.getOrDefault("--fsync", "always")));
+        serverOptions.addAll(Arrays.asList("--storage", options.getOrDefault("--storage", "heap")));
+        serverOptions.addAll(Arrays.asList("--snapshot-interval", "1")); // so a snapshot is taken before the clean stop
+        java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        classPath = System.getProperty("java.class.path");
+        serverLog = Files.createTempFile("smoke-server", ".log").toFile();
+    }
+
+    /**
+     * method to run all steps
+     *
+     * @return number of failed checks
+     */
+    private int run() throws IOException, InterruptedException {
+        // 1. fresh server runs the example with binary protocol
+        Process server = startServer();
+        try {
+            check("example, binary protocol", runClient("binary", EXAMPLE), EXAMPLE_ANSWERS);
+        } finally {
+            server.destroyForcibly().waitFor(); // a crash, log forced on every change is all that is left
+        }
+
+        // 2. after a crash, history is replayed from log, asked with legacy protocol
+        server = startServer();
+        int timestamp;
+        try {
+            Thread.sleep(1500); // let a snapshot be taken, so only log keeps timestamps taken by reads after it
+            check("history after crash, legacy protocol", runClient("legacy", HISTORY), HISTORY_ANSWERS);
+            timestamp = timestamp();
+        } finally {
+            server.destroy(); // a clean stop, log is closed by shutdown hook
+            server.waitFor();
+        }
+
+        // 3. after a clean stop, store is loaded from snapshot and log, timestamps taken by reads are kept too
+        server = startServer();
+        try {
+            int restarted = timestamp();
+            if (restarted != timestamp) {
+                fail("timestamp " + restarted + " after clean stop at " + timestamp);
+            }
+            check("history after clean stop, binary protocol", runClient("binary", HISTORY), HISTORY_ANSWERS);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+        if (!new String(Files.readAllBytes(serverLog.toPath()), StandardCharsets.UTF_8).contains(" loaded")) {
+            fail("no snapshot was loaded by restarts");
+        }
+        return failures;
+    }
+
+    /**
+     * method to start a server and wait until it listens
+     *
+     * @return process of server
+     */
+    private Process startServer() throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", classPath, "Server", "--port", String.valueOf(port),
+                "--data-dir", dataDir.toString()));
+        command.addAll(serverOptions);
+        Process server = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(serverLog)).start();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return server;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    server.destroyForcibly();
+                    throw new IOException("Server did not start on port " + port + ", see " + serverLog, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * method to run commands through a Client process
+     *
+     * @param protocol: binary or legacy
+     * @param commands: commands sent to server, quit is added after them
+     * @return answer of each command, without greeting of Client and its last words
+     */
+    private List<String> runClient(String protocol, String[] commands) throws IOException, InterruptedException {
+        Process client = new ProcessBuilder(java, "-cp", classPath, "Client", "--port", String.valueOf(port), "--protocol", protocol)
+                .redirectErrorStream(true).start();
+        try (Writer writer = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)) {
+            for (String command : commands) {
+                writer.write(command + "\n");
+            }
+            writer.write("quit\n");
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        client.waitFor();
+        // Client greets with 3 lines before the first answer, and says 2 lines after quit
+        return lines.subList(Math.min(3, lines.size()), Math.max(Math.min(3, lines.size()), lines.size() - 2));
+    }
+
+    /**
+     * method to read current timestamp of server from command <stats>, which doesn't take a timestamp
+     *
+     * @return current timestamp, -1 if it's not found
+     */
+    private int timestamp() throws IOException, InterruptedException {
+        List<String> answers = runClient("binary", new String[]{"stats"});
+        for (String answer : answers) {
+            if (answer.startsWith("store.timestamp")) {
+                return Integer.parseInt(answer.replaceAll("[^0-9]", ""));
+            }
+        }
+        fail("stats answered " + answers);
+        return -1;
+    }
+
+    /**
+     * method to compare answers of a step
+     *
+     * @param step: name of step
+     * @param actual: answers of server
+     * @param expected: expected answers
+     */
+    private void check(String step, List<String> actual, String[] expected) {
+        if (actual.equals(Arrays.asList(expected))) {
+            System.out.println(step + ": OK");
+            return;
+        }
+        fail(step + ": expected " + Arrays.asList(expected) + ", got " + actual);
+    }
+
+    /**
+     * method to report a failed check
+     *
+     * @param message: what is wrong
+     */
+    private void fail(String message) {
+        failures++;
+        System.out.println("FAILED " + message);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // read options as <--name value> pairs
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        SmokeCheck check = new SmokeCheck(options);
+        try (Stream<Path> files = Files.list(check.dataDir)) {
+            if (files.findAny().isPresent()) {
+                System.out.println("Data directory " + check.dataDir + " is not empty, smoke test starts from an empty store");
+                System.exit(2);
+            }
+        } catch (NoSuchFileException e) {
+            // server creates it
+        }
+        int failures = check.run();
+        if (failures > 0) {
+            System.out.println(failures + " checks failed, output of servers is in " + check.serverLog);
+            System.exit(1);
+        }
+        System.out.println("Smoke test: OK");
+    }
+}
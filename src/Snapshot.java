@@ -0,0 +1,198 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Binary snapshot of the whole store, so a restarted Server loads it and only replays log segments written after it.
+ *
+ * File snapshot-<segment>.snap looks like:
+ * <magic, version, segment> <one section for each user> <number of users, position of each section> <timestamp, position of index, magic>
+ * where segment is the first log segment to replay after loading this snapshot.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x4B565353; // "KVSS"
+    static final int VERSION = 4; // version 1 keeps puts and deletions of a user in 2 lists, version 2 has nothing spilled, version 3 has nothing collected, all are still loaded
+    private static final int TRAILER = 4 + 8 + 4; // timestamp, position of index and magic
+    private static final long PARTITION_SIZE = 64L << 20; // bytes of sections mapped and loaded by one thread
+
+    /**
+     * method to write a snapshot without stopping writers, each user is copied while holding its lock.
+     * Log is rolled first, so every change missing in snapshot is in a segment after it. A change may be both in snapshot
+     * and in those segments, replay skips it since it's not newer than the user's last change.
+     *
+     * @param service: the store to be saved
+     * @param wal: log of this store, segments older than this snapshot are deleted after it's written
+     * @throws IOException if snapshot can not be written
+     */
+    static void write(Service service, WriteAheadLog wal) throws IOException {
+        Path dir = wal.getDir();
+        long segment = wal.roll(); // 1. start a new segment, records before it are all applied on store
+        Path tmp = dir.resolve("snapshot.tmp");
+
+        // 2. write sections of users, remembering where each one starts
+        long[] index = new long[16];
+        int count = 0;
+        long position = 4 + 4 + 8; // header
+        int timestamp;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(segment);
+
+            for (String userName : service.userNames()) {
+                byte[] section = service.encodeUser(userName);
+                if (count == index.length) {
+                    index = Arrays.copyOf(index, count * 2);
+                }
+                index[count++] = position;
+                out.write(section);
+                position += section.length;
+            }
+
+            // 3. write index and trailer, timestamp is read after all users are copied so it covers all of them
+            timestamp = service.getTimestamp();
+            long indexPosition = position;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(index[i]);
+            }
+            out.writeInt(timestamp);
+            out.writeLong(indexPosition);
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+        }
+
+        // 4. publish snapshot and make the rename durable, then older snapshots and segments are useless
+        Files.move(tmp, snapshotFile(dir, segment), StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog.forceDirectory(dir);
+        for (long old : snapshots(dir)) {
+            if (old < segment) {
+                Files.deleteIfExists(snapshotFile(dir, old));
+            }
+        }
+        wal.deleteBefore(segment);
+        System.out.println("Snapshot of " + count + " users at timestamp " + timestamp + " written");
+    }
+
+    /**
+     * method to load the latest snapshot into an empty store, file is memory-mapped and partitions of it are loaded in parallel
+     *
+     * @param service: the empty store to rebuild
+     * @param dir: data directory
+     * @return the first log segment to replay after this snapshot, 0 if there's no snapshot
+     * @throws IOException if snapshot can not be read or it's broken
+     */
+    static long load(Service service, Path dir) throws IOException {
+        List<Long> snapshots = snapshots(dir);
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        long segment = snapshots.get(snapshots.size() - 1);
+        Path file = snapshotFile(dir, segment);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            // 1. check header and trailer
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER, TRAILER);
+            int magic = header.getInt();
+            int version = header.getInt();
+            if (magic != MAGIC || version < 1 || version > VERSION || header.getLong() != segment) {
+                throw new IOException("Broken snapshot header: " + file);
+            }
+            int timestamp = trailer.getInt();
+            long indexPosition = trailer.getLong();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Broken snapshot trailer: " + file);
+            }
+
+            // 2. read index
+            ByteBuffer indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY, indexPosition, size - TRAILER - indexPosition);
+            int count = indexBuffer.getInt();
+            long[] index = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                index[i] = indexBuffer.getLong();
+            }
+            index[count] = indexPosition; // end of last section
+
+            // 3. split sections into partitions of similar size
+            List<Integer> starts = new ArrayList<>(); // index of the first section of each partition
+            for (int i = 0; i < count; i++) {
+                if (starts.isEmpty() || index[i] - index[starts.get(starts.size() - 1)] >= PARTITION_SIZE) {
+                    starts.add(i);
+                }
+            }
+            starts.add(count);
+
+            // 4. map and load partitions in parallel
+            try {
+                IntStream.range(0, starts.size() - 1).parallel().forEach(p -> {
+                    int from = starts.get(p);
+                    int to = starts.get(p + 1);
+                    try {
+                        MappedByteBuffer partition = channel.map(FileChannel.MapMode.READ_ONLY, index[from], index[to] - index[from]);
+                        for (int i = from; i < to; i++) {
+                            service.decodeUser(partition, version);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            service.advanceTimestamp(timestamp);
+            System.out.println("Snapshot of " + count + " users at timestamp " + timestamp + " loaded");
+        }
+        return segment;
+    }
+
+    /**
+     * method to list segments of all snapshots in a directory
+     *
+     * @param dir: data directory
+     * @return sorted segments of snapshots
+     * @throws IOException if directory can not be read
+     */
+    private static List<Long> snapshots(Path dir) throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                snapshots.add(Long.parseLong(name.substring(9, name.length() - 5)));
+            }
+        }
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    /**
+     * method to get file of a snapshot
+     *
+     * @param dir: data directory
+     * @param segment: the first log segment after this snapshot
+     * @return snapshot file
+     */
+    private static Path snapshotFile(Path dir, long segment) {
+        return dir.resolve(String.format("snapshot-%020d.snap", segment));
+    }
+}
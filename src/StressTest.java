@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stress test of Service without sockets: threads run a mix of put(key, value) and get(key) on random keys of one Service,
+ * once for each thread count, and print throughput of each run. Every put and get takes a timestamp, so after a run the
+ * timestamp of Service must equal the number of operations, a lost or repeated timestamp under contention fails the test.
+ *
+ * Usage: java StressTest --threads 1,2,4,8,16 --ops 2000000 --keys 10000 --friends 16 --read-percent 75 --seed 42
+ */
+public class StressTest {
+
+    private final int[] threadCounts; // thread count of each run
+    private final int operations; // operations of each run, split over its threads
+    private final int keys; // number of keys
+    private final int friends; // number of distinct friends of each key
+    private final int readPercent; // percent of get, the rest are put
+    private final long seed; // seed of random choices, each thread gets its own split of it
+    private final String[] names; // names of keys
+    private final String[] friendNames; // names of friends
+
+    /**
+     * Constructor
+     *
+     * @param options: options of command line, <--name value>
+     */
+    private StressTest(Map<String, String> options) {
+        String[] counts = options.getOrDefault("--threads", "1,2,4,8,16").split(",");
+        threadCounts = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            threadCounts[i] = Integer.parseInt(counts[i].trim());
+        }
+        operations = Integer.parseInt(options.getOrDefault("--ops", "2000000"));
+        keys = Integer.parseInt(options.getOrDefault("--keys", "10000"));
+        friends = Integer.parseInt(options.getOrDefault("--friends", "16"));
+        readPercent = Integer.parseInt(options.getOrDefault("--read-percent", "75"));
+        seed = Long.parseLong(options.getOrDefault("--seed", "42"));
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "u" + i;
+        }
+        friendNames = new String[friends];
+        for (int i = 0; i < friends; i++) {
+            friendNames[i] = "f" + i;
+        }
+    }
+
+    /**
+     * method to run operations on a new Service with given number of threads
+     *
+     * @param threads: number of threads
+     * @return operations per second, or -1 if timestamp of Service doesn't match the operations done
+     */
+    private double run(int threads) throws InterruptedException {
+        Service service = new Service();
+        SplittableRandom root = new SplittableRandom(seed);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            // 1. split operations evenly, the first threads take what's left over
+            int share = operations / threads + (i < operations % threads ? 1 : 0);
+            SplittableRandom random = root.split();
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 0; n < share; n++) {
+                    String name = names[random.nextInt(keys)];
+                    if (random.nextInt(100) < readPercent) {
+                        service.get(name);
+                    } else {
+                        service.put(name, friendNames[random.nextInt(friends)]);
+                    }
+                }
+            }, "stress-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        // 2. release all threads at once and time until the last one finishes
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        // 3. each operation took exactly one timestamp
+        if (service.getTimestamp() != operations) {
+            System.out.println("timestamp " + service.getTimestamp() + " after " + operations + " operations");
+            return -1;
+        }
+        return operations * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // read options as <--name value> pairs
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        StressTest test = new StressTest(options);
+        System.out.println(String.format(Locale.ROOT, "%d operations, %d keys, %d%% get, %d cpus",
+                test.operations, test.keys, test.readPercent, Runtime.getRuntime().availableProcessors()));
+        // warm up JIT once with the largest thread count, so the first run is not measured cold
+        test.run(test.threadCounts[test.threadCounts.length - 1]);
+        boolean failed = false;
+        for (int threads : test.threadCounts) {
+            double rate = test.run(threads);
+            if (rate < 0) {
+                failed = true;
+                continue;
+            }
+            System.out.println(String.format(Locale.ROOT, "threads %2d: %,.0f ops/s", threads, rate));
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global dictionary of names, each distinct name gets a dense int id, so histories and friend sets keep ints and one copy of each name.
+ *
+ * Looking up an id is a read of a concurrent map. Names are kept in pages indexed by id, a new id is assigned while holding the monitor,
+ * and its name is in its page before the id is published in the map, so any thread holding an id can read its name without locking.
+ * Ids are never released.
+ */
+public class StringDictionary {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT; // names in a page
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final ConcurrentHashMap<String, Integer> ids; // id of each name: <name, id>
+    private volatile String[][] pages; // name of each id, pages are never moved so a reader only needs the array of pages
+    private int size; // number of ids, guarded by this
+
+    /**
+     * Constructor
+     */
+    public StringDictionary() {
+        ids = new ConcurrentHashMap<>();
+        pages = new String[16][];
+    }
+
+    /**
+     * method to get id of a name, a new name gets the next id
+     *
+     * @param name: the name
+     * @return its id
+     */
+    public int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        return ids.computeIfAbsent(name, this::add);
+    }
+
+    /**
+     * method to find id of a name without adding it, for reads and deletions that never keep a new name
+     *
+     * @param name: the name
+     * @return its id, -1 if the name is unknown
+     */
+    public int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * method to get name of an id
+     *
+     * @param id: an id returned by id()
+     * @return its name
+     */
+    public String name(int id) {
+        return pages[id >>> PAGE_SHIFT][id & PAGE_MASK];
+    }
+
+    /**
+     * method to get number of names
+     *
+     * @return number of names
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * method to assign the next id to a name, called once for each name
+     *
+     * @param name: a new name
+     * @return its id
+     */
+    private synchronized int add(String name) {
+        int id = size;
+        int page = id >>> PAGE_SHIFT;
+        String[][] current = pages;
+        if (page == current.length) {
+            current = Arrays.copyOf(current, page * 2);
+        }
+        if (current[page] == null) {
+            current[page] = new String[PAGE_SIZE];
+        }
+        current[page][id & PAGE_MASK] = name;
+        pages = current; // publish pages before id
+        size++;
+        return id;
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Random trace check of Service: a random sequence of put, get, get-at, del-friend, del, diff and mget runs against Service and
+ * against a naive model keeping every friend's interval in a list, each result and the timestamp after each operation must be the same.
+ *
+ * With --data-dir, the store is durable: every --spill-every operations history older than --hot-history is spilled to disk,
+ * every --snapshot-every operations a snapshot is taken, and every --restart-every operations the log is closed and the store
+ * is opened again from disk, so results after a restart check snapshot, log replay and tier of spilled history.
+ *
+ * Usage: java TraceCheck --ops 200000 --users 50 --friends 20 --seed 1 --checkpoint-interval 1024 --storage heap
+ *        java TraceCheck --data-dir trace-data --hot-history 300 --spill-every 7000 --snapshot-every 30000 --restart-every 45000
+ */
+public class TraceCheck {
+
+    // status codes of Service
+    private static final int NOUSER = -1, HASDELETED = 0, SUCCESS = 1, NOFRIEND = 2, INVALIDTIME = 3;
+    private static final int MAX_BATCH = 64; // keys of one mget, a batch this small is read in order by the calling thread
+    private static final int MAX_MISMATCHES = 10; // mismatches printed before giving up
+
+    private final int operations; // number of operations of the trace
+    private final String[] names; // names of users, a few more than --users so some are never put
+    private final String[] friendNames; // names of friends
+    private final SplittableRandom random; // random choices of trace
+    private final int checkpointInterval; // events of a user between 2 checkpoints, 0 for max-tree
+    private final boolean offHeap; // true to keep histories and indexes off heap
+    private final long resultCache; // bytes of cache of get and diff results, 0 for no cache
+    private final Path dataDir; // directory of log, snapshots and segments, null to keep store only in memory
+    private final int hotHistory; // latest timestamps kept in memory when spilling
+    private final int spillEvery; // operations between 2 spills, 0 to never spill
+    private final int snapshotEvery; // operations between 2 snapshots, 0 to never take one
+    private final int restartEvery; // operations between 2 restarts, 0 to never restart
+
+    private WriteAheadLog wal; // log of current store, null if it's only in memory
+    private int mismatches; // number of results different from model
+
+    /**
+     * Constructor
+     *
+     * @param options: options of command line, <--name value>
+     */
+    private TraceCheck(Map<String, String> options) {
+        operations = Integer.parseInt(options.getOrDefault("--ops", "200000"));
+        int users = Integer.parseInt(options.getOrDefault("--users", "50"));
+        names = new String[users + Math.max(1, users / 10)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "u" + i;
+        }
+        friendNames = new String[Integer.parseInt(options.getOrDefault("--friends", "20"))];
+        for (int i = 0; i < friendNames.length; i++) {
+            friendNames[i] = "f" + i;
+        }
+        random = new SplittableRandom(Long.parseLong(options.getOrDefault("--seed", "1")));
+        checkpointInterval = Integer.parseInt(options.getOrDefault("--checkpoint-interval", String.valueOf(Service.DEFAULT_CHECKPOINT_INTERVAL)));
+        offHeap = "off-heap".equals(options.getOrDefault("--storage", "heap"));
+        resultCache = Long.parseLong(options.getOrDefault("--result-cache", "0"));
+        dataDir = options.containsKey("--data-dir") ? Paths.get(options.get("--data-dir")) : null;
+        hotHistory = Integer.parseInt(options.getOrDefault("--hot-history", "0"));
+        spillEvery = Integer.parseInt(options.getOrDefault("--spill-every", "0"));
+        snapshotEvery = Integer.parseInt(options.getOrDefault("--snapshot-every", "0"));
+        restartEvery = Integer.parseInt(options.getOrDefault("--restart-every", "0"));
+    }
+
+    /**
+     * method to open store, from data directory if there is one
+     *
+     * @return store
+     */
+    private Service open() throws IOException {
+        if (dataDir != null) {
+            wal = WriteAheadLog.open(dataDir, WriteAheadLog.SyncMode.OS, 10);
+        }
+        Service service = new Service(wal, checkpointInterval, offHeap, wal == null ? 0 : hotHistory);
+        service.setResultCache(resultCache);
+        return service;
+    }
+
+    /**
+     * method to run the trace
+     *
+     * @return number of mismatches
+     */
+    private int run() throws IOException {
+        Service service = open();
+        Model model = new Model();
+        for (int n = 1; n <= operations && mismatches < MAX_MISMATCHES; n++) {
+            // 1. one random operation on both
+            String name = names[random.nextInt(names.length)];
+            int dice = random.nextInt(100);
+            String command;
+            if (dice < 35) {
+                String friend = friendNames[random.nextInt(friendNames.length)];
+                command = "put " + name + " " + friend;
+                service.put(name, friend);
+                model.put(name, friend);
+            } else if (dice < 50) {
+                command = "get " + name;
+                compare(n, command, service.get(name), model.get(name));
+            } else if (dice < 68) {
+                int time = randomTime(model.timestamp);
+                command = "get " + name + " " + time;
+                compare(n, command, service.get(name, time), model.get(name, time));
+            } else if (dice < 83) {
+                String friend = friendNames[random.nextInt(friendNames.length)];
+                command = "del " + name + " " + friend;
+                compare(n, command, service.delete(name, friend), model.delete(name, friend));
+            } else if (dice < 86) {
+                command = "del " + name;
+                compare(n, command, service.delete(name), model.delete(name));
+            } else if (dice < 96) {
+                int time1 = randomTime(model.timestamp);
+                int time2 = time1 + random.nextInt(Math.max(1, model.timestamp - time1 + 2));
+                command = "diff " + name + " " + time1 + " " + time2;
+                compare(n, command, service.diff(name, time1, time2), model.diff(name, time1, time2));
+            } else {
+                List<String> batch = new ArrayList<>();
+                for (int i = 1 + random.nextInt(MAX_BATCH); i > 0; i--) {
+                    batch.add(names[random.nextInt(names.length)]);
+                }
+                int time = dice % 2 == 0 ? -1 : randomTime(model.timestamp);
+                command = (time < 0 ? "mget " : "mget-at ") + batch + (time < 0 ? "" : " " + time);
+                List<ResultType> results = time < 0 ? service.mget(batch) : service.mget(batch, time);
+                for (int i = 0; i < batch.size(); i++) {
+                    compare(n, command + " #" + i, results.get(i), time < 0 ? model.get(batch.get(i)) : model.get(batch.get(i), time));
+                }
+            }
+            if (service.getTimestamp() != model.timestamp) {
+                mismatch(n, command, "timestamp " + service.getTimestamp() + ", model " + model.timestamp);
+            }
+
+            // 2. move store between memory and disk
+            if (wal != null) {
+                if (spillEvery > 0 && hotHistory > 0 && n % spillEvery == 0) {
+                    service.spill();
+                }
+                if (snapshotEvery > 0 && n % snapshotEvery == 0) {
+                    service.snapshot();
+                }
+                if (restartEvery > 0 && n % restartEvery == 0) {
+                    wal.close();
+                    service = open();
+                    if (service.getTimestamp() != model.timestamp) {
+                        mismatch(n, "restart", "timestamp " + service.getTimestamp() + ", model " + model.timestamp);
+                    }
+                }
+            }
+        }
+        if (wal != null) {
+            wal.close();
+        }
+        return mismatches;
+    }
+
+    /**
+     * method to pick a time to read, mostly a valid one, sometimes current timestamp or after it
+     *
+     * @param timestamp: current timestamp
+     * @return a time not less than 0
+     */
+    private int randomTime(int timestamp) {
+        return random.nextInt(20) == 0 ? timestamp + random.nextInt(3) : random.nextInt(Math.max(1, timestamp));
+    }
+
+    /**
+     * method to compare a result of Service with model
+     *
+     * @param n: number of operation in trace
+     * @param command: operation
+     * @param actual: result of Service
+     * @param expected: result of model
+     */
+    private void compare(int n, String command, ResultType actual, ResultType expected) {
+        if (actual.code != expected.code || !actual.getResult().equals(expected.getResult())) {
+            mismatch(n, command, actual.code + " " + actual.getResult() + ", model " + expected.code + " " + expected.getResult());
+        }
+    }
+
+    /**
+     * method to compare a status of deletion of Service with model
+     *
+     * @param n: number of operation in trace
+     * @param command: operation
+     * @param actual: status of Service
+     * @param expected: status of model
+     */
+    private void compare(int n, String command, int actual, int expected) {
+        if (actual != expected) {
+            mismatch(n, command, actual + ", model " + expected);
+        }
+    }
+
+    /**
+     * method to report a mismatch
+     *
+     * @param n: number of operation in trace
+     * @param command: operation
+     * @param detail: what is different
+     */
+    private void mismatch(int n, String command, String detail) {
+        mismatches++;
+        System.out.println("operation " + n + " (" + command + "): " + detail);
+    }
+
+    /**
+     * Naive model of store: every interval of a user's friends in order of being added, and current friends in order of being added
+     */
+    private static class Model {
+
+        int timestamp; // the next operation is on it
+        private final Map<String, List<int[]>> intervals = new HashMap<>(); // {friend, added, deleted} of each user, deleted is max int while it's a friend
+        private final Map<String, LinkedHashMap<String, int[]>> current = new HashMap<>(); // current friends and their open intervals, no entry after del(key)
+        private final Map<String, Integer> friendIds = new HashMap<>(); // id of each friend's name in intervals
+        private final List<String> friendNames = new ArrayList<>(); // name of each id
+
+        void put(String userName, String friendName) {
+            int time = timestamp++;
+            List<int[]> history = intervals.computeIfAbsent(userName, name -> new ArrayList<>());
+            LinkedHashMap<String, int[]> friends = current.computeIfAbsent(userName, name -> new LinkedHashMap<>());
+            if (!friends.containsKey(friendName)) {
+                int id = friendIds.computeIfAbsent(friendName, name -> {
+                    friendNames.add(name);
+                    return friendNames.size() - 1;
+                });
+                int[] interval = {id, time, Integer.MAX_VALUE};
+                history.add(interval);
+                friends.put(friendName, interval);
+            }
+        }
+
+        ResultType get(String userName) {
+            timestamp++;
+            if (!intervals.containsKey(userName)) {
+                return new ResultType(NOUSER);
+            }
+            LinkedHashMap<String, int[]> friends = current.get(userName);
+            if (friends == null || friends.isEmpty()) {
+                return new ResultType(NOFRIEND);
+            }
+            return success(new ArrayList<>(friends.keySet()));
+        }
+
+        ResultType get(String userName, int time) {
+            if (time >= timestamp) {
+                return new ResultType(INVALIDTIME);
+            }
+            if (!intervals.containsKey(userName)) {
+                return new ResultType(NOUSER);
+            }
+            timestamp++;
+            return success(friendsAt(userName, time));
+        }
+
+        int delete(String userName) {
+            int time = timestamp++;
+            if (!intervals.containsKey(userName)) {
+                return NOUSER;
+            }
+            LinkedHashMap<String, int[]> friends = current.remove(userName);
+            if (friends == null) {
+                return HASDELETED;
+            }
+            for (int[] interval : friends.values()) {
+                interval[2] = time;
+            }
+            return SUCCESS;
+        }
+
+        int delete(String userName, String friendName) {
+            int time = timestamp++;
+            if (!intervals.containsKey(userName)) {
+                return NOUSER;
+            }
+            LinkedHashMap<String, int[]> friends = current.get(userName);
+            int[] interval = friends == null ? null : friends.remove(friendName);
+            if (interval == null) {
+                return HASDELETED;
+            }
+            interval[2] = time;
+            return SUCCESS;
+        }
+
+        ResultType diff(String userName, int time1, int time2) {
+            if (time1 >= timestamp) {
+                return new ResultType(INVALIDTIME);
+            }
+            if (!intervals.containsKey(userName)) {
+                return new ResultType(NOUSER);
+            }
+            if (time2 > timestamp++) {
+                return new ResultType(INVALIDTIME);
+            }
+            List<String> before = friendsAt(userName, time1);
+            List<String> after = friendsAt(userName, time2);
+            Set<String> beforeSet = new HashSet<>(before);
+            Set<String> afterSet = new HashSet<>(after);
+            List<String> result = new ArrayList<>();
+            for (String friend : before) {
+                if (!afterSet.contains(friend)) {
+                    result.add(friend);
+                }
+            }
+            for (String friend : after) {
+                if (!beforeSet.contains(friend)) {
+                    result.add(friend);
+                }
+            }
+            return success(result);
+        }
+
+        private List<String> friendsAt(String userName, int time) {
+            List<String> friends = new ArrayList<>();
+            for (int[] interval : intervals.get(userName)) {
+                if (interval[1] <= time && time < interval[2]) {
+                    friends.add(friendNames.get(interval[0]));
+                }
+            }
+            return friends;
+        }
+
+        private static ResultType success(List<String> friends) {
+            ResultType resultType = new ResultType(SUCCESS);
+            resultType.setResult(friends);
+            return resultType;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        // read options as <--name value> pairs
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        TraceCheck check = new TraceCheck(options);
+        if (check.dataDir != null && Files.isDirectory(check.dataDir)) {
+            try (Stream<Path> files = Files.list(check.dataDir)) {
+                if (files.findAny().isPresent()) {
+                    System.out.println("Data directory " + check.dataDir + " is not empty, trace starts from an empty store");
+                    System.exit(2);
+                }
+            }
+        }
+        int mismatches = check.run();
+        System.out.println(String.format(Locale.ROOT, "%d operations, %d users, %s: %d mismatches", check.operations, check.names.length,
+                String.join(" ", Arrays.asList(args)), mismatches));
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,480 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log of all changes on Service, so a restarted Server gets the same history with the same timestamps.
+ *
+ * Each record looks like: <length, crc, operation, timestamp, user, friend>, records are buffered in memory and
+ * handed to disk by group commit: a writer waiting for its record to be durable forces all buffered records of other writers together.
+ *
+ * Log is split into segment files wal-<sequence>.log, a snapshot starts a new segment so older segments can be deleted once snapshot is written.
+ * Positions returned by append() keep growing across segments.
+ */
+public class WriteAheadLog implements Closeable {
+
+    // operations recorded in log
+    static final byte MARK = 0; // not a change, just remembers current timestamp
+    static final byte PUT = 1; // put(key, value)
+    static final byte DELETE_USER = 2; // delete(key)
+    static final byte DELETE_FRIEND = 3; // delete(key, value)
+
+    private static final int HEADER = 8; // length and crc of each record
+    private static final int BUFFER_SIZE = 1 << 20; // size of in-memory buffer before records go to file
+    private static final int MARK_SIZE = HEADER + 1 + 4 + 4 + 4; // size of a mark record
+    private static final byte[] EMPTY = new byte[0]; // empty user or friend
+
+    /**
+     * when records are forced to disk
+     */
+    public enum SyncMode {
+        ALWAYS, // every change waits until it's on disk, concurrent changes share one force
+        INTERVAL, // records are forced every interval milliseconds, a crash may lose the last interval
+        OS // records are written every interval milliseconds and operating system decides when they are on disk
+    }
+
+    private final Path dir; // directory of log segments
+    private FileChannel channel; // channel to write current segment, guarded by this
+    private long segment; // sequence number of current segment, guarded by this
+    private long segmentStart; // position where current segment starts, guarded by this
+    private final SyncMode syncMode; // when we force records to disk
+    private final ScheduledExecutorService flusher; // background thread to flush records for INTERVAL and OS mode
+    private final CRC32 crc = new CRC32(); // checksum of records, guarded by this
+    private ByteBuffer buffer; // records not written to file yet, guarded by this
+    private long appended; // position right after the last appended record, guarded by this
+    private long written; // position up to which records are written to file, guarded by this
+    private long synced; // position up to which records are forced to disk, guarded by this
+    private boolean syncing; // marks if one writer is forcing records right now, guarded by this
+    private IntSupplier clock; // current timestamp of Service, remembered every time we write to file
+    private int marked; // the latest timestamp remembered in log, guarded by this
+
+    /**
+     * Constructor
+     *
+     * @param dir: directory of log segments, the last segment is opened for appending, or a new one is created
+     * @param syncMode: when we force records to disk
+     * @param interval: milliseconds between two background flushes, useless in ALWAYS mode
+     * @throws IOException if log file can not be opened
+     */
+    public WriteAheadLog(Path dir, SyncMode syncMode, long interval) throws IOException {
+        this.dir = dir;
+        this.syncMode = syncMode;
+        List<Long> segments = segments();
+        this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        this.channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.segmentStart = 0;
+        this.appended = this.written = this.synced = channel.size();
+
+        if (syncMode == SyncMode.ALWAYS) {
+            this.flusher = null;
+        } else {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushInBackground, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * method to replay records on service, a broken record at the end of a segment (crash during writing) and everything after it in that segment is dropped
+     *
+     * @param service: the service to rebuild
+     * @param from: sequence number of the first segment to replay, older segments are already in a snapshot
+     * @throws IOException if log file can not be read
+     */
+    synchronized void replay(Service service, long from) throws IOException {
+        for (long sequence : segments()) {
+            if (sequence < from) {
+                continue;
+            }
+            try (FileChannel segmentChannel = FileChannel.open(segmentFile(sequence), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = replaySegment(service, segmentChannel);
+                // drop broken tail, so new records are appended right after good ones
+                if (end < segmentChannel.size()) {
+                    System.out.println("Drop broken log tail of " + segmentFile(sequence) + " after position " + end);
+                    segmentChannel.truncate(end);
+                }
+            }
+        }
+        appended = written = synced = segmentStart + channel.size();
+    }
+
+    /**
+     * method to replay all good records of one segment
+     *
+     * @param service: the service to rebuild
+     * @param segmentChannel: channel of this segment
+     * @return position right after the last good record
+     * @throws IOException if log file can not be read
+     */
+    private long replaySegment(Service service, FileChannel segmentChannel) throws IOException {
+        long end = 0; // position right after the last good record
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segmentChannel.position(0)), BUFFER_SIZE));
+        long size = segmentChannel.size();
+
+        while (size - end >= HEADER) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > size - end - HEADER) {
+                break; // incomplete record
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break; // broken record
+            }
+
+            // decode and apply record
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            byte operation = record.get();
+            int time = record.getInt();
+            String user = readString(record);
+            String friend = readString(record);
+            service.replay(operation, time, user, friend);
+            end += HEADER + length;
+        }
+        return end;
+    }
+
+    /**
+     * method to start a new segment, every record appended after this call goes into new segment
+     *
+     * @return sequence number of new segment
+     * @throws IOException if new segment can not be created
+     */
+    synchronized long roll() throws IOException {
+        // wait for the forcing leader, it's using current channel
+        while (syncing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while rolling log", e);
+            }
+        }
+
+        // current segment is complete and durable
+        writeBuffer();
+        channel.force(false);
+        channel.close();
+        synced = written;
+
+        segment++;
+        segmentStart = written;
+        channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return segment;
+    }
+
+    /**
+     * method to get size of records appended into current segment
+     *
+     * @return bytes appended after current segment starts
+     */
+    synchronized long segmentSize() {
+        return appended - segmentStart;
+    }
+
+    /**
+     * method to delete segments whose records are all in a snapshot
+     *
+     * @param sequence: segments older than this one are deleted
+     * @throws IOException if a segment can not be deleted
+     */
+    void deleteBefore(long sequence) throws IOException {
+        for (long old : segments()) {
+            if (old < sequence) {
+                Files.deleteIfExists(segmentFile(old));
+            }
+        }
+    }
+
+    /**
+     * method to force entries of a directory to disk, so a file renamed or created in it survives a crash. Without it, the
+     * rename may be lost while files deleted after it are gone
+     *
+     * @param dir: the directory
+     * @throws IOException if directory can not be forced
+     */
+    static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * method to list sequence numbers of all segments
+     *
+     * @return sorted sequence numbers
+     * @throws IOException if directory can not be read
+     */
+    private List<Long> segments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * method to get file of a segment
+     *
+     * @param sequence: sequence number of segment
+     * @return segment file
+     */
+    private Path segmentFile(long sequence) {
+        return dir.resolve(String.format("wal-%020d.log", sequence));
+    }
+
+    /**
+     * method to tell log where to read current timestamp
+     *
+     * @param clock: supplier of Service timestamp
+     */
+    synchronized void setClock(IntSupplier clock) {
+        this.clock = clock;
+        this.marked = clock.getAsInt(); // called after replay, log already knows this timestamp
+    }
+
+    /**
+     * method to append a record, caller should hold the user's lock so records of one user are in timestamp order
+     *
+     * @param operation: PUT, DELETE_USER or DELETE_FRIEND
+     * @param time: timestamp of this operation
+     * @param user: user of this operation
+     * @param friend: friend of this operation, empty if there isn't
+     * @return position right after this record, pass it to commit() to wait until record is durable
+     */
+    synchronized long append(byte operation, int time, String user, String friend) {
+        byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+        byte[] friendBytes = friend.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER + 1 + 4 + 4 + userBytes.length + 4 + friendBytes.length; // header, operation, timestamp and 2 strings with their lengths
+
+        // make room for this record, and always leave room for a mark
+        if (buffer.remaining() < size + MARK_SIZE) {
+            writeBuffer();
+            if (buffer.capacity() < size + MARK_SIZE) {
+                buffer = ByteBuffer.allocate(size + MARK_SIZE); // a really large record
+            }
+        }
+        putRecord(operation, time, userBytes, friendBytes);
+        return appended;
+    }
+
+    /**
+     * method to encode a record into buffer, caller should make sure there's enough room
+     *
+     * @param operation: operation of this record
+     * @param time: timestamp of this record
+     * @param userBytes: encoded user
+     * @param friendBytes: encoded friend
+     */
+    private void putRecord(byte operation, int time, byte[] userBytes, byte[] friendBytes) {
+        int start = buffer.position();
+        buffer.putInt(0); // length, filled later
+        buffer.putInt(0); // checksum, filled later
+        buffer.put(operation);
+        buffer.putInt(time);
+        buffer.putInt(userBytes.length);
+        buffer.put(userBytes);
+        buffer.putInt(friendBytes.length);
+        buffer.put(friendBytes);
+
+        int length = buffer.position() - start - HEADER;
+        crc.reset();
+        crc.update(buffer.array(), start + HEADER, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        appended += HEADER + length;
+    }
+
+    /**
+     * method to get position right after the last appended record
+     *
+     * @return position, records before it are durable after commit() of it
+     */
+    synchronized long position() {
+        return appended;
+    }
+
+    /**
+     * method to wait until records up to position are durable, it only waits in ALWAYS mode
+     *
+     * @param position: position returned by append()
+     */
+    void commit(long position) {
+        if (syncMode == SyncMode.ALWAYS) {
+            sync(position);
+        }
+    }
+
+    /**
+     * group commit: the first waiting writer forces everything appended so far, others wait for it instead of forcing again
+     *
+     * @param position: position to be durable
+     */
+    private void sync(long position) {
+        while (true) {
+            long target;
+            FileChannel forcing; // channel of current segment, it's not closed by roll() while we are syncing
+            synchronized (this) {
+                // someone is forcing, its force may cover our record
+                while (syncing && synced < position) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new UncheckedIOException(new IOException("interrupted while waiting for log sync", e));
+                    }
+                }
+                if (synced >= position) {
+                    return;
+                }
+                // we are the leader of next group
+                syncing = true;
+                writeBuffer();
+                target = written;
+                forcing = channel;
+            }
+
+            // force without holding the monitor, so other writers keep appending into next group
+            boolean forced = false;
+            try {
+                forcing.force(false);
+                forced = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                synchronized (this) {
+                    if (forced) {
+                        synced = Math.max(synced, target);
+                    }
+                    syncing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * method to write buffered records into file, remembering current timestamp after them, caller should hold the monitor.
+     * A mark is written even without buffered records if timestamp has moved, e.g. by reads or deletions doing nothing
+     */
+    private void writeBuffer() {
+        int now = clock == null ? marked : clock.getAsInt();
+        if (buffer.position() == 0 && now <= marked) {
+            return;
+        }
+        if (now > marked) {
+            // remember timestamp, so timestamps taken by reads survive restart, append() always leaves room for it
+            putRecord(MARK, now, EMPTY, EMPTY);
+            marked = now;
+        }
+        buffer.flip();
+        try {
+            long position = written - segmentStart;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        written = appended;
+        buffer.clear();
+    }
+
+    /**
+     * background task of INTERVAL and OS mode
+     */
+    private void flushInBackground() {
+        try {
+            synchronized (this) {
+                writeBuffer();
+                if (syncMode == SyncMode.INTERVAL && synced < written) {
+                    channel.force(false);
+                    synced = written;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    /**
+     * method to write and force all records, then close log file
+     *
+     * @throws IOException if records can not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        writeBuffer();
+        channel.force(false);
+        synced = written;
+        channel.close();
+    }
+
+    /**
+     * method to read a string encoded as <length, UTF-8 bytes>
+     *
+     * @param buffer: buffer to read from
+     * @return decoded string
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * method to get directory of this log
+     *
+     * @return directory of log segments
+     */
+    Path getDir() {
+        return dir;
+    }
+
+    /**
+     * method to open log in a directory
+     *
+     * @param dir: data directory, it's created if not exists
+     * @param syncMode: when we force records to disk
+     * @param interval: milliseconds between two background flushes
+     * @return opened log
+     * @throws IOException if log can not be opened
+     */
+    public static WriteAheadLog open(Path dir, SyncMode syncMode, long interval) throws IOException {
+        Files.createDirectories(dir);
+        return new WriteAheadLog(dir, syncMode, interval);
+    }
+}